@@ -11,5 +11,5 @@ else
     yarn install
     rm -rf node_modules/react-native-billing/example
 
-    cd android && ./gradlew assembleRelease
+    cd android && ./gradlew assembleRelease :react-native-billing:testDebugUnitTest
 fi
\ No newline at end of file
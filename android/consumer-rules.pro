@@ -0,0 +1,2 @@
+# The Play Billing Library is optional; apps that do not use PlayBillingBackend do not ship it.
+-dontwarn com.android.billingclient.**
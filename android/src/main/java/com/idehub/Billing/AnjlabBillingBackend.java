@@ -0,0 +1,441 @@
+package com.idehub.Billing;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.vending.billing.IInAppBillingService;
+import com.anjlab.android.iab.v3.BillingProcessor;
+import com.anjlab.android.iab.v3.PurchaseData;
+import com.anjlab.android.iab.v3.PurchaseInfo;
+import com.anjlab.android.iab.v3.SkuDetails;
+import com.anjlab.android.iab.v3.TransactionDetails;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Google Play billing through anjlab's BillingProcessor. This is the default backend.
+ *
+ * BillingProcessor only has blocking calls, so queries run on the calling billing thread
+ * and report their result before they return.
+ *
+ * BillingProcessor only reads the first page of owned items and hides the continuation
+ * token, so paged queries go to the billing service through a binding of their own. It is
+ * made on the first paged query, so apps that never page hold only BillingProcessor's.
+ *
+ * BillingProcessor has no bulk read of its purchase cache; every lookup parses one entry.
+ * The transaction details of everything owned are therefore read in one pass and kept
+ * until the cache changes, by a purchase, a consume or a reload from Google Play.
+ */
+class AnjlabBillingBackend implements BillingBackend {
+    static final Factory FACTORY = new Factory() {
+        @Override
+        public boolean isAvailable(Context context) {
+            return BillingProcessor.isIabServiceAvailable(context);
+        }
+
+        @Override
+        public BillingBackend create(Context context, String licenseKey, Listener listener) {
+            return new AnjlabBillingBackend(context, licenseKey, listener);
+        }
+    };
+
+    // See IabHelper and BillingProcessor: the in-app billing service and its bundle keys.
+    private static final String SERVICE_ACTION = "com.android.vending.billing.InAppBillingService.BIND";
+    private static final String SERVICE_PACKAGE = "com.android.vending";
+    private static final int API_VERSION = 3;
+    private static final String RESPONSE_CODE = "RESPONSE_CODE";
+    private static final String PURCHASE_DATA_LIST = "INAPP_PURCHASE_DATA_LIST";
+    private static final String SIGNATURE_LIST = "INAPP_DATA_SIGNATURE_LIST";
+    private static final String CONTINUATION_TOKEN = "INAPP_CONTINUATION_TOKEN";
+    private static final int RESULT_SERVICE_UNAVAILABLE = 2;
+    private static final int RESULT_ERROR = 6;
+    private static final long BIND_TIMEOUT_MS = 5000;
+
+    private final BillingProcessor mProcessor;
+    private final Context mContext;
+    // Guarded by mConnection.
+    private IInAppBillingService mService;
+    private boolean mBound;
+    private boolean mReleased;
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            synchronized (this) {
+                mService = IInAppBillingService.Stub.asInterface(service);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            synchronized (this) {
+                mService = null;
+            }
+        }
+    };
+    // Bumped whenever BillingProcessor's purchase cache may have changed.
+    private final AtomicInteger mOwnedVersion = new AtomicInteger();
+    private volatile OwnedDetails mOwned;
+    private final ThreadLocal<QueryState> mQueryState = new ThreadLocal<QueryState>() {
+        @Override
+        protected QueryState initialValue() {
+            return new QueryState();
+        }
+    };
+
+    AnjlabBillingBackend(Context context, String licenseKey, final Listener listener) {
+        mContext = context.getApplicationContext();
+        mProcessor = new BillingProcessor(context, licenseKey, new BillingProcessor.IBillingHandler() {
+            @Override
+            public void onProductPurchased(String productId, TransactionDetails details) {
+                invalidateOwned();
+                listener.onProductPurchased(productId, details);
+            }
+
+            @Override
+            public void onPurchaseHistoryRestored() {
+                invalidateOwned();
+                listener.onPurchaseHistoryRestored();
+            }
+
+            @Override
+            public void onBillingError(int errorCode, Throwable error) {
+                // BillingProcessor reports failed queries synchronously, on the querying thread.
+                QueryState state = mQueryState.get();
+                if (state.active) {
+                    state.lastError = errorCode;
+                    return;
+                }
+                listener.onBillingError(errorCode, error);
+            }
+
+            @Override
+            public void onBillingInitialized() {
+                listener.onBillingInitialized();
+            }
+        });
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return mProcessor.isInitialized();
+    }
+
+    @Override
+    public void release() {
+        mProcessor.release();
+        synchronized (mConnection) {
+            mReleased = true;
+            mService = null;
+            if (mBound) {
+                mBound = false;
+                mContext.unbindService(mConnection);
+            }
+            mConnection.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
+        return mProcessor.handleActivityResult(requestCode, resultCode, data);
+    }
+
+    @Override
+    public void loadOwnedPurchasesFromGoogle(Callback<Void> callback) {
+        QueryState state = beginQuery();
+        boolean loaded;
+        try {
+            loaded = mProcessor.loadOwnedPurchasesFromGoogle();
+        } finally {
+            state.active = false;
+            invalidateOwned();
+        }
+        complete(callback, loaded, state);
+    }
+
+    @Override
+    public boolean purchase(Activity activity, String productId, String developerPayload) {
+        return mProcessor.purchase(activity, productId, developerPayload);
+    }
+
+    @Override
+    public boolean subscribe(Activity activity, String productId, String developerPayload) {
+        return mProcessor.subscribe(activity, productId, developerPayload);
+    }
+
+    @Override
+    public boolean updateSubscription(Activity activity, List<String> oldProductIds, String productId, String developerPayload) {
+        return mProcessor.updateSubscription(activity, oldProductIds, productId, developerPayload);
+    }
+
+    @Override
+    public void consumePurchase(String productId, Callback<Void> callback) {
+        QueryState state = beginQuery();
+        boolean consumed;
+        try {
+            consumed = mProcessor.consumePurchase(productId);
+        } finally {
+            state.active = false;
+            invalidateOwned();
+        }
+        complete(callback, consumed, state);
+    }
+
+    @Override
+    public boolean isPurchased(String productId) {
+        return mProcessor.isPurchased(productId);
+    }
+
+    @Override
+    public boolean isSubscribed(String productId) {
+        return mProcessor.isSubscribed(productId);
+    }
+
+    @Override
+    public boolean isOneTimePurchaseSupported() {
+        return mProcessor.isOneTimePurchaseSupported();
+    }
+
+    @Override
+    public boolean isValidTransactionDetails(TransactionDetails details) {
+        return mProcessor.isValidTransactionDetails(details);
+    }
+
+    @Override
+    public List<String> listOwnedProducts() {
+        return mProcessor.listOwnedProducts();
+    }
+
+    @Override
+    public List<String> listOwnedSubscriptions() {
+        return mProcessor.listOwnedSubscriptions();
+    }
+
+    @Override
+    public TransactionDetails getPurchaseTransactionDetails(String productId) {
+        return mProcessor.getPurchaseTransactionDetails(productId);
+    }
+
+    @Override
+    public TransactionDetails getSubscriptionTransactionDetails(String productId) {
+        return mProcessor.getSubscriptionTransactionDetails(productId);
+    }
+
+    @Override
+    public List<TransactionDetails> getAllPurchaseTransactionDetails() {
+        return ownedDetails().products;
+    }
+
+    @Override
+    public List<TransactionDetails> getAllSubscriptionTransactionDetails() {
+        return ownedDetails().subscriptions;
+    }
+
+    private void invalidateOwned() {
+        mOwnedVersion.incrementAndGet();
+    }
+
+    private OwnedDetails ownedDetails() {
+        // Read the version first: a change during the pass leaves the result stale, and the
+        // next call reads the cache again.
+        int version = mOwnedVersion.get();
+        OwnedDetails owned = mOwned;
+        if (owned != null && owned.version == version) {
+            return owned;
+        }
+        List<TransactionDetails> products = new ArrayList<>();
+        for (String productId : mProcessor.listOwnedProducts()) {
+            TransactionDetails details = mProcessor.getPurchaseTransactionDetails(productId);
+            if (details != null) {
+                products.add(details);
+            }
+        }
+        List<TransactionDetails> subscriptions = new ArrayList<>();
+        for (String productId : mProcessor.listOwnedSubscriptions()) {
+            TransactionDetails details = mProcessor.getSubscriptionTransactionDetails(productId);
+            if (details != null) {
+                subscriptions.add(details);
+            }
+        }
+        owned = new OwnedDetails(version, products, subscriptions);
+        mOwned = owned;
+        return owned;
+    }
+
+    @Override
+    public void getPurchaseListingDetails(ArrayList<String> productIds, Callback<List<SkuDetails>> callback) {
+        QueryState state = beginQuery();
+        List<SkuDetails> details;
+        try {
+            details = mProcessor.getPurchaseListingDetails(productIds);
+        } finally {
+            state.active = false;
+        }
+        complete(callback, details, state);
+    }
+
+    @Override
+    public void getSubscriptionListingDetails(ArrayList<String> productIds, Callback<List<SkuDetails>> callback) {
+        QueryState state = beginQuery();
+        List<SkuDetails> details;
+        try {
+            details = mProcessor.getSubscriptionListingDetails(productIds);
+        } finally {
+            state.active = false;
+        }
+        complete(callback, details, state);
+    }
+
+    /**
+     * BillingProcessor fetches the buy intent inside purchase() and keeps no other state
+     * per product, so there is nothing to prefetch beyond the listing details.
+     */
+    @Override
+    public void preparePurchase(ArrayList<String> productIds, boolean subscription, Callback<List<SkuDetails>> callback) {
+        if (subscription) {
+            getSubscriptionListingDetails(productIds, callback);
+        } else {
+            getPurchaseListingDetails(productIds, callback);
+        }
+    }
+
+    /**
+     * Reads one page with a blocking call to the billing service, passing Google Play's
+     * continuation token along. Google Play decides the page size. Items whose signature
+     * does not verify against the license key are left out.
+     */
+    @Override
+    public void getOwnedPage(boolean subscription, String continuationToken, int pageSize, Callback<OwnedPage> callback) {
+        IInAppBillingService service = awaitService();
+        if (service == null) {
+            callback.onFailure(RESULT_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        Bundle bundle;
+        try {
+            bundle = service.getPurchases(API_VERSION, mContext.getPackageName(), subscription ? "subs" : "inapp", continuationToken);
+        } catch (RemoteException ex) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not query owned items", ex);
+            callback.onFailure(RESULT_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        int responseCode = bundle == null ? RESULT_ERROR : bundle.getInt(RESPONSE_CODE);
+        if (responseCode != 0) {
+            callback.onFailure(responseCode);
+            return;
+        }
+
+        ArrayList<String> purchases = bundle.getStringArrayList(PURCHASE_DATA_LIST);
+        ArrayList<String> signatures = bundle.getStringArrayList(SIGNATURE_LIST);
+        List<String> productIds = new ArrayList<>(purchases == null ? 0 : purchases.size());
+        if (purchases != null) {
+            for (int i = 0; i < purchases.size(); i++) {
+                String signature = signatures != null && i < signatures.size() ? signatures.get(i) : null;
+                PurchaseInfo info = new PurchaseInfo(purchases.get(i), signature);
+                PurchaseData data = info.purchaseData;
+                if (data == null) {
+                    continue;
+                }
+                if (signature == null || !mProcessor.isValidTransactionDetails(new TransactionDetails(info))) {
+                    Log.w(InAppBillingBridge.LOG_TAG, "Skipping owned item with an invalid signature: " + data.productId);
+                    continue;
+                }
+                productIds.add(data.productId);
+            }
+        }
+        callback.onSuccess(new OwnedPage(productIds, bundle.getString(CONTINUATION_TOKEN)));
+    }
+
+    /**
+     * Binds the billing service on first use and waits for the connection, which arrives on
+     * the main thread. Paged queries run on a billing thread, so the wait cannot block it.
+     *
+     * @return null if the service could not be bound in time, or the backend was released
+     */
+    private IInAppBillingService awaitService() {
+        synchronized (mConnection) {
+            if (mService != null || mReleased) {
+                return mService;
+            }
+            if (!mBound) {
+                try {
+                    mBound = mContext.bindService(new Intent(SERVICE_ACTION).setPackage(SERVICE_PACKAGE), mConnection, Context.BIND_AUTO_CREATE);
+                } catch (SecurityException ex) {
+                    Log.w(InAppBillingBridge.LOG_TAG, "Could not bind the billing service for paged queries", ex);
+                }
+                if (!mBound) {
+                    return null;
+                }
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BIND_TIMEOUT_MS);
+            long remaining;
+            while (mService == null && !mReleased && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mConnection, remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return mService;
+        }
+    }
+
+    private static void complete(Callback<Void> callback, boolean succeeded, QueryState state) {
+        if (succeeded) {
+            callback.onSuccess(null);
+        } else {
+            callback.onFailure(state.lastError);
+        }
+    }
+
+    /**
+     * @param result null if BillingProcessor reported a failure
+     */
+    private static <T> void complete(Callback<T> callback, T result, QueryState state) {
+        if (result != null) {
+            callback.onSuccess(result);
+        } else {
+            callback.onFailure(state.lastError);
+        }
+    }
+
+    private QueryState beginQuery() {
+        QueryState state = mQueryState.get();
+        state.active = true;
+        state.lastError = 0;
+        return state;
+    }
+
+    private static final class QueryState {
+        boolean active;
+        int lastError;
+    }
+
+    private static final class OwnedDetails {
+        final int version;
+        final List<TransactionDetails> products;
+        final List<TransactionDetails> subscriptions;
+
+        OwnedDetails(int version, List<TransactionDetails> products, List<TransactionDetails> subscriptions) {
+            this.version = version;
+            // Shared by every caller until the cache changes.
+            this.products = Collections.unmodifiableList(products);
+            this.subscriptions = Collections.unmodifiableList(subscriptions);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.idehub.Billing;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter. The delay for an attempt is drawn uniformly from the
+ * upper half of the exponential window, so callers retrying at the same time spread out.
+ */
+class Backoff {
+    private static final int MAX_SHIFT = 16;
+
+    private final long mBaseMs;
+    private final long mMaxMs;
+    private final Random mRandom = new Random();
+
+    Backoff(long baseMs, long maxMs) {
+        mBaseMs = Math.max(1, baseMs);
+        mMaxMs = Math.max(mBaseMs, maxMs);
+    }
+
+    /**
+     * @param attempt zero-based number of the attempt that just failed
+     */
+    long delayMs(int attempt) {
+        long window = Math.min(mMaxMs, mBaseMs << Math.min(Math.max(0, attempt), MAX_SHIFT));
+        long half = window / 2;
+        synchronized (mRandom) {
+            return half + (long) (mRandom.nextDouble() * (window - half));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.idehub.Billing;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+
+import com.anjlab.android.iab.v3.SkuDetails;
+import com.anjlab.android.iab.v3.TransactionDetails;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The billing service the bridge talks to. Mirrors the parts of anjlab's BillingProcessor
+ * the bridge uses, so the bridge can run against Google Play or an in-memory fake.
+ *
+ * Apart from {@link #handleActivityResult} and {@link #release}, methods are only called from
+ * the billing executor. Calls that go to Google Play report their result through a
+ * {@link Callback}, so a backend with an asynchronous client never parks an executor thread
+ * while it waits. Other calls read local state and return right away.
+ */
+public interface BillingBackend {
+    /**
+     * Reported to {@link Listener#onBillingError(int, Throwable)} when a purchase flow ends
+     * with a pending payment, e.g. cash at a store. The purchase is reported once it
+     * completes. Not a Google Play response code.
+     */
+    int BILLING_ERROR_PURCHASE_PENDING = 200;
+
+    /**
+     * The result of a call to Google Play. Exactly one method is called, once, on any thread.
+     */
+    interface Callback<T> {
+        void onSuccess(T result);
+
+        /**
+         * @param responseCode the Google Play response code, or 0 if the call failed without one
+         */
+        void onFailure(int responseCode);
+    }
+
+    boolean isInitialized();
+
+    void release();
+
+    boolean handleActivityResult(int requestCode, int resultCode, Intent data);
+
+    void loadOwnedPurchasesFromGoogle(Callback<Void> callback);
+
+    /**
+     * Starts a purchase flow without waiting for Google Play. Its outcome is reported to
+     * the {@link Listener}.
+     *
+     * @return false if the flow could not be started
+     */
+    boolean purchase(Activity activity, String productId, String developerPayload);
+
+    boolean subscribe(Activity activity, String productId, String developerPayload);
+
+    boolean updateSubscription(Activity activity, List<String> oldProductIds, String productId, String developerPayload);
+
+    void consumePurchase(String productId, Callback<Void> callback);
+
+    boolean isPurchased(String productId);
+
+    boolean isSubscribed(String productId);
+
+    boolean isOneTimePurchaseSupported();
+
+    boolean isValidTransactionDetails(TransactionDetails details);
+
+    List<String> listOwnedProducts();
+
+    List<String> listOwnedSubscriptions();
+
+    TransactionDetails getPurchaseTransactionDetails(String productId);
+
+    TransactionDetails getSubscriptionTransactionDetails(String productId);
+
+    /**
+     * @return the transaction details of every owned product, in one pass; the list may be
+     *         shared between calls and must not be modified
+     */
+    List<TransactionDetails> getAllPurchaseTransactionDetails();
+
+    /**
+     * @return the transaction details of every owned subscription, in one pass; the list may
+     *         be shared between calls and must not be modified
+     */
+    List<TransactionDetails> getAllSubscriptionTransactionDetails();
+
+    /**
+     * Reports the details of the products that exist.
+     */
+    void getPurchaseListingDetails(ArrayList<String> productIds, Callback<List<SkuDetails>> callback);
+
+    void getSubscriptionListingDetails(ArrayList<String> productIds, Callback<List<SkuDetails>> callback);
+
+    /**
+     * Fetches the listing details of the given products and keeps whatever the backend
+     * needs to start their purchase flows, so a following {@link #purchase}, {@link #subscribe}
+     * or {@link #updateSubscription} starts without a round trip. Prepared state expires
+     * after a short while. Reports the details of the products that exist.
+     */
+    void preparePurchase(ArrayList<String> productIds, boolean subscription, Callback<List<SkuDetails>> callback);
+
+    /**
+     * Reports one page of the owned products or subscriptions, straight from Google Play.
+     *
+     * @param continuationToken the token of the previous page, or null for the first page
+     * @param pageSize          a hint; Google Play may decide the page size itself
+     */
+    void getOwnedPage(boolean subscription, String continuationToken, int pageSize, Callback<OwnedPage> callback);
+
+    /**
+     * One page of owned product ids.
+     */
+    final class OwnedPage {
+        final List<String> productIds;
+        // Where the next page starts, or null on the last page.
+        final String continuationToken;
+
+        OwnedPage(List<String> productIds, String continuationToken) {
+            this.productIds = productIds;
+            this.continuationToken = continuationToken;
+        }
+
+        /**
+         * Cuts a page out of a complete list, for clients that do not page themselves.
+         * The token is the offset of the page.
+         *
+         * @return null if the token is not an offset
+         */
+        static OwnedPage slice(List<String> productIds, String continuationToken, int pageSize) {
+            int offset = 0;
+            if (continuationToken != null) {
+                try {
+                    offset = Integer.parseInt(continuationToken);
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            }
+
+            int start = Math.min(Math.max(0, offset), productIds.size());
+            int end = Math.min(start + Math.max(1, pageSize), productIds.size());
+            return new OwnedPage(new ArrayList<>(productIds.subList(start, end)),
+                    end < productIds.size() ? String.valueOf(end) : null);
+        }
+    }
+
+    /**
+     * Receives the results of the asynchronous parts of the billing flow. Same contract
+     * as BillingProcessor.IBillingHandler. Failed queries are reported to their
+     * {@link Callback} instead, since they belong to the query rather than to a purchase flow.
+     * A backend that cannot connect reports {@link InAppBillingBridge#BILLING_ERROR_BIND_FAILED}.
+     */
+    interface Listener {
+        void onProductPurchased(String productId, TransactionDetails details);
+
+        void onPurchaseHistoryRestored();
+
+        void onBillingError(int errorCode, Throwable error);
+
+        void onBillingInitialized();
+    }
+
+    /**
+     * Creates backends. A new backend starts binding right away and reports
+     * {@link Listener#onBillingInitialized()} once it is ready.
+     */
+    interface Factory {
+        boolean isAvailable(Context context);
+
+        BillingBackend create(Context context, String licenseKey, Listener listener);
+    }
+}
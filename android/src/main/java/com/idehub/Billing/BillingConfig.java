@@ -0,0 +1,189 @@
+package com.idehub.Billing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tunables for the billing bridge. Pass an instance to {@link InAppBillingBridgePackage}
+ * to override the defaults.
+ */
+public class BillingConfig {
+    public static final long DEFAULT_PRODUCT_CACHE_TTL_MS = 60 * 60 * 1000;
+    public static final int DEFAULT_PRODUCT_CACHE_SIZE = 500;
+    public static final long DEFAULT_DETAILS_BATCH_WINDOW_MS = 16;
+    public static final long DEFAULT_OPEN_TIMEOUT_MS = 30 * 1000;
+    public static final long DEFAULT_PURCHASE_TIMEOUT_MS = 15 * 60 * 1000;
+    public static final int DEFAULT_RETRY_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_BASE_DELAY_MS = 250;
+    public static final long DEFAULT_RETRY_MAX_DELAY_MS = 5000;
+    public static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_CIRCUIT_OPEN_MS = 30 * 1000;
+    public static final int DEFAULT_RECEIPT_QUEUE_LIMIT = 1000;
+
+    long productCacheTtlMs = DEFAULT_PRODUCT_CACHE_TTL_MS;
+    int productCacheSize = DEFAULT_PRODUCT_CACHE_SIZE;
+    long detailsBatchWindowMs = DEFAULT_DETAILS_BATCH_WINDOW_MS;
+    boolean persistentSnapshot = false;
+    boolean sharedEntitlements = false;
+    boolean warmUp = false;
+    long openTimeoutMs = DEFAULT_OPEN_TIMEOUT_MS;
+    long purchaseTimeoutMs = DEFAULT_PURCHASE_TIMEOUT_MS;
+    BillingBackend.Factory backend = AnjlabBillingBackend.FACTORY;
+    int retryAttempts = DEFAULT_RETRY_ATTEMPTS;
+    long retryBaseDelayMs = DEFAULT_RETRY_BASE_DELAY_MS;
+    long retryMaxDelayMs = DEFAULT_RETRY_MAX_DELAY_MS;
+    int circuitFailureThreshold = DEFAULT_CIRCUIT_FAILURE_THRESHOLD;
+    long circuitOpenMs = DEFAULT_CIRCUIT_OPEN_MS;
+    String receiptUploadEndpoint = null;
+    final Map<String, String> receiptUploadHeaders = new LinkedHashMap<>();
+    int receiptQueueLimit = DEFAULT_RECEIPT_QUEUE_LIMIT;
+    BillingMapper.Payloads payloads = BillingMapper.ARGUMENTS;
+    // The shortest watchProductDetails interval. Not public; tests shorten it.
+    long minWatchIntervalMs = InAppBillingBridge.MIN_WATCH_INTERVAL_MS;
+
+    /**
+     * How long fetched product and subscription details are served from memory
+     * before they are fetched from Google Play again. Use 0 to disable the cache.
+     */
+    public BillingConfig setProductCacheTtl(long ttlMs) {
+        productCacheTtlMs = Math.max(0, ttlMs);
+        return this;
+    }
+
+    /**
+     * Maximum number of product and subscription details kept in memory. The least
+     * recently used entries are evicted first.
+     */
+    public BillingConfig setProductCacheSize(int maxEntries) {
+        productCacheSize = Math.max(0, maxEntries);
+        return this;
+    }
+
+    /**
+     * How long product and subscription detail lookups are collected before they are
+     * sent to Google Play as one batched query. Use 0 to query immediately.
+     */
+    public BillingConfig setDetailsBatchWindow(long windowMs) {
+        detailsBatchWindowMs = Math.max(0, windowMs);
+        return this;
+    }
+
+    /**
+     * Keeps the last known SKU details and entitlements in app storage so they can be
+     * served on cold start before the Google Play service is bound.
+     */
+    public BillingConfig setPersistentSnapshot(boolean enabled) {
+        persistentSnapshot = enabled;
+        return this;
+    }
+
+    /**
+     * Publishes the owned products and subscriptions to a file other processes can read
+     * with {@link BillingEntitlements#read}, and serves the synchronous entitlement reads
+     * from it until the first refresh.
+     */
+    public BillingConfig setSharedEntitlements(boolean enabled) {
+        sharedEntitlements = enabled;
+        return this;
+    }
+
+    /**
+     * Binds the billing service in the background as soon as the module is created and
+     * keeps it bound, reconnecting with backoff if the service disconnects. Calls made
+     * while reconnecting are queued instead of failing, open() resolves with the warm
+     * connection and close() leaves it bound.
+     */
+    public BillingConfig setWarmUp(boolean enabled) {
+        warmUp = enabled;
+        return this;
+    }
+
+    /**
+     * How long open() may wait for the billing service before it is rejected with
+     * E_TIMEOUT. Use 0 to wait indefinitely.
+     */
+    public BillingConfig setOpenTimeout(long timeoutMs) {
+        openTimeoutMs = Math.max(0, timeoutMs);
+        return this;
+    }
+
+    /**
+     * How long a purchase, subscribe or updateSubscription flow may stay unresolved
+     * before it is rejected with E_TIMEOUT, e.g. when its activity result was lost.
+     * Use 0 to wait indefinitely.
+     */
+    public BillingConfig setPurchaseTimeout(long timeoutMs) {
+        purchaseTimeoutMs = Math.max(0, timeoutMs);
+        return this;
+    }
+
+    /**
+     * The billing service to talk to. Defaults to Google Play. Pass a
+     * {@link PlayBillingBackend#FACTORY} for the Play Billing Library, or a
+     * {@link FakeBillingBackend.Factory} to run against an in-memory catalog.
+     */
+    public BillingConfig setBackend(BillingBackend.Factory factory) {
+        backend = factory == null ? AnjlabBillingBackend.FACTORY : factory;
+        return this;
+    }
+
+    /**
+     * How often idempotent queries (product and subscription details, loading owned
+     * purchases) are attempted when Google Play reports E_SERVICE_UNAVAILABLE or
+     * E_API_ERROR. Retries back off exponentially with jitter between the two delays.
+     * Use 1 attempt to disable retries.
+     */
+    public BillingConfig setRetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        retryAttempts = Math.max(1, maxAttempts);
+        retryBaseDelayMs = Math.max(1, baseDelayMs);
+        retryMaxDelayMs = Math.max(retryBaseDelayMs, maxDelayMs);
+        return this;
+    }
+
+    /**
+     * After this many transient failures in a row, queries stop going to Google Play for
+     * openMs: product details are served from cache where possible and other queries fail
+     * fast with E_SERVICE_UNAVAILABLE. Use a threshold of 0 to disable.
+     */
+    public BillingConfig setCircuitBreaker(int failureThreshold, long openMs) {
+        circuitFailureThreshold = Math.max(0, failureThreshold);
+        circuitOpenMs = Math.max(0, openMs);
+        return this;
+    }
+
+    /**
+     * Uploads the receipt of every purchase and restored purchase to the given URL for
+     * server-side verification, batched and gzipped. Receipts wait in app storage until
+     * the server accepts them. Use null to disable.
+     */
+    public BillingConfig setReceiptUpload(String endpoint) {
+        receiptUploadEndpoint = endpoint;
+        return this;
+    }
+
+    /**
+     * Adds a header to receipt uploads, for instance for authentication.
+     */
+    public BillingConfig addReceiptUploadHeader(String name, String value) {
+        receiptUploadHeaders.put(name, value);
+        return this;
+    }
+
+    /**
+     * Maximum number of receipts waiting for upload. Further receipts are dropped until
+     * the queue drains, and queued again when purchases are next restored.
+     */
+    public BillingConfig setReceiptQueueLimit(int maxReceipts) {
+        receiptQueueLimit = Math.max(1, maxReceipts);
+        return this;
+    }
+
+    /**
+     * Creates the maps and arrays handed to JS. Plain JVM tests pass Java-only ones, since
+     * they cannot load the React Native libraries.
+     */
+    BillingConfig setPayloads(BillingMapper.Payloads factory) {
+        payloads = factory == null ? BillingMapper.ARGUMENTS : factory;
+        return this;
+    }
+}
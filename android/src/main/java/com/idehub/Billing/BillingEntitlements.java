@@ -0,0 +1,195 @@
+package com.idehub.Billing;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The owned products and subscriptions last seen by the billing module, shared through a
+ * small file in app storage. Other processes, background services and headless JS tasks
+ * can check entitlements with it without binding the Google Play service. Requires
+ * {@link BillingConfig#setSharedEntitlements(boolean)}.
+ *
+ * <pre>
+ * BillingEntitlements entitlements = BillingEntitlements.read(context);
+ * if (entitlements != null &amp;&amp; entitlements.isSubscribed("premium")) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * Layout: magic, format version, version, update time, owned product ids and owned
+ * subscription ids, stored like in {@link BillingSnapshotStore}. The module rewrites the
+ * file whenever the owned items change, through a temporary file that is renamed into
+ * place, so readers take no lock and only ever see a complete file. Writers hold a file
+ * lock, so versions increase by one per write even across processes. File locks belong to
+ * the whole process, so writers in one process also take a lock in memory.
+ */
+public final class BillingEntitlements {
+    static final String FILE_NAME = "entitlements.bin";
+    private static final int MAGIC = 0x524e4245;
+    private static final int FORMAT_VERSION = 1;
+    // A second FileLock on the same file in one process throws instead of waiting.
+    private static final Object WRITE_LOCK = new Object();
+
+    private final long mVersion;
+    private final long mUpdatedAt;
+    private final List<String> mProducts;
+    private final List<String> mSubscriptions;
+    private final Set<String> mProductSet;
+    private final Set<String> mSubscriptionSet;
+
+    private BillingEntitlements(long version, long updatedAt, List<String> products, List<String> subscriptions) {
+        mVersion = version;
+        mUpdatedAt = updatedAt;
+        mProducts = products;
+        mSubscriptions = subscriptions;
+        mProductSet = Collections.unmodifiableSet(new HashSet<>(products));
+        mSubscriptionSet = Collections.unmodifiableSet(new HashSet<>(subscriptions));
+    }
+
+    /**
+     * Reads the entitlements the billing module published last. Safe to call from any
+     * thread and process of the app.
+     *
+     * @return the entitlements, or null if none were published or the file cannot be read
+     */
+    public static BillingEntitlements read(Context context) {
+        return read(file(context));
+    }
+
+    static File file(Context context) {
+        return new File(new File(context.getFilesDir(), InAppBillingBridge.SNAPSHOT_DIRECTORY), FILE_NAME);
+    }
+
+    /**
+     * Increases with every publish, across processes.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * When the entitlements were published, in milliseconds since the epoch.
+     */
+    public long getUpdatedAt() {
+        return mUpdatedAt;
+    }
+
+    public List<String> getProducts() {
+        return mProducts;
+    }
+
+    public List<String> getSubscriptions() {
+        return mSubscriptions;
+    }
+
+    public boolean isPurchased(String productId) {
+        return mProductSet.contains(productId);
+    }
+
+    public boolean isSubscribed(String productId) {
+        return mSubscriptionSet.contains(productId);
+    }
+
+    static BillingEntitlements read(File source) {
+        if (!source.exists()) {
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(source, "r");
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+
+            long version = buffer.getLong();
+            long updatedAt = buffer.getLong();
+            List<String> products = BillingSnapshotStore.readStrings(buffer);
+            List<String> subscriptions = BillingSnapshotStore.readStrings(buffer);
+            return new BillingEntitlements(version, updatedAt, products, subscriptions);
+        } catch (Exception ex) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not read shared entitlements", ex);
+            return null;
+        } finally {
+            BillingSnapshotStore.closeQuietly(file);
+        }
+    }
+
+    /**
+     * Publishes the entitlements with the next version.
+     */
+    static boolean write(File target, List<String> products, List<String> subscriptions) {
+        synchronized (WRITE_LOCK) {
+            return writeLocked(target, products, subscriptions);
+        }
+    }
+
+    private static boolean writeLocked(File target, List<String> products, List<String> subscriptions) {
+        File directory = target.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not create shared entitlements directory");
+            return false;
+        }
+
+        File temp = new File(directory, target.getName() + ".tmp");
+        RandomAccessFile lockFile = null;
+        try {
+            // Only writers lock, to serialize version bumps between processes.
+            lockFile = new RandomAccessFile(new File(directory, target.getName() + ".lock"), "rw");
+            FileLock lock = lockFile.getChannel().lock();
+            FileOutputStream stream = null;
+            try {
+                BillingEntitlements current = read(target);
+                long version = current == null ? 1 : current.mVersion + 1;
+
+                stream = new FileOutputStream(temp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(version);
+                out.writeLong(System.currentTimeMillis());
+                BillingSnapshotStore.writeStrings(out, products);
+                BillingSnapshotStore.writeStrings(out, subscriptions);
+                out.flush();
+                stream.getFD().sync();
+                out.close();
+                stream = null;
+
+                if (!temp.renameTo(target)) {
+                    Log.w(InAppBillingBridge.LOG_TAG, "Could not replace shared entitlements");
+                    return false;
+                }
+                return true;
+            } finally {
+                BillingSnapshotStore.closeQuietly(stream);
+                if (temp.exists()) {
+                    temp.delete();
+                }
+                lock.release();
+            }
+        } catch (IOException ex) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not write shared entitlements", ex);
+            return false;
+        } finally {
+            BillingSnapshotStore.closeQuietly(lockFile);
+        }
+    }
+}
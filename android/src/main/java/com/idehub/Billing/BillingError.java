@@ -0,0 +1,22 @@
+package com.idehub.Billing;
+
+/**
+ * A failed billing call, carrying the code the promise is rejected with.
+ */
+class BillingError extends Exception {
+    final String code;
+    // The Google Play response code, or 0 if the failure did not come from Google Play.
+    final int responseCode;
+
+    BillingError(int responseCode, String message) {
+        super(message);
+        this.code = InAppBillingBridge.getResponseCode(responseCode);
+        this.responseCode = responseCode;
+    }
+
+    BillingError(String code, String message) {
+        super(message);
+        this.code = code;
+        this.responseCode = 0;
+    }
+}
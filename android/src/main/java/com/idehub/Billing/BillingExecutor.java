@@ -0,0 +1,236 @@
+package com.idehub.Billing;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking billing work off the React Native native-modules thread.
+ *
+ * Read-only queries share a small bounded pool and may run concurrently.
+ * Tasks submitted through {@link #executeSerial(String, Runnable)} run one at a time
+ * per key, in submission order, while tasks for other keys keep running in parallel.
+ * A {@link SerialTask} keeps its key until it says it is done, so a call that waits for
+ * an asynchronous answer holds its key without holding a thread.
+ */
+class BillingExecutor {
+    /**
+     * A task that may finish after {@link #run(Runnable)} returns.
+     */
+    interface SerialTask {
+        /**
+         * @param done to be run once, when the next task of the same key may start
+         */
+        void run(Runnable done);
+    }
+
+    // States of a running serial task.
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int DETACHED = 2;
+
+    private static final int POOL_SIZE = 4;
+    private static final int MAX_QUEUED_TASKS = 256;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mPool;
+    private final ScheduledThreadPoolExecutor mScheduler;
+    private final Map<String, SerialQueue> mSerialQueues = new HashMap<>();
+
+    BillingExecutor() {
+        mPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_TASKS), new BillingThreadFactory(true));
+        mPool.allowCoreThreadTimeOut(true);
+        mScheduler = new ScheduledThreadPoolExecutor(1, new BillingThreadFactory(false));
+        mScheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mScheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    void execute(Runnable task) throws RejectedExecutionException {
+        mPool.execute(task);
+    }
+
+    /**
+     * Runs the task right away if called from a pool thread, and on the pool otherwise.
+     * For continuations of callbacks that may arrive on the main thread. If the pool
+     * rejects the task it runs on the calling thread, so a continuation is never lost.
+     */
+    void executeOrRun(Runnable task) {
+        if (Thread.currentThread() instanceof PoolThread) {
+            task.run();
+            return;
+        }
+
+        try {
+            mPool.execute(task);
+        } catch (RejectedExecutionException ex) {
+            task.run();
+        }
+    }
+
+    /**
+     * Runs a short task on the timer thread after the given delay. Blocking work should
+     * be handed over to {@link #execute(Runnable)} from there.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayMs) throws RejectedExecutionException {
+        return mScheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    void executeSerial(String key, final Runnable task) throws RejectedExecutionException {
+        executeSerial(key, new SerialTask() {
+            @Override
+            public void run(Runnable done) {
+                try {
+                    task.run();
+                } finally {
+                    done.run();
+                }
+            }
+        });
+    }
+
+    void executeSerial(String key, SerialTask task) throws RejectedExecutionException {
+        synchronized (mSerialQueues) {
+            SerialQueue queue = mSerialQueues.get(key);
+            if (queue == null) {
+                queue = new SerialQueue(key);
+                mSerialQueues.put(key, queue);
+            }
+
+            queue.tasks.add(task);
+            if (queue.active) {
+                return;
+            }
+
+            try {
+                queue.active = true;
+                mPool.execute(queue);
+            } catch (RejectedExecutionException ex) {
+                queue.active = false;
+                queue.tasks.removeLast();
+                if (queue.tasks.isEmpty()) {
+                    mSerialQueues.remove(key);
+                }
+                throw ex;
+            }
+        }
+    }
+
+    void shutdown() {
+        mScheduler.shutdownNow();
+        mPool.shutdown();
+        synchronized (mSerialQueues) {
+            mSerialQueues.clear();
+        }
+    }
+
+    private final class SerialQueue implements Runnable {
+        final String key;
+        final ArrayDeque<SerialTask> tasks = new ArrayDeque<>();
+        boolean active = false;
+
+        SerialQueue(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                SerialTask next;
+                synchronized (mSerialQueues) {
+                    next = tasks.poll();
+                    if (next == null) {
+                        active = false;
+                        mSerialQueues.remove(key);
+                        return;
+                    }
+                }
+
+                Done done = new Done(this);
+                try {
+                    next.run(done);
+                } catch (RuntimeException ex) {
+                    Log.e(InAppBillingBridge.LOG_TAG, String.format("Serial billing task failed for key: %s", key), ex);
+                    done.run();
+                }
+
+                if (done.state.compareAndSet(RUNNING, DETACHED)) {
+                    // Still waiting; done resumes the queue.
+                    return;
+                }
+            }
+        }
+
+        void resume() {
+            try {
+                mPool.execute(this);
+            } catch (RejectedExecutionException ex) {
+                if (mPool.isShutdown()) {
+                    synchronized (mSerialQueues) {
+                        tasks.clear();
+                        active = false;
+                    }
+                    return;
+                }
+                // The pool is saturated; carry on on the thread that finished the task.
+                run();
+            }
+        }
+    }
+
+    private static final class Done implements Runnable {
+        final SerialQueue queue;
+        final AtomicInteger state = new AtomicInteger(RUNNING);
+
+        Done(SerialQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            if (state.compareAndSet(RUNNING, DONE)) {
+                // Finished before the task returned; the queue loop carries on.
+                return;
+            }
+            if (state.compareAndSet(DETACHED, DONE)) {
+                queue.resume();
+            }
+        }
+    }
+
+    private static final class PoolThread extends Thread {
+        PoolThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+
+    private static final class BillingThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+        private final boolean mPool;
+
+        /**
+         * @param pool whether the threads belong to the pool, rather than the timer
+         */
+        BillingThreadFactory(boolean pool) {
+            mPool = pool;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            String name = "rnbilling-" + mCount.getAndIncrement();
+            Thread thread = mPool ? new PoolThread(runnable, name) : new Thread(runnable, name + "-timer");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
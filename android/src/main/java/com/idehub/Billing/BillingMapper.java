@@ -0,0 +1,276 @@
+package com.idehub.Billing;
+
+import com.anjlab.android.iab.v3.PurchaseData;
+import com.anjlab.android.iab.v3.SkuDetails;
+import com.anjlab.android.iab.v3.TransactionDetails;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.List;
+
+/**
+ * Converts billing library models into bridge payloads.
+ *
+ * Besides the regular one-map-per-item format, SKU details can be mapped into a columnar
+ * payload: one array per field, so each key crosses the bridge once instead of once per SKU.
+ * Nullable fields only carry their present values, with a bitmap marking the rows that have one.
+ * The JS side expands the columns back into objects (see index.js).
+ */
+final class BillingMapper {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Creates the maps and arrays handed to JS.
+     */
+    interface Payloads {
+        WritableMap createMap();
+
+        WritableArray createArray();
+    }
+
+    /**
+     * The native-backed payloads of React Native. Plain JVM tests have no React Native JNI
+     * libraries, so they pass Java-only ones through {@link BillingConfig}.
+     */
+    static final Payloads ARGUMENTS = new Payloads() {
+        @Override
+        public WritableMap createMap() {
+            return Arguments.createMap();
+        }
+
+        @Override
+        public WritableArray createArray() {
+            return Arguments.createArray();
+        }
+    };
+
+    private final Payloads mPayloads;
+
+    BillingMapper(Payloads payloads) {
+        mPayloads = payloads;
+    }
+
+    /**
+     * Creates the maps handed to JS. Use this instead of Arguments.createMap().
+     */
+    WritableMap createMap() {
+        return mPayloads.createMap();
+    }
+
+    WritableArray createArray() {
+        return mPayloads.createArray();
+    }
+
+    WritableArray mapSkuDetailsList(List<SkuDetails> details, boolean subscription) {
+        WritableArray arr = createArray();
+        for (SkuDetails detail : details) {
+            if (detail != null) {
+                arr.pushMap(mapSkuDetails(detail, subscription));
+            }
+        }
+        return arr;
+    }
+
+    WritableMap mapSkuDetails(SkuDetails detail, boolean subscription) {
+        WritableMap map = createMap();
+
+        map.putString("productId", detail.productId);
+        map.putString("title", detail.title);
+        map.putString("description", detail.description);
+        map.putBoolean("isSubscription", detail.isSubscription);
+        map.putString("currency", detail.currency);
+        map.putDouble("priceValue", detail.priceValue);
+        map.putString("priceText", detail.priceText);
+
+        if (subscription) {
+            map.putString("subscriptionPeriod", detail.subscriptionPeriod);
+            if (detail.subscriptionFreeTrialPeriod != null)
+                map.putString("subscriptionFreeTrialPeriod", detail.subscriptionFreeTrialPeriod);
+            map.putBoolean("haveTrialPeriod", detail.haveTrialPeriod);
+            map.putDouble("introductoryPriceValue", detail.introductoryPriceValue);
+            if (detail.introductoryPriceText != null)
+                map.putString("introductoryPriceText", detail.introductoryPriceText);
+            if (detail.introductoryPricePeriod != null)
+                map.putString("introductoryPricePeriod", detail.introductoryPricePeriod);
+            map.putBoolean("haveIntroductoryPeriod", detail.haveIntroductoryPeriod);
+            map.putInt("introductoryPriceCycles", detail.introductoryPriceCycles);
+        }
+
+        return map;
+    }
+
+    /**
+     * Maps the details into {@code {count, columns, sparse}}. {@code columns} holds one array
+     * of length {@code count} per always-present field. {@code sparse} holds, per optional offer
+     * field, {@code {present, values}} where {@code present} is a bitmap of 32-bit words (bit
+     * {@code i % 32} of word {@code i / 32} is set when row {@code i} has a value) and
+     * {@code values} only contains the present values, in row order. Google Play reports a
+     * missing offer as an empty string, so empty values are left out like nulls; rows
+     * without a value read as an empty string.
+     */
+    WritableMap mapSkuDetailsColumns(List<SkuDetails> details, boolean subscription) {
+        int count = 0;
+        for (SkuDetails detail : details) {
+            if (detail != null) {
+                count++;
+            }
+        }
+
+        WritableArray productId = createArray();
+        WritableArray title = createArray();
+        WritableArray description = createArray();
+        WritableArray isSubscription = createArray();
+        WritableArray currency = createArray();
+        WritableArray priceValue = createArray();
+        WritableArray priceText = createArray();
+
+        WritableArray subscriptionPeriod = subscription ? createArray() : null;
+        WritableArray haveTrialPeriod = subscription ? createArray() : null;
+        WritableArray introductoryPriceValue = subscription ? createArray() : null;
+        WritableArray haveIntroductoryPeriod = subscription ? createArray() : null;
+        WritableArray introductoryPriceCycles = subscription ? createArray() : null;
+        SparseColumn subscriptionFreeTrialPeriod = subscription ? new SparseColumn(count) : null;
+        SparseColumn introductoryPriceText = subscription ? new SparseColumn(count) : null;
+        SparseColumn introductoryPricePeriod = subscription ? new SparseColumn(count) : null;
+
+        int row = 0;
+        for (SkuDetails detail : details) {
+            if (detail == null) {
+                continue;
+            }
+
+            productId.pushString(detail.productId);
+            title.pushString(detail.title);
+            description.pushString(detail.description);
+            isSubscription.pushBoolean(detail.isSubscription);
+            currency.pushString(detail.currency);
+            priceValue.pushDouble(detail.priceValue);
+            priceText.pushString(detail.priceText);
+
+            if (subscription) {
+                subscriptionPeriod.pushString(detail.subscriptionPeriod);
+                haveTrialPeriod.pushBoolean(detail.haveTrialPeriod);
+                introductoryPriceValue.pushDouble(detail.introductoryPriceValue);
+                haveIntroductoryPeriod.pushBoolean(detail.haveIntroductoryPeriod);
+                introductoryPriceCycles.pushInt(detail.introductoryPriceCycles);
+                subscriptionFreeTrialPeriod.add(row, detail.subscriptionFreeTrialPeriod);
+                introductoryPriceText.add(row, detail.introductoryPriceText);
+                introductoryPricePeriod.add(row, detail.introductoryPricePeriod);
+            }
+            row++;
+        }
+
+        WritableMap columns = createMap();
+        columns.putArray("productId", productId);
+        columns.putArray("title", title);
+        columns.putArray("description", description);
+        columns.putArray("isSubscription", isSubscription);
+        columns.putArray("currency", currency);
+        columns.putArray("priceValue", priceValue);
+        columns.putArray("priceText", priceText);
+
+        WritableMap sparse = createMap();
+
+        if (subscription) {
+            columns.putArray("subscriptionPeriod", subscriptionPeriod);
+            columns.putArray("haveTrialPeriod", haveTrialPeriod);
+            columns.putArray("introductoryPriceValue", introductoryPriceValue);
+            columns.putArray("haveIntroductoryPeriod", haveIntroductoryPeriod);
+            columns.putArray("introductoryPriceCycles", introductoryPriceCycles);
+            sparse.putMap("subscriptionFreeTrialPeriod", subscriptionFreeTrialPeriod.toMap());
+            sparse.putMap("introductoryPriceText", introductoryPriceText.toMap());
+            sparse.putMap("introductoryPricePeriod", introductoryPricePeriod.toMap());
+        }
+
+        WritableMap map = createMap();
+        map.putInt("count", count);
+        map.putMap("columns", columns);
+        map.putMap("sparse", sparse);
+        return map;
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the fields that make up a SKU's offer: price, currency,
+     * billing period, trial and introductory price. Title and description are left out,
+     * so only offer changes change the hash.
+     */
+    static long fingerprint(SkuDetails detail) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = fingerprint(hash, detail.priceText);
+        hash = fingerprint(hash, String.valueOf(detail.priceValue));
+        hash = fingerprint(hash, detail.currency);
+        hash = fingerprint(hash, detail.subscriptionPeriod);
+        hash = fingerprint(hash, detail.subscriptionFreeTrialPeriod);
+        hash = fingerprint(hash, detail.introductoryPriceText);
+        hash = fingerprint(hash, String.valueOf(detail.introductoryPriceValue));
+        hash = fingerprint(hash, detail.introductoryPricePeriod);
+        hash = fingerprint(hash, String.valueOf(detail.introductoryPriceCycles));
+        return hash;
+    }
+
+    private static long fingerprint(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // Terminates each field, and tells null apart from an empty string.
+        return (hash ^ (value == null ? 0x10000 : 0x10001)) * FNV_PRIME;
+    }
+
+    WritableMap mapTransactionDetails(TransactionDetails details) {
+        WritableMap map = createMap();
+
+        map.putString("receiptData", details.purchaseInfo.responseData);
+
+        if (details.purchaseInfo.signature != null)
+            map.putString("receiptSignature", details.purchaseInfo.signature);
+
+        PurchaseData purchaseData = details.purchaseInfo.purchaseData;
+
+        map.putString("productId", purchaseData.productId);
+        map.putString("orderId", purchaseData.orderId);
+        map.putString("purchaseToken", purchaseData.purchaseToken);
+        map.putString("purchaseTime", purchaseData.purchaseTime == null
+                ? "" : purchaseData.purchaseTime.toString());
+        map.putString("purchaseState", purchaseData.purchaseState == null
+                ? "" : purchaseData.purchaseState.toString());
+        map.putBoolean("autoRenewing", purchaseData.autoRenewing);
+
+        if (purchaseData.developerPayload != null) {
+            map.putString("developerPayload", purchaseData.developerPayload);
+        }
+
+        return map;
+    }
+
+    private final class SparseColumn {
+        final int[] present;
+        final WritableArray values = createArray();
+
+        SparseColumn(int rows) {
+            present = new int[(rows + 31) / 32];
+        }
+
+        void add(int row, String value) {
+            if (value != null && !value.isEmpty()) {
+                present[row >>> 5] |= 1 << (row & 31);
+                values.pushString(value);
+            }
+        }
+
+        WritableMap toMap() {
+            WritableArray bitmap = createArray();
+            for (int word : present) {
+                bitmap.pushInt(word);
+            }
+
+            WritableMap map = createMap();
+            map.putArray("present", bitmap);
+            map.putArray("values", values);
+            return map;
+        }
+    }
+}
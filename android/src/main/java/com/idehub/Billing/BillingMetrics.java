@@ -0,0 +1,214 @@
+package com.idehub.Billing;
+
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the bridge.
+ *
+ * Recording is lock-free: metrics are looked up in concurrent maps and updated with
+ * atomics, so it never blocks a billing thread. Latencies go into log2 buckets of
+ * microseconds, which keeps every histogram at a fixed size and makes percentiles
+ * accurate to a factor of two.
+ */
+class BillingMetrics {
+    static final String CACHE_PRODUCT_DETAILS = "productDetails";
+    static final String CACHE_VERIFICATION = "verification";
+
+    private static final int BUCKETS = 40;
+
+    private final long mStartedAt = System.currentTimeMillis();
+    private final ConcurrentHashMap<String, Timer> mTimers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CacheStats> mCaches = new ConcurrentHashMap<>();
+
+    /**
+     * Records one call that started at {@code startNanos} (from {@link System#nanoTime()}).
+     */
+    void record(String name, long startNanos, boolean failed) {
+        timer(name).record(System.nanoTime() - startNanos, failed);
+    }
+
+    void increment(String name) {
+        add(name, 1);
+    }
+
+    void add(String name, long delta) {
+        AtomicLong counter = mCounters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    /**
+     * @return the current value of a counter, or 0 if it was never incremented
+     */
+    long counter(String name) {
+        AtomicLong counter = mCounters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    void cacheLookup(String cache, int hits, int misses) {
+        CacheStats stats = mCaches.get(cache);
+        if (stats == null) {
+            CacheStats created = new CacheStats();
+            stats = mCaches.putIfAbsent(cache, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        stats.hits.addAndGet(hits);
+        stats.misses.addAndGet(misses);
+    }
+
+    void reset() {
+        mTimers.clear();
+        mCounters.clear();
+        mCaches.clear();
+    }
+
+    /**
+     * Maps the current values into {@code {uptimeMs, timers, counters, caches}}. Values
+     * recorded concurrently may or may not be included.
+     */
+    WritableMap toWritableMap(BillingMapper mapper) {
+        WritableMap timers = mapper.createMap();
+        for (Map.Entry<String, Timer> entry : mTimers.entrySet()) {
+            timers.putMap(entry.getKey(), entry.getValue().toWritableMap(mapper));
+        }
+
+        WritableMap counters = mapper.createMap();
+        for (Map.Entry<String, AtomicLong> entry : mCounters.entrySet()) {
+            counters.putDouble(entry.getKey(), entry.getValue().get());
+        }
+
+        WritableMap caches = mapper.createMap();
+        for (Map.Entry<String, CacheStats> entry : mCaches.entrySet()) {
+            caches.putMap(entry.getKey(), entry.getValue().toWritableMap(mapper));
+        }
+
+        WritableMap map = mapper.createMap();
+        map.putDouble("uptimeMs", System.currentTimeMillis() - mStartedAt);
+        map.putMap("timers", timers);
+        map.putMap("counters", counters);
+        map.putMap("caches", caches);
+        return map;
+    }
+
+    private Timer timer(String name) {
+        Timer timer = mTimers.get(name);
+        if (timer == null) {
+            Timer created = new Timer();
+            timer = mTimers.putIfAbsent(name, created);
+            if (timer == null) {
+                timer = created;
+            }
+        }
+        return timer;
+    }
+
+    private static final class Timer {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long elapsedNanos, boolean failed) {
+            long micros = Math.max(0, elapsedNanos / 1000);
+
+            count.incrementAndGet();
+            if (failed) {
+                errors.incrementAndGet();
+            }
+            totalMicros.addAndGet(micros);
+            buckets.incrementAndGet(bucket(micros));
+
+            long max = maxMicros.get();
+            while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+                max = maxMicros.get();
+            }
+        }
+
+        WritableMap toWritableMap(BillingMapper mapper) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+
+            long calls = count.get();
+            WritableMap map = mapper.createMap();
+            map.putDouble("count", calls);
+            map.putDouble("errors", errors.get());
+            map.putDouble("meanMs", calls == 0 ? 0 : totalMicros.get() / 1000.0 / calls);
+            map.putDouble("maxMs", maxMicros.get() / 1000.0);
+            map.putDouble("p50Ms", percentile(snapshot, total, 0.5));
+            map.putDouble("p90Ms", percentile(snapshot, total, 0.9));
+            map.putDouble("p99Ms", percentile(snapshot, total, 0.99));
+
+            // Bucket i counts calls that took less than 2^i microseconds, and at least 2^(i-1).
+            WritableArray histogram = mapper.createArray();
+            int last = BUCKETS - 1;
+            while (last > 0 && snapshot[last] == 0) {
+                last--;
+            }
+            for (int i = 0; i <= last; i++) {
+                histogram.pushDouble(snapshot[i]);
+            }
+            map.putArray("histogram", histogram);
+            return map;
+        }
+
+        private static int bucket(long micros) {
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given percentile, in ms
+         */
+        private static double percentile(long[] buckets, long total, double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return (1L << i) / 1000.0;
+                }
+            }
+            return (1L << (buckets.length - 1)) / 1000.0;
+        }
+    }
+
+    private static final class CacheStats {
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+
+        WritableMap toWritableMap(BillingMapper mapper) {
+            long hitCount = hits.get();
+            long missCount = misses.get();
+            long lookups = hitCount + missCount;
+
+            WritableMap map = mapper.createMap();
+            map.putDouble("hits", hitCount);
+            map.putDouble("misses", missCount);
+            map.putDouble("hitRatio", lookups == 0 ? 0 : (double) hitCount / lookups);
+            return map;
+        }
+    }
+}
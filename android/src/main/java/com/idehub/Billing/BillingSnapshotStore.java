@@ -0,0 +1,200 @@
+package com.idehub.Billing;
+
+import android.util.Log;
+
+import com.anjlab.android.iab.v3.SkuDetails;
+
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persists the last known SKU details and entitlements in a compact binary file so they
+ * can be served on cold start before the Google Play service is bound.
+ *
+ * Layout: magic, format version, save time, then product details, subscription details,
+ * owned product ids and owned subscription ids. Each list is a count followed by
+ * length-prefixed UTF-8 strings; details are stored as the JSON Google Play returned.
+ * Writes go to a temporary file that is renamed over the snapshot, so readers only
+ * ever see a complete file.
+ */
+class BillingSnapshotStore {
+    private static final int MAGIC = 0x524e4253;
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final class Snapshot {
+        final long savedAt;
+        final List<SkuDetails> products;
+        final List<SkuDetails> subscriptions;
+        final List<String> ownedProducts;
+        final List<String> ownedSubscriptions;
+
+        Snapshot(long savedAt, List<SkuDetails> products, List<SkuDetails> subscriptions,
+                 List<String> ownedProducts, List<String> ownedSubscriptions) {
+            this.savedAt = savedAt;
+            this.products = products;
+            this.subscriptions = subscriptions;
+            this.ownedProducts = ownedProducts;
+            this.ownedSubscriptions = ownedSubscriptions;
+        }
+    }
+
+    private final File mFile;
+
+    BillingSnapshotStore(File directory) {
+        mFile = new File(directory, "snapshot.bin");
+    }
+
+    /**
+     * Maps the snapshot file read-only and decodes it.
+     *
+     * @return the snapshot, or null if there is none or it cannot be read
+     */
+    Snapshot read() {
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+
+            long savedAt = buffer.getLong();
+            List<SkuDetails> products = readDetails(buffer);
+            List<SkuDetails> subscriptions = readDetails(buffer);
+            List<String> ownedProducts = readStrings(buffer);
+            List<String> ownedSubscriptions = readStrings(buffer);
+
+            return new Snapshot(savedAt, products, subscriptions, ownedProducts, ownedSubscriptions);
+        } catch (Exception ex) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not read billing snapshot", ex);
+            return null;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and atomically renames it into place.
+     */
+    boolean write(Snapshot snapshot) {
+        File directory = mFile.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not create billing snapshot directory");
+            return false;
+        }
+
+        File temp = new File(directory, mFile.getName() + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(temp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(snapshot.savedAt);
+            writeDetails(out, snapshot.products);
+            writeDetails(out, snapshot.subscriptions);
+            writeStrings(out, snapshot.ownedProducts);
+            writeStrings(out, snapshot.ownedSubscriptions);
+            out.flush();
+            stream.getFD().sync();
+            out.close();
+            stream = null;
+
+            if (!temp.renameTo(mFile)) {
+                Log.w(InAppBillingBridge.LOG_TAG, "Could not replace billing snapshot");
+                return false;
+            }
+            return true;
+        } catch (IOException ex) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not write billing snapshot", ex);
+            return false;
+        } finally {
+            closeQuietly(stream);
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static void writeDetails(DataOutputStream out, List<SkuDetails> details) throws IOException {
+        List<String> json = new ArrayList<>(details.size());
+        for (SkuDetails detail : details) {
+            if (detail != null && detail.responseData != null) {
+                json.add(detail.responseData);
+            }
+        }
+        writeStrings(out, json);
+    }
+
+    static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static List<SkuDetails> readDetails(ByteBuffer buffer) throws Exception {
+        List<String> json = readStrings(buffer);
+        List<SkuDetails> details = new ArrayList<>(json.size());
+        for (String value : json) {
+            details.add(new SkuDetails(new JSONObject(value)));
+        }
+        return details;
+    }
+
+    static List<String> readStrings(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalStateException("Corrupt billing snapshot");
+        }
+
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalStateException("Corrupt billing snapshot");
+            }
+
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            values.add(new String(bytes, UTF_8));
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            // Nothing left to do.
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.idehub.Billing;
+
+/**
+ * Stops sending queries to Google Play while it keeps failing transiently.
+ *
+ * After {@code failureThreshold} transient failures in a row the breaker opens and
+ * queries fail fast, or are served from cache, for {@code openMs}. It then lets a single
+ * probe through (half-open): success closes it again, another transient failure re-opens it.
+ */
+class CircuitBreaker {
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int mFailureThreshold;
+    private final long mOpenMs;
+
+    // Guarded by this.
+    private State mState = State.CLOSED;
+    private int mFailures = 0;
+    private long mOpenedAt = 0;
+    private long mProbeStartedAt = 0;
+
+    /**
+     * @param failureThreshold transient failures in a row that open the breaker, 0 to never open
+     */
+    CircuitBreaker(int failureThreshold, long openMs) {
+        mFailureThreshold = failureThreshold;
+        mOpenMs = Math.max(0, openMs);
+    }
+
+    /**
+     * @return false if the query should not be sent to Google Play
+     */
+    synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (mState) {
+            case OPEN:
+                if (now - mOpenedAt < mOpenMs) {
+                    return false;
+                }
+                mState = State.HALF_OPEN;
+                mProbeStartedAt = now;
+                return true;
+            case HALF_OPEN:
+                // A probe that never reported back does not keep the breaker stuck.
+                if (now - mProbeStartedAt < mOpenMs) {
+                    return false;
+                }
+                mProbeStartedAt = now;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        mState = State.CLOSED;
+        mFailures = 0;
+    }
+
+    /**
+     * @param transientFailure false if Google Play answered, just not with a result; that
+     *                         counts as the service being healthy
+     */
+    synchronized void onFailure(boolean transientFailure) {
+        if (!transientFailure) {
+            onSuccess();
+            return;
+        }
+
+        mFailures++;
+        if (mState == State.HALF_OPEN
+                || (mFailureThreshold > 0 && mFailures >= mFailureThreshold)) {
+            mState = State.OPEN;
+            mOpenedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized State getState() {
+        if (mState == State.OPEN && System.currentTimeMillis() - mOpenedAt >= mOpenMs) {
+            return State.HALF_OPEN;
+        }
+        return mState;
+    }
+}
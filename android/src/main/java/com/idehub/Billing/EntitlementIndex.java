@@ -0,0 +1,81 @@
+package com.idehub.Billing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable snapshot of the owned products and subscriptions, swapped atomically on
+ * refresh so that synchronous reads from JS never take a lock or touch the billing backend.
+ */
+class EntitlementIndex {
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+        final List<String> products;
+        final List<String> subscriptions;
+        final Set<String> productSet;
+        final Set<String> subscriptionSet;
+
+        Snapshot(List<String> products, List<String> subscriptions) {
+            this.products = Collections.unmodifiableList(new ArrayList<>(products));
+            this.subscriptions = Collections.unmodifiableList(new ArrayList<>(subscriptions));
+            this.productSet = Collections.unmodifiableSet(new HashSet<>(products));
+            this.subscriptionSet = Collections.unmodifiableSet(new HashSet<>(subscriptions));
+        }
+    }
+
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<>(Snapshot.EMPTY);
+
+    Snapshot get() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * Re-reads the owned lists from the billing backend cache.
+     *
+     * @return the snapshot that was replaced
+     */
+    Snapshot refresh(BillingBackend processor) {
+        List<String> products = processor.listOwnedProducts();
+        List<String> subscriptions = processor.listOwnedSubscriptions();
+        return set(new Snapshot(
+                products == null ? Collections.<String>emptyList() : products,
+                subscriptions == null ? Collections.<String>emptyList() : subscriptions));
+    }
+
+    Snapshot set(Snapshot snapshot) {
+        return mSnapshot.getAndSet(snapshot);
+    }
+
+    /**
+     * Sets last known entitlements, unless a refresh got there first.
+     *
+     * @return false if the index was not empty
+     */
+    boolean setIfEmpty(Snapshot snapshot) {
+        return mSnapshot.compareAndSet(Snapshot.EMPTY, snapshot);
+    }
+
+    void clear() {
+        mSnapshot.set(Snapshot.EMPTY);
+    }
+
+    /**
+     * Clears the index if it still holds the given snapshot.
+     */
+    boolean clear(Snapshot expected) {
+        return mSnapshot.compareAndSet(expected, Snapshot.EMPTY);
+    }
+
+    boolean isPurchased(String productId) {
+        return mSnapshot.get().productSet.contains(productId);
+    }
+
+    boolean isSubscribed(String productId) {
+        return mSnapshot.get().subscriptionSet.contains(productId);
+    }
+}
@@ -0,0 +1,561 @@
+package com.idehub.Billing;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+
+import com.anjlab.android.iab.v3.PurchaseInfo;
+import com.anjlab.android.iab.v3.SkuDetails;
+import com.anjlab.android.iab.v3.TransactionDetails;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory billing backend for tests, load testing and benchmarking. It needs neither
+ * Google Play nor a device, so it also works on emulators.
+ *
+ * The catalog and the owned items live in the {@link Factory}, so they survive close() and
+ * reconnects the same way Google Play state would. Purchases complete immediately, after the
+ * configured latency, without showing any UI. Calls and callbacks are delayed on the fake's
+ * own timer thread, so the latency never blocks a billing thread.
+ *
+ * <pre>
+ * FakeBillingBackend.Factory fake = new FakeBillingBackend.Factory()
+ *         .addProduct("coins_100", "100 coins", 990000, "USD")
+ *         .addSubscription("premium", "Premium", 4990000, "USD", "P1M")
+ *         .grantSubscription("premium")
+ *         .setLatency(50);
+ * new InAppBillingBridgePackage().setConfig(new BillingConfig().setBackend(fake));
+ * </pre>
+ */
+public class FakeBillingBackend implements BillingBackend {
+    public static final String SIGNATURE = "fake-signature";
+
+    private final Factory mFactory;
+    private final Listener mListener;
+    private final ScheduledThreadPoolExecutor mCallbacks;
+    private volatile boolean mInitialized = false;
+
+    FakeBillingBackend(Factory factory, Listener listener) {
+        mFactory = factory;
+        mListener = listener;
+        mCallbacks = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "rnbilling-fake");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mInitialized = true;
+                mListener.onBillingInitialized();
+            }
+        });
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return mInitialized;
+    }
+
+    @Override
+    public void release() {
+        mInitialized = false;
+        // Calls in flight still complete, like Google Play answers calls made before unbinding.
+        mCallbacks.shutdown();
+    }
+
+    @Override
+    public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
+        return false;
+    }
+
+    @Override
+    public void loadOwnedPurchasesFromGoogle(final Callback<Void> callback) {
+        query(callback, new Query<Void>() {
+            @Override
+            public Void run() {
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean purchase(Activity activity, String productId, String developerPayload) {
+        return startFlow(productId, developerPayload, false);
+    }
+
+    @Override
+    public boolean subscribe(Activity activity, String productId, String developerPayload) {
+        return startFlow(productId, developerPayload, true);
+    }
+
+    @Override
+    public boolean updateSubscription(Activity activity, final List<String> oldProductIds, String productId, String developerPayload) {
+        return startFlow(productId, developerPayload, true, oldProductIds);
+    }
+
+    private boolean startFlow(String productId, String developerPayload, boolean subscription) {
+        return startFlow(productId, developerPayload, subscription, null);
+    }
+
+    /**
+     * @param replacedProductIds subscriptions the new one replaces, or null
+     */
+    private boolean startFlow(final String productId, final String developerPayload, final boolean subscription,
+                              final List<String> replacedProductIds) {
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                final int errorCode;
+                synchronized (mFactory) {
+                    Map<String, SkuDetails> catalog = subscription ? mFactory.mSubscriptions : mFactory.mProducts;
+                    Map<String, TransactionDetails> owned = subscription ? mFactory.mOwnedSubscriptions : mFactory.mOwnedProducts;
+
+                    int injected = mFactory.nextErrorCode();
+                    if (injected != 0) {
+                        errorCode = injected;
+                    } else if (!catalog.containsKey(productId)) {
+                        errorCode = Factory.RESULT_ITEM_UNAVAILABLE;
+                    } else if (owned.containsKey(productId)) {
+                        errorCode = Factory.RESULT_ITEM_ALREADY_OWNED;
+                    } else if (mFactory.mPurchasesPending) {
+                        errorCode = BILLING_ERROR_PURCHASE_PENDING;
+                    } else {
+                        errorCode = 0;
+                        owned.put(productId, Factory.createTransactionDetails(productId, developerPayload, subscription));
+                        if (replacedProductIds != null) {
+                            for (String oldProductId : replacedProductIds) {
+                                if (!oldProductId.equals(productId)) {
+                                    owned.remove(oldProductId);
+                                }
+                            }
+                        }
+                    }
+                }
+
+                if (!mInitialized) {
+                    return;
+                }
+                if (errorCode != 0) {
+                    mListener.onBillingError(errorCode, null);
+                } else {
+                    mListener.onProductPurchased(productId, subscription
+                            ? getSubscriptionTransactionDetails(productId)
+                            : getPurchaseTransactionDetails(productId));
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void consumePurchase(final String productId, Callback<Void> callback) {
+        query(callback, new Query<Void>() {
+            @Override
+            public Void run() throws QueryFailure {
+                synchronized (mFactory) {
+                    if (mFactory.mOwnedProducts.remove(productId) == null) {
+                        throw new QueryFailure(Factory.RESULT_ITEM_NOT_OWNED);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean isPurchased(String productId) {
+        synchronized (mFactory) {
+            return mFactory.mOwnedProducts.containsKey(productId);
+        }
+    }
+
+    @Override
+    public boolean isSubscribed(String productId) {
+        synchronized (mFactory) {
+            return mFactory.mOwnedSubscriptions.containsKey(productId);
+        }
+    }
+
+    @Override
+    public boolean isOneTimePurchaseSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isValidTransactionDetails(TransactionDetails details) {
+        return details != null && SIGNATURE.equals(details.purchaseInfo.signature);
+    }
+
+    @Override
+    public List<String> listOwnedProducts() {
+        synchronized (mFactory) {
+            return new ArrayList<>(mFactory.mOwnedProducts.keySet());
+        }
+    }
+
+    @Override
+    public List<String> listOwnedSubscriptions() {
+        synchronized (mFactory) {
+            return new ArrayList<>(mFactory.mOwnedSubscriptions.keySet());
+        }
+    }
+
+    @Override
+    public TransactionDetails getPurchaseTransactionDetails(String productId) {
+        synchronized (mFactory) {
+            return mFactory.mOwnedProducts.get(productId);
+        }
+    }
+
+    @Override
+    public TransactionDetails getSubscriptionTransactionDetails(String productId) {
+        synchronized (mFactory) {
+            return mFactory.mOwnedSubscriptions.get(productId);
+        }
+    }
+
+    @Override
+    public List<TransactionDetails> getAllPurchaseTransactionDetails() {
+        synchronized (mFactory) {
+            return new ArrayList<>(mFactory.mOwnedProducts.values());
+        }
+    }
+
+    @Override
+    public List<TransactionDetails> getAllSubscriptionTransactionDetails() {
+        synchronized (mFactory) {
+            return new ArrayList<>(mFactory.mOwnedSubscriptions.values());
+        }
+    }
+
+    @Override
+    public void getPurchaseListingDetails(ArrayList<String> productIds, Callback<List<SkuDetails>> callback) {
+        getListingDetails(mFactory.mProducts, productIds, callback);
+    }
+
+    @Override
+    public void getSubscriptionListingDetails(ArrayList<String> productIds, Callback<List<SkuDetails>> callback) {
+        getListingDetails(mFactory.mSubscriptions, productIds, callback);
+    }
+
+    @Override
+    public void preparePurchase(ArrayList<String> productIds, boolean subscription, Callback<List<SkuDetails>> callback) {
+        getListingDetails(subscription ? mFactory.mSubscriptions : mFactory.mProducts, productIds, callback);
+    }
+
+    private void getListingDetails(final Map<String, SkuDetails> catalog, final List<String> productIds,
+                                   Callback<List<SkuDetails>> callback) {
+        query(callback, new Query<List<SkuDetails>>() {
+            @Override
+            public List<SkuDetails> run() {
+                synchronized (mFactory) {
+                    List<SkuDetails> details = new ArrayList<>();
+                    for (String productId : productIds) {
+                        SkuDetails detail = catalog.get(productId);
+                        if (detail != null) {
+                            details.add(detail);
+                        }
+                    }
+                    return details;
+                }
+            }
+        });
+    }
+
+    /**
+     * Pages the owned items by offset, at most {@link Factory#setOwnedPageSize} at a time.
+     */
+    @Override
+    public void getOwnedPage(final boolean subscription, final String continuationToken, final int pageSize,
+                             Callback<OwnedPage> callback) {
+        query(callback, new Query<OwnedPage>() {
+            @Override
+            public OwnedPage run() throws QueryFailure {
+                List<String> owned;
+                synchronized (mFactory) {
+                    owned = new ArrayList<>((subscription ? mFactory.mOwnedSubscriptions : mFactory.mOwnedProducts).keySet());
+                }
+
+                OwnedPage page = OwnedPage.slice(owned, continuationToken, Math.min(pageSize, mFactory.mOwnedPageSize));
+                if (page == null) {
+                    throw new QueryFailure(Factory.RESULT_DEVELOPER_ERROR);
+                }
+                return page;
+            }
+        });
+    }
+
+    private interface Query<T> {
+        T run() throws QueryFailure;
+    }
+
+    private static final class QueryFailure extends Exception {
+        final int responseCode;
+
+        QueryFailure(int responseCode) {
+            this.responseCode = responseCode;
+        }
+    }
+
+    /**
+     * Runs the query after the latency, failing it with the injected error code if one is set.
+     */
+    private <T> void query(final Callback<T> callback, final Query<T> query) {
+        boolean scheduled = deliver(new Runnable() {
+            @Override
+            public void run() {
+                int errorCode = mFactory.nextErrorCode();
+                if (errorCode != 0) {
+                    callback.onFailure(errorCode);
+                    return;
+                }
+
+                T result;
+                try {
+                    result = query.run();
+                } catch (QueryFailure failure) {
+                    callback.onFailure(failure.responseCode);
+                    return;
+                }
+                callback.onSuccess(result);
+            }
+        });
+
+        if (!scheduled) {
+            callback.onFailure(Factory.RESULT_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * @return false if the backend was released
+     */
+    private boolean deliver(Runnable callback) {
+        try {
+            mCallbacks.schedule(callback, mFactory.nextLatencyMs(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Holds the fake Google Play state and creates backends that share it. It ignores the
+     * Android context, so tests can drive the bridge on a plain JVM; pass it to
+     * {@link BillingConfig#setBackend(BillingBackend.Factory)}.
+     */
+    public static class Factory implements BillingBackend.Factory {
+        // Response codes as reported by Google Play, see InAppBillingBridge.getResponseCode.
+        public static final int RESULT_USER_CANCELED = 1;
+        public static final int RESULT_SERVICE_UNAVAILABLE = 2;
+        public static final int RESULT_BILLING_UNAVAILABLE = 3;
+        public static final int RESULT_ITEM_UNAVAILABLE = 4;
+        public static final int RESULT_DEVELOPER_ERROR = 5;
+        public static final int RESULT_ERROR = 6;
+        public static final int RESULT_ITEM_ALREADY_OWNED = 7;
+        public static final int RESULT_ITEM_NOT_OWNED = 8;
+
+        // Failures that do not depend on what is owned, injected by setErrorRate.
+        private static final int[] RANDOM_ERROR_CODES = {
+                RESULT_USER_CANCELED,
+                RESULT_SERVICE_UNAVAILABLE,
+                RESULT_BILLING_UNAVAILABLE,
+                RESULT_ERROR
+        };
+
+        final Map<String, SkuDetails> mProducts = new LinkedHashMap<>();
+        final Map<String, SkuDetails> mSubscriptions = new LinkedHashMap<>();
+        final Map<String, TransactionDetails> mOwnedProducts = new LinkedHashMap<>();
+        final Map<String, TransactionDetails> mOwnedSubscriptions = new LinkedHashMap<>();
+        volatile long mLatencyMs = 0;
+        volatile long mMaxLatencyMs = 0;
+        volatile int mErrorCode = 0;
+        volatile double mErrorRate = 0;
+        private final Random mRandom = new Random();
+        volatile boolean mPurchasesPending = false;
+        volatile boolean mAvailable = true;
+        volatile int mOwnedPageSize = 100;
+
+        public synchronized Factory addSkuDetails(SkuDetails details) {
+            (details.isSubscription ? mSubscriptions : mProducts).put(details.productId, details);
+            return this;
+        }
+
+        public Factory addProduct(String productId, String title, long priceMicros, String currency) {
+            return addSkuDetails(createSkuDetails(productId, title, priceMicros, currency, null));
+        }
+
+        public Factory addSubscription(String productId, String title, long priceMicros, String currency, String period) {
+            return addSkuDetails(createSkuDetails(productId, title, priceMicros, currency, period));
+        }
+
+        public synchronized Factory grantProduct(String productId) {
+            mOwnedProducts.put(productId, createTransactionDetails(productId, null, false));
+            return this;
+        }
+
+        public synchronized Factory grantSubscription(String productId) {
+            mOwnedSubscriptions.put(productId, createTransactionDetails(productId, null, true));
+            return this;
+        }
+
+        public synchronized Factory revoke(String productId) {
+            mOwnedProducts.remove(productId);
+            mOwnedSubscriptions.remove(productId);
+            return this;
+        }
+
+        /**
+         * Delay added to every call that would do IPC with Google Play, and to callbacks.
+         */
+        public Factory setLatency(long latencyMs) {
+            return setLatency(latencyMs, latencyMs);
+        }
+
+        /**
+         * Draws the delay of each call uniformly from minMs to maxMs, so answers arrive out
+         * of order, as they can from Google Play.
+         */
+        public Factory setLatency(long minMs, long maxMs) {
+            mLatencyMs = Math.max(0, minMs);
+            mMaxLatencyMs = Math.max(mLatencyMs, maxMs);
+            return this;
+        }
+
+        /**
+         * Makes purchase flows fail with the given response code (1-8) and queries fail
+         * outright. Use 0 to clear.
+         */
+        public Factory setErrorCode(int errorCode) {
+            mErrorCode = errorCode;
+            return this;
+        }
+
+        /**
+         * Makes the given share of purchase flows and queries, from 0 to 1, fail with a
+         * random response code: user canceled, service unavailable, billing unavailable or
+         * error. A code set with setErrorCode takes precedence.
+         */
+        public Factory setErrorRate(double rate) {
+            mErrorRate = Math.max(0, Math.min(1, rate));
+            return this;
+        }
+
+        /**
+         * Makes purchase flows end pending, as if the user chose to pay in a store, so
+         * nothing is granted.
+         */
+        public Factory setPurchasesPending(boolean pending) {
+            mPurchasesPending = pending;
+            return this;
+        }
+
+        /**
+         * The most owned items Google Play returns per page.
+         */
+        public Factory setOwnedPageSize(int pageSize) {
+            mOwnedPageSize = Math.max(1, pageSize);
+            return this;
+        }
+
+        public Factory setAvailable(boolean available) {
+            mAvailable = available;
+            return this;
+        }
+
+        @Override
+        public boolean isAvailable(Context context) {
+            return mAvailable;
+        }
+
+        /**
+         * The license key is not checked; purchases carry {@link #SIGNATURE}.
+         */
+        @Override
+        public BillingBackend create(Context context, String licenseKey, Listener listener) {
+            return new FakeBillingBackend(this, listener);
+        }
+
+        long nextLatencyMs() {
+            long min = mLatencyMs;
+            long max = mMaxLatencyMs;
+            if (max <= min) {
+                return min;
+            }
+            synchronized (mRandom) {
+                return min + (long) (mRandom.nextDouble() * (max - min + 1));
+            }
+        }
+
+        /**
+         * @return the response code the next call fails with, or 0
+         */
+        int nextErrorCode() {
+            int errorCode = mErrorCode;
+            if (errorCode != 0 || mErrorRate <= 0) {
+                return errorCode;
+            }
+            synchronized (mRandom) {
+                return mRandom.nextDouble() < mErrorRate
+                        ? RANDOM_ERROR_CODES[mRandom.nextInt(RANDOM_ERROR_CODES.length)]
+                        : 0;
+            }
+        }
+
+        static SkuDetails createSkuDetails(String productId, String title, long priceMicros, String currency, String period) {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("productId", productId);
+                json.put("type", period == null ? "inapp" : "subs");
+                json.put("title", title);
+                json.put("description", title);
+                json.put("price", String.format(Locale.US, "%.2f %s", priceMicros / 1000000.0, currency));
+                json.put("price_amount_micros", priceMicros);
+                json.put("price_currency_code", currency);
+                if (period != null) {
+                    json.put("subscriptionPeriod", period);
+                }
+                return new SkuDetails(json);
+            } catch (JSONException ex) {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+
+        static TransactionDetails createTransactionDetails(String productId, String developerPayload, boolean subscription) {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("orderId", "GPA.fake-" + UUID.randomUUID());
+                json.put("packageName", "com.idehub.Billing.fake");
+                json.put("productId", productId);
+                json.put("purchaseTime", System.currentTimeMillis());
+                json.put("purchaseState", 0);
+                json.put("purchaseToken", UUID.randomUUID().toString());
+                json.put("autoRenewing", subscription);
+                if (developerPayload != null) {
+                    json.put("developerPayload", developerPayload);
+                }
+                return new TransactionDetails(new PurchaseInfo(json.toString(), SIGNATURE));
+            } catch (JSONException ex) {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+    }
+}
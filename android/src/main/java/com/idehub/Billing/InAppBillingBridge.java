@@ -1,57 +1,257 @@
 package com.idehub.Billing;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Trace;
 import android.util.Log;
 
-import com.anjlab.android.iab.v3.BillingProcessor;
-import com.anjlab.android.iab.v3.PurchaseData;
 import com.anjlab.android.iab.v3.SkuDetails;
 import com.anjlab.android.iab.v3.TransactionDetails;
 import com.facebook.react.bridge.ActivityEventListener;
-import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
-public class InAppBillingBridge extends ReactContextBaseJavaModule implements ActivityEventListener, BillingProcessor.IBillingHandler {
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InAppBillingBridge extends ReactContextBaseJavaModule implements ActivityEventListener, BillingBackend.Listener {
     static final String LOG_TAG = "rnbilling";
 
     ReactApplicationContext _reactContext;
     String LICENSE_KEY = null;
-    BillingProcessor bp;
+    volatile BillingBackend bp;
+    final BillingExecutor mExecutor = new BillingExecutor();
     Boolean mShortCircuit = false;
     int PURCHASE_FLOW_REQUEST_CODE = 32459;
     int BILLING_RESPONSE_RESULT_OK = 0;
+    int BILLING_RESPONSE_RESULT_ERROR = 6;
     String RESPONSE_CODE = "RESPONSE_CODE";
-    HashMap<String, Promise> mPromiseCache = new HashMap<>();
+    static final String OWNED_PURCHASES_KEY = "OWNED_PURCHASES";
+    static final String EVENT_OWNED_PRODUCTS_CHANGED = "InAppBilling.ownedProductsChanged";
+    static final String EVENT_OWNED_SUBSCRIPTIONS_CHANGED = "InAppBilling.ownedSubscriptionsChanged";
+    static final String EVENT_SNAPSHOT_REFRESHED = "InAppBilling.snapshotRefreshed";
+    static final String EVENT_METRICS = "InAppBilling.metrics";
+    static final String EVENT_PRODUCT_DETAILS_CHANGED = "InAppBilling.productDetailsChanged";
+    static final String CHANNEL_NOT_OPENED = "Channel is not opened. Call open() on InAppBilling.";
+    static final String SERVICE_NOT_CONNECTED = "The billing service is not connected. Try again later.";
+    static final String METRIC_METHOD = "method.";
+    // Latency metric names, one per JS method, so dispatching a call does not build a string.
+    static final String METRIC_LOAD_OWNED_PURCHASES_FROM_GOOGLE = METRIC_METHOD + "loadOwnedPurchasesFromGoogle";
+    static final String METRIC_PREPARE_PURCHASE = METRIC_METHOD + "preparePurchase";
+    static final String METRIC_CONSUME_PURCHASE = METRIC_METHOD + "consumePurchase";
+    static final String METRIC_CONSUME_PURCHASES = METRIC_METHOD + "consumePurchases";
+    static final String METRIC_IS_SUBSCRIBED = METRIC_METHOD + "isSubscribed";
+    static final String METRIC_IS_PURCHASED = METRIC_METHOD + "isPurchased";
+    static final String METRIC_IS_SUBSCRIBED_MANY = METRIC_METHOD + "isSubscribedMany";
+    static final String METRIC_IS_PURCHASED_MANY = METRIC_METHOD + "isPurchasedMany";
+    static final String METRIC_CHECK_ENTITLEMENTS = METRIC_METHOD + "checkEntitlements";
+    static final String METRIC_IS_ONE_TIME_PURCHASE_SUPPORTED = METRIC_METHOD + "isOneTimePurchaseSupported";
+    static final String METRIC_IS_VALID_TRANSACTION_DETAILS = METRIC_METHOD + "isValidTransactionDetails";
+    static final String METRIC_ARE_VALID_TRANSACTION_DETAILS = METRIC_METHOD + "areValidTransactionDetails";
+    static final String METRIC_LIST_OWNED_PRODUCTS = METRIC_METHOD + "listOwnedProducts";
+    static final String METRIC_LIST_OWNED_SUBSCRIPTIONS = METRIC_METHOD + "listOwnedSubscriptions";
+    static final String METRIC_LIST_OWNED_PRODUCTS_PAGE = METRIC_METHOD + "listOwnedProductsPage";
+    static final String METRIC_LIST_OWNED_SUBSCRIPTIONS_PAGE = METRIC_METHOD + "listOwnedSubscriptionsPage";
+    static final String METRIC_GET_PRODUCT_DETAILS = METRIC_METHOD + "getProductDetails";
+    static final String METRIC_GET_PRODUCT_DETAILS_COLUMNS = METRIC_METHOD + "getProductDetailsColumns";
+    static final String METRIC_GET_SUBSCRIPTION_DETAILS = METRIC_METHOD + "getSubscriptionDetails";
+    static final String METRIC_GET_SUBSCRIPTION_DETAILS_COLUMNS = METRIC_METHOD + "getSubscriptionDetailsColumns";
+    static final String METRIC_GET_PURCHASE_TRANSACTION_DETAILS = METRIC_METHOD + "getPurchaseTransactionDetails";
+    static final String METRIC_GET_SUBSCRIPTION_TRANSACTION_DETAILS = METRIC_METHOD + "getSubscriptionTransactionDetails";
+    static final String METRIC_GET_ALL_TRANSACTION_DETAILS = METRIC_METHOD + "getAllTransactionDetails";
+    static final String METRIC_IS_PURCHASED_SYNC = METRIC_METHOD + "isPurchasedSync";
+    static final String METRIC_IS_SUBSCRIBED_SYNC = METRIC_METHOD + "isSubscribedSync";
+    static final String METRIC_LIST_OWNED_PRODUCTS_SYNC = METRIC_METHOD + "listOwnedProductsSync";
+    static final String METRIC_LIST_OWNED_SUBSCRIPTIONS_SYNC = METRIC_METHOD + "listOwnedSubscriptionsSync";
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 500;
+    static final long MIN_METRICS_INTERVAL_MS = 1000;
+    static final long MIN_WATCH_INTERVAL_MS = 30000;
+    static final String SNAPSHOT_KEY = "SNAPSHOT";
+    // Product ids are namespaced, so a product named like one of the keys above does not
+    // queue behind the module's own maintenance work.
+    static final String PRODUCT_KEY_PREFIX = "product:";
+    static final String SHARED_ENTITLEMENTS_KEY = "SHARED_ENTITLEMENTS";
+    static final String SNAPSHOT_DIRECTORY = "rnbilling";
+    static final long SNAPSHOT_WRITE_DELAY_MS = 1000;
+    static final long CONNECT_TIMEOUT_MS = 10000;
+    static final long RECONNECT_BASE_DELAY_MS = 500;
+    static final long RECONNECT_MAX_DELAY_MS = 60000;
+    static final int MAX_PENDING_CALLS = 128;
+    // Pending calls are failed once this many reconnects in a row did not succeed.
+    static final int MAX_QUEUED_RECONNECT_ATTEMPTS = 4;
+    // anjlab's Constants.BILLING_ERROR_BIND_PLAY_SERVICES_FAILED
+    static final int BILLING_ERROR_BIND_FAILED = 113;
+    static final int VERIFICATION_CACHE_SIZE = 256;
+    final BillingMetrics mMetrics = new BillingMetrics();
+    final PromiseRegistry mPromises = new PromiseRegistry(mExecutor, mMetrics);
+    final BillingConfig mConfig;
+    final BillingMapper mMapper;
+    final ProductDetailsCache mProductCache;
+    final SkuDetailsBatcher mSkuDetailsBatcher;
+    final RetryPolicy mRetryPolicy;
+    final CircuitBreaker mCircuitBreaker;
+    final EntitlementIndex mEntitlements = new EntitlementIndex();
+    final VerificationCache mVerificationCache = new VerificationCache(VERIFICATION_CACHE_SIZE);
+    final BillingSnapshotStore mSnapshotStore;
+    final File mSharedEntitlementsFile;
+    final ReceiptUploader mReceiptUploader;
+    private volatile boolean mSharedEntitlementsPublished = false;
+    // Set by close(), after which entitlements restored from disk are no longer served.
+    private volatile boolean mEntitlementsClosed = false;
+    volatile boolean mSnapshotFresh = false;
+    volatile long mSnapshotSavedAt = 0;
+    private final AtomicBoolean mSnapshotWriteScheduled = new AtomicBoolean(false);
+
+    // Work deferred from the constructor to the first connection, see ensureStarted.
+    private final Object mStartLock = new Object();
+    private final boolean mResolveLicenseKey;
+    private volatile boolean mStarted = false;
+
+    // In cold mode open(), close() and a failed bind replace bp. They hold this lock, so a
+    // backend is never replaced without being released.
+    private final Object mChannelLock = new Object();
+
+    // Warm connection state, only used when BillingConfig.warmUp is set. Guarded by mConnectionLock.
+    private final Object mConnectionLock = new Object();
+    private final List<PendingCall> mPendingCalls = new ArrayList<>();
+    private final Backoff mReconnectBackoff = new Backoff(RECONNECT_BASE_DELAY_MS, RECONNECT_MAX_DELAY_MS);
+    private boolean mConnecting = false;
+    private int mReconnectAttempt = 0;
+    private ScheduledFuture<?> mConnectTimeout;
+    private volatile boolean mDestroyed = false;
+    private final Object mMetricsEventsLock = new Object();
+    private ScheduledFuture<?> mMetricsEvents;
+    // Identifies the current series of metrics events, so a superseded series stops.
+    private Object mMetricsEventsToken;
+    private final ConcurrentHashMap<String, ProductWatch> mProductWatches = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextWatchId = new AtomicInteger();
+
+    private final BroadcastReceiver mLocaleChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Titles, descriptions and formatted prices are localized by Google Play.
+            mProductCache.invalidateAll();
+        }
+    };
 
     public InAppBillingBridge(ReactApplicationContext reactContext, String licenseKey) {
-        super(reactContext);
-        _reactContext = reactContext;
-        LICENSE_KEY = licenseKey;
-
-        reactContext.addActivityEventListener(this);
+        this(reactContext, licenseKey, new BillingConfig());
     }
 
     public InAppBillingBridge(ReactApplicationContext reactContext) {
+        this(reactContext, new BillingConfig());
+    }
+
+    public InAppBillingBridge(ReactApplicationContext reactContext, String licenseKey, BillingConfig config) {
+        this(reactContext, licenseKey, false, config);
+    }
+
+    InAppBillingBridge(ReactApplicationContext reactContext, BillingConfig config) {
+        this(reactContext, null, true, config);
+    }
+
+    /**
+     * Only sets up in-memory state, since React may create the module during app startup
+     * even if billing is never used. The license key lookup and the listener registrations
+     * happen in {@link #ensureStarted()}, before the first connection.
+     *
+     * @param resolveLicenseKey whether to read the license key from the app resources
+     */
+    private InAppBillingBridge(ReactApplicationContext reactContext, String licenseKey, boolean resolveLicenseKey, BillingConfig config) {
         super(reactContext);
-        _reactContext = reactContext;
-        int keyResourceId = _reactContext
+        Trace.beginSection("InAppBillingBridge.create");
+        try {
+            _reactContext = reactContext;
+            LICENSE_KEY = licenseKey;
+            mResolveLicenseKey = resolveLicenseKey;
+            mConfig = config;
+            mMapper = new BillingMapper(config.payloads);
+            mProductCache = new ProductDetailsCache(config.productCacheTtlMs, config.productCacheSize);
+            mSkuDetailsBatcher = new SkuDetailsBatcher(mExecutor, mListingFetcher, config.detailsBatchWindowMs);
+            mRetryPolicy = new RetryPolicy(config.retryAttempts, config.retryBaseDelayMs, config.retryMaxDelayMs);
+            mCircuitBreaker = new CircuitBreaker(config.circuitFailureThreshold, config.circuitOpenMs);
+            mSnapshotStore = config.persistentSnapshot
+                    ? new BillingSnapshotStore(new File(reactContext.getFilesDir(), SNAPSHOT_DIRECTORY))
+                    : null;
+            mSharedEntitlementsFile = config.sharedEntitlements ? BillingEntitlements.file(reactContext) : null;
+            mReceiptUploader = config.receiptUploadEndpoint != null
+                    ? new ReceiptUploader(new File(new File(reactContext.getFilesDir(), SNAPSHOT_DIRECTORY), ReceiptUploader.DIRECTORY),
+                            config.receiptUploadEndpoint, config.receiptUploadHeaders, config.receiptQueueLimit, mMetrics)
+                    : null;
+
+            // Reads on the billing executor, so the synchronous entitlement reads work before open().
+            restoreSnapshot();
+            restoreSharedEntitlements();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Resolves the license key and registers the activity and locale listeners. Runs once,
+     * before the first backend is created. If the license key cannot be resolved it throws,
+     * and the next call tries again.
+     */
+    void ensureStarted() {
+        if (mStarted) {
+            return;
+        }
+
+        synchronized (mStartLock) {
+            if (mStarted || mDestroyed) {
+                return;
+            }
+
+            Trace.beginSection("InAppBillingBridge.start");
+            try {
+                if (mResolveLicenseKey) {
+                    LICENSE_KEY = getLicenseKeyFromResources(_reactContext);
+                }
+                _reactContext.addActivityEventListener(this);
+                registerLocaleChangedReceiver();
+                if (mReceiptUploader != null) {
+                    mReceiptUploader.start();
+                }
+                mStarted = true;
+            } finally {
+                Trace.endSection();
+            }
+        }
+    }
+
+    private static String getLicenseKeyFromResources(ReactApplicationContext reactContext) {
+        int keyResourceId = reactContext
                 .getResources()
-                .getIdentifier("RNB_GOOGLE_PLAY_LICENSE_KEY", "string", _reactContext.getPackageName());
-        LICENSE_KEY = _reactContext.getString(keyResourceId);
+                .getIdentifier("RNB_GOOGLE_PLAY_LICENSE_KEY", "string", reactContext.getPackageName());
+        return reactContext.getString(keyResourceId);
+    }
 
-        reactContext.addActivityEventListener(this);
+    private void registerLocaleChangedReceiver() {
+        _reactContext.getApplicationContext()
+                .registerReceiver(mLocaleChangedReceiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
     }
 
     @Override
@@ -62,414 +262,2311 @@ public class InAppBillingBridge extends ReactContextBaseJavaModule implements Ac
     @Override
     public Map<String, Object> getConstants() {
         final Map<String, Object> constants = new HashMap<>();
+        constants.put("OWNED_PRODUCTS_CHANGED", EVENT_OWNED_PRODUCTS_CHANGED);
+        constants.put("OWNED_SUBSCRIPTIONS_CHANGED", EVENT_OWNED_SUBSCRIPTIONS_CHANGED);
+        constants.put("SNAPSHOT_REFRESHED", EVENT_SNAPSHOT_REFRESHED);
+        constants.put("METRICS", EVENT_METRICS);
+        constants.put("PRODUCT_DETAILS_CHANGED", EVENT_PRODUCT_DETAILS_CHANGED);
         return constants;
     }
 
+    @Override
+    public void initialize() {
+        super.initialize();
+
+        if (mConfig.warmUp && isIabServiceAvailable()) {
+            connect();
+        }
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        mDestroyed = true;
+        failPendingCalls("E_CONNECTION", "Billing module was destroyed.");
+        mPromises.rejectAll("E_CONNECTION", "Billing module was destroyed.");
+        // A cold channel JS never closed, e.g. on reload, is released here as well.
+        BillingBackend processor;
+        synchronized (mChannelLock) {
+            processor = bp;
+            bp = null;
+        }
+        if (processor != null) {
+            processor.release();
+        }
+
+        cancelWatches();
+        mExecutor.shutdown();
+        if (mReceiptUploader != null) {
+            mReceiptUploader.shutdown();
+        }
+
+        synchronized (mStartLock) {
+            if (!mStarted) {
+                return;
+            }
+            mStarted = false;
+        }
+
+        _reactContext.removeActivityEventListener(this);
+        try {
+            _reactContext.getApplicationContext().unregisterReceiver(mLocaleChangedReceiver);
+        } catch (IllegalArgumentException ex) {
+            Log.w(LOG_TAG, "Locale receiver was not registered", ex);
+        }
+    }
+
+    /**
+     * A unit of work that talks to the billing backend. Runs on the billing executor,
+     * never on the native-modules thread.
+     */
+    interface BillingTask {
+        void run(BillingBackend processor) throws Exception;
+    }
+
+    /**
+     * A unit of work that waits for a backend {@link BillingBackend.Callback}. It reports
+     * its outcome to the completion, which releases its serial key, so no thread waits
+     * for Google Play.
+     */
+    interface AsyncBillingTask {
+        void run(BillingBackend processor, TaskCompletion completion) throws Exception;
+    }
+
+    interface TaskCompletion {
+        /**
+         * To be called after the task settled its promise.
+         */
+        void succeeded();
+
+        /**
+         * Rejects the promise with the error, or retries an idempotent query.
+         */
+        void failed(Exception error);
+    }
+
+    /**
+     * Dispatches a read-only query. Queries may run concurrently with each other.
+     */
+    void executeRead(final String metric, final Promise promise, final BillingTask task) {
+        dispatch(metric, null, promise, async(task), System.nanoTime(), false, 0);
+    }
+
+    /**
+     * Dispatches a state-changing call. Calls sharing the same key run one at a time.
+     */
+    void executeSerial(final String metric, final String key, final Promise promise, final BillingTask task) {
+        dispatch(metric, key, promise, async(task), System.nanoTime(), false, 0);
+    }
+
+    void executeSerial(final String metric, final String key, final Promise promise, final AsyncBillingTask task) {
+        dispatch(metric, key, promise, task, System.nanoTime(), false, 0);
+    }
+
+    /**
+     * Dispatches an idempotent query that goes to Google Play. The task signals failure by
+     * throwing or failing with a {@link BillingError}; transient ones are retried with
+     * backoff, and the query fails fast while the circuit breaker is open.
+     */
+    void executeQuery(final String metric, final String key, final Promise promise, final AsyncBillingTask task) {
+        dispatch(metric, key, promise, task, System.nanoTime(), true, 0);
+    }
+
+    private static AsyncBillingTask async(final BillingTask task) {
+        return new AsyncBillingTask() {
+            @Override
+            public void run(BillingBackend processor, TaskCompletion completion) throws Exception {
+                task.run(processor);
+                completion.succeeded();
+            }
+        };
+    }
+
+    /**
+     * @param metric     the latency metric of the JS method, one of the METRIC_ constants
+     * @param startNanos when the call arrived, so time spent queued or waiting for the
+     *                   connection counts towards the method latency
+     */
+    private void dispatch(final String metric, final String key, final Promise promise, final AsyncBillingTask task,
+                          final long startNanos, final boolean idempotent, final int attempt) {
+        if (isChannelClosed()) {
+            rejectDispatched(metric, startNanos, promise, "E_CONNECTION", CHANNEL_NOT_OPENED, null);
+            return;
+        }
+
+        BillingExecutor.SerialTask work = new BillingExecutor.SerialTask() {
+            @Override
+            public void run(final Runnable done) {
+                BillingBackend processor = bp;
+                if (!isConnected(processor)) {
+                    boolean deferred = deferUntilConnected(new PendingCall() {
+                        @Override
+                        public void run() {
+                            dispatch(metric, key, promise, task, startNanos, idempotent, attempt);
+                        }
+
+                        @Override
+                        public void fail(String code, String message) {
+                            rejectDispatched(metric, startNanos, promise, code, message, null);
+                        }
+                    });
+
+                    if (!deferred) {
+                        BillingError error = connectionError(processor);
+                        boolean retrying = idempotent && scheduleRetry(error, attempt, new Runnable() {
+                            @Override
+                            public void run() {
+                                dispatch(metric, key, promise, task, startNanos, true, attempt + 1);
+                            }
+                        });
+
+                        if (!retrying)
+                            rejectDispatched(metric, startNanos, promise, error.code, error.getMessage(), null);
+                    }
+                    done.run();
+                    return;
+                }
+
+                if (idempotent && !mCircuitBreaker.allowRequest()) {
+                    rejectDispatched(metric, startNanos, promise, "E_SERVICE_UNAVAILABLE", "Google Play is unavailable. Try again later.", null);
+                    done.run();
+                    return;
+                }
+
+                TaskCompletion completion = new TaskCompletion() {
+                    private final AtomicBoolean mCompleted = new AtomicBoolean();
+
+                    @Override
+                    public void succeeded() {
+                        if (!mCompleted.compareAndSet(false, true))
+                            return;
+
+                        try {
+                            if (idempotent)
+                                mCircuitBreaker.onSuccess();
+                            mMetrics.record(metric, startNanos, false);
+                        } finally {
+                            done.run();
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception ex) {
+                        if (!mCompleted.compareAndSet(false, true))
+                            return;
+
+                        try {
+                            boolean retrying = false;
+                            if (idempotent) {
+                                mCircuitBreaker.onFailure(RetryPolicy.isTransient(ex));
+                                retrying = scheduleRetry(ex, attempt, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        dispatch(metric, key, promise, task, startNanos, true, attempt + 1);
+                                    }
+                                });
+                            }
+
+                            if (!retrying) {
+                                String code = ex instanceof BillingError ? ((BillingError) ex).code : "E_UNKNOWN";
+                                rejectDispatched(metric, startNanos, promise, code, ex.getMessage(), ex);
+                            }
+                        } finally {
+                            done.run();
+                        }
+                    }
+                };
+
+                try {
+                    task.run(processor, completion);
+                } catch (Exception ex) {
+                    completion.failed(ex);
+                }
+            }
+        };
+
+        try {
+            if (key == null)
+                mExecutor.execute(detached(work));
+            else
+                mExecutor.executeSerial(key, work);
+        } catch (RejectedExecutionException ex) {
+            rejectDispatched(metric, startNanos, promise, "E_UNKNOWN", "Too many pending billing operations.", ex);
+        }
+    }
+
+    /**
+     * Fails a dispatched call, counting it as {@code rejected.<code>}.
+     */
+    private void rejectDispatched(String metric, long startNanos, Promise promise, String code, String message, Throwable error) {
+        mMetrics.record(metric, startNanos, true);
+        mMetrics.increment("rejected." + code);
+        promise.reject(code, message, error);
+    }
+
+    /**
+     * Runs a serial task that holds no key.
+     */
+    private static Runnable detached(final BillingExecutor.SerialTask task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                task.run(NO_OP);
+            }
+        };
+    }
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * Continues a backend callback on a billing thread, since backends may call back on
+     * the main thread.
+     */
+    <T> BillingBackend.Callback<T> onBillingThread(final BillingBackend.Callback<T> callback) {
+        return new BillingBackend.Callback<T>() {
+            @Override
+            public void onSuccess(final T result) {
+                mExecutor.executeOrRun(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSuccess(result);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final int responseCode) {
+                mExecutor.executeOrRun(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onFailure(responseCode);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * The serial key of calls that change the state of one product.
+     */
+    static String productKey(String productId) {
+        return PRODUCT_KEY_PREFIX + productId;
+    }
+
+    /**
+     * Schedules the retry of an idempotent query if the retry policy allows it.
+     *
+     * @param attempt zero-based number of the attempt that just failed
+     * @return false if the failure is final
+     */
+    private boolean scheduleRetry(Exception error, int attempt, Runnable retry) {
+        if (mDestroyed || !mRetryPolicy.shouldRetry(error, attempt)) {
+            return false;
+        }
+
+        try {
+            mExecutor.schedule(retry, mRetryPolicy.delayMs(attempt));
+            mMetrics.increment("retries");
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * A call waiting for the warm connection to come back.
+     */
+    interface PendingCall {
+        void run();
+
+        void fail(String code, String message);
+    }
+
+    /**
+     * True if calls should be rejected up front because open() has not been called. In
+     * warm mode the channel is never closed; calls wait for the connection instead.
+     */
+    boolean isChannelClosed() {
+        return bp == null && !mConfig.warmUp;
+    }
+
+    /**
+     * Rejects a call that does not go through dispatch, which checks the channel itself.
+     *
+     * @return true if the channel is closed and the promise was rejected
+     */
+    private boolean rejectIfChannelClosed(Promise promise) {
+        if (!isChannelClosed())
+            return false;
+
+        promise.reject("E_CONNECTION", CHANNEL_NOT_OPENED);
+        return true;
+    }
+
+    /**
+     * A processor counts as connected once it is initialized, in either mode. In warm mode
+     * calls are queued until the reconnect completes; in cold mode they fail with
+     * {@link #connectionError}.
+     */
+    private boolean isConnected(BillingBackend processor) {
+        return processor != null && processor.isInitialized();
+    }
+
+    /**
+     * Why a call that was not deferred cannot run. A processor that is still setting up, or
+     * lost its service and is reconnecting, fails like an unavailable service, so queries
+     * are retried.
+     */
+    private static BillingError connectionError(BillingBackend processor) {
+        if (processor == null) {
+            return new BillingError("E_CONNECTION", CHANNEL_NOT_OPENED);
+        }
+        return new BillingError(RetryPolicy.RESPONSE_SERVICE_UNAVAILABLE, SERVICE_NOT_CONNECTED);
+    }
+
+    /**
+     * Queues the call until the warm connection is (re)established.
+     *
+     * @return false if not in warm mode, or the call cannot be queued
+     */
+    private boolean deferUntilConnected(PendingCall call) {
+        if (!mConfig.warmUp || mDestroyed || !isIabServiceAvailable()) {
+            return false;
+        }
+
+        synchronized (mConnectionLock) {
+            if (mPendingCalls.size() >= MAX_PENDING_CALLS) {
+                return false;
+            }
+            mPendingCalls.add(call);
+        }
+
+        connect();
+        return true;
+    }
+
+    /**
+     * Binds a new billing backend unless a connection attempt is already in flight.
+     * Completion is reported through onBillingInitialized.
+     */
+    void connect() {
+        synchronized (mConnectionLock) {
+            if (mConnecting || mDestroyed) {
+                return;
+            }
+            mConnecting = true;
+
+            try {
+                mConnectTimeout = mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onConnectFailed("Timed out binding the billing service.");
+                    }
+                }, CONNECT_TIMEOUT_MS);
+            } catch (RejectedExecutionException ex) {
+                mConnecting = false;
+                return;
+            }
+        }
+
+        BillingBackend previous = bp;
+        try {
+            ensureStarted();
+            bp = createBackend();
+        } catch (Exception ex) {
+            Log.w(LOG_TAG, "Could not bind the billing service", ex);
+            onConnectFailed(ex.getMessage());
+        }
+
+        if (previous != null && previous != bp) {
+            try {
+                previous.release();
+            } catch (Exception ex) {
+                Log.w(LOG_TAG, "Could not release stale billing connection", ex);
+            }
+        }
+    }
+
+    private void onConnected() {
+        List<PendingCall> calls;
+        synchronized (mConnectionLock) {
+            if (mConnectTimeout != null) {
+                mConnectTimeout.cancel(false);
+                mConnectTimeout = null;
+            }
+            mConnecting = false;
+            mReconnectAttempt = 0;
+
+            calls = new ArrayList<>(mPendingCalls);
+            mPendingCalls.clear();
+        }
+
+        for (PendingCall call : calls) {
+            call.run();
+        }
+    }
+
+    /**
+     * Schedules the next reconnect with jittered exponential backoff.
+     */
+    private void onConnectFailed(String reason) {
+        int attempt;
+        synchronized (mConnectionLock) {
+            if (!mConnecting) {
+                return;
+            }
+            if (mConnectTimeout != null) {
+                mConnectTimeout.cancel(false);
+                mConnectTimeout = null;
+            }
+            mConnecting = false;
+            attempt = mReconnectAttempt++;
+        }
+
+        if (attempt + 1 >= MAX_QUEUED_RECONNECT_ATTEMPTS) {
+            failPendingCalls("E_SERVICE_UNAVAILABLE", reason == null ? "Could not connect to the billing service." : reason);
+        }
+
+        if (mDestroyed) {
+            return;
+        }
+
+        long delayMs = mReconnectBackoff.delayMs(attempt);
+        Log.w(LOG_TAG, String.format("Billing connection failed (%s), reconnecting in %d ms", reason, delayMs));
+        try {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connect();
+                }
+            }, delayMs);
+        } catch (RejectedExecutionException ex) {
+            Log.w(LOG_TAG, "Could not schedule billing reconnect", ex);
+        }
+    }
+
+    private void failPendingCalls(String code, String message) {
+        List<PendingCall> calls;
+        synchronized (mConnectionLock) {
+            calls = new ArrayList<>(mPendingCalls);
+            mPendingCalls.clear();
+        }
+
+        for (PendingCall call : calls) {
+            call.fail(code, message);
+        }
+    }
+
     @Override
     public void onBillingInitialized() {
+        if (mConfig.warmUp) {
+            onConnected();
+        }
+
+        refreshEntitlements();
+        revalidateSnapshot();
         resolvePromise(PromiseConstants.OPEN, true);
     }
 
+    /**
+     * Re-reads owned products and subscriptions into the entitlement index on the
+     * billing executor, after any pending owned-purchase reload.
+     */
+    void refreshEntitlements() {
+        try {
+            mExecutor.executeSerial(OWNED_PURCHASES_KEY, new Runnable() {
+                @Override
+                public void run() {
+                    BillingBackend processor = bp;
+                    if (processor != null) {
+                        updateEntitlements(processor);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(LOG_TAG, "Could not refresh entitlements", ex);
+        }
+    }
+
+    /**
+     * Refreshes the entitlement index and emits change events listing only the ids
+     * that were added or removed since the previous refresh.
+     */
+    void updateEntitlements(BillingBackend processor) {
+        EntitlementIndex.Snapshot previous = mEntitlements.refresh(processor);
+        EntitlementIndex.Snapshot current = mEntitlements.get();
+        boolean changed = !current.productSet.equals(previous.productSet)
+                || !current.subscriptionSet.equals(previous.subscriptionSet);
+        if (changed) {
+            mVerificationCache.invalidateAll();
+        }
+        if (changed || !mSharedEntitlementsPublished) {
+            publishEntitlements();
+        }
+
+        emitOwnershipChange(EVENT_OWNED_PRODUCTS_CHANGED,
+                previous.products, previous.productSet, current.products, current.productSet);
+        emitOwnershipChange(EVENT_OWNED_SUBSCRIPTIONS_CHANGED,
+                previous.subscriptions, previous.subscriptionSet, current.subscriptions, current.subscriptionSet);
+        scheduleSnapshotWrite();
+    }
+
+    /**
+     * Writes the current entitlements to the shared file, one write at a time so an older
+     * set never replaces a newer one.
+     */
+    private void publishEntitlements() {
+        if (mSharedEntitlementsFile == null) {
+            return;
+        }
+
+        try {
+            mExecutor.executeSerial(SHARED_ENTITLEMENTS_KEY, new Runnable() {
+                @Override
+                public void run() {
+                    EntitlementIndex.Snapshot current = mEntitlements.get();
+                    if (BillingEntitlements.write(mSharedEntitlementsFile, current.products, current.subscriptions)) {
+                        mSharedEntitlementsPublished = true;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(LOG_TAG, "Could not publish shared entitlements", ex);
+        }
+    }
+
+    private void emitOwnershipChange(String eventName, List<String> before, Set<String> beforeSet, List<String> after, Set<String> afterSet) {
+        WritableArray added = mMapper.createArray();
+        WritableArray removed = mMapper.createArray();
+        boolean changed = false;
+
+        for (String productId : after) {
+            if (!beforeSet.contains(productId)) {
+                added.pushString(productId);
+                changed = true;
+            }
+        }
+
+        for (String productId : before) {
+            if (!afterSet.contains(productId)) {
+                removed.pushString(productId);
+                changed = true;
+            }
+        }
+
+        if (!changed) {
+            return;
+        }
+
+        WritableMap payload = mMapper.createMap();
+        payload.putArray("added", added);
+        payload.putArray("removed", removed);
+        sendEvent(eventName, payload);
+    }
+
+    void sendEvent(String eventName, Object payload) {
+        if (!_reactContext.hasActiveCatalystInstance()) {
+            return;
+        }
+
+        _reactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(eventName, payload);
+    }
+
     @ReactMethod
     public void open(final Promise promise) {
+        try {
+            ensureStarted();
+        } catch (Exception ex) {
+            promise.reject("E_UNKNOWN", "Could not read RNB_GOOGLE_PLAY_LICENSE_KEY: " + ex.getMessage(), ex);
+            return;
+        }
+
         if (!isIabServiceAvailable()) {
             promise.reject("E_NO_EMULATOR", "InAppBilling is not available. InAppBilling will not work/test on an emulator, only a physical Android device.");
             return;
         }
 
-        if (bp != null) {
-            promise.reject("E_CONNECTION", "Channel is already open. Call close() on InAppBilling to be able to open().");
+        if (mConfig.warmUp) {
+            openWarm(promise);
+            return;
+        }
+
+        synchronized (mChannelLock) {
+            if (bp != null) {
+                promise.reject("E_CONNECTION", "Channel is already open. Call close() on InAppBilling to be able to open().");
+                return;
+            }
+
+            clearPromises();
+
+            if (putPromise(PromiseConstants.OPEN, null, promise) != null) {
+                try {
+                    bp = createBackend();
+                } catch (Exception ex) {
+                    rejectPromise(PromiseConstants.OPEN, "E_CONNECTION", ex.getMessage(), ex);
+                }
+            } else {
+                promise.reject("E_UNKNOWN", "Previous open operation is not resolved.");
+            }
+        }
+    }
+
+    /**
+     * In warm mode the connection is owned by the module, so open() only waits for it.
+     */
+    private void openWarm(final Promise promise) {
+        BillingBackend processor = bp;
+        if (processor != null && processor.isInitialized()) {
+            promise.resolve(true);
+            return;
+        }
+
+        boolean deferred = deferUntilConnected(new PendingCall() {
+            @Override
+            public void run() {
+                promise.resolve(true);
+            }
+
+            @Override
+            public void fail(String code, String message) {
+                promise.reject(code, message);
+            }
+        });
+
+        if (!deferred)
+            promise.reject("E_CONNECTION", "Could not connect to the billing service.");
+    }
+
+    @ReactMethod
+    public void close(final Promise promise) {
+        // Watches belong to the channel, so they end with it in either mode.
+        cancelWatches();
+
+        if (mConfig.warmUp) {
+            // The warm connection stays bound until the module is destroyed.
+            clearPromises();
+            promise.resolve(true);
+            return;
+        }
+
+        BillingBackend processor;
+        synchronized (mChannelLock) {
+            processor = bp;
+            bp = null;
+        }
+        if (processor != null) {
+            processor.release();
+        }
+        mEntitlementsClosed = true;
+        mEntitlements.clear();
+
+        clearPromises();
+        promise.resolve(true);
+    }
+
+    @ReactMethod
+    public void loadOwnedPurchasesFromGoogle(final Promise promise) {
+        executeQuery(METRIC_LOAD_OWNED_PURCHASES_FROM_GOOGLE, OWNED_PURCHASES_KEY, promise, new AsyncBillingTask() {
+            @Override
+            public void run(final BillingBackend processor, final TaskCompletion completion) {
+                processor.loadOwnedPurchasesFromGoogle(onBillingThread(new BillingBackend.Callback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        updateEntitlements(processor);
+                        enqueueOwnedReceipts(processor);
+                        promise.resolve(true);
+                        completion.succeeded();
+                    }
+
+                    @Override
+                    public void onFailure(int responseCode) {
+                        completion.failed(new BillingError(responseCode, "Could not load owned purchases from Google."));
+                    }
+                }));
+            }
+        });
+    }
+
+    @Override
+    public void onProductPurchased(String productId, TransactionDetails details) {
+        if (mReceiptUploader != null) {
+            mReceiptUploader.enqueue(details);
+        }
+
+        PromiseRegistry.Entry pending = mPromises.active(PromiseConstants.PURCHASE_OR_SUBSCRIBE);
+        if (pending != null && pending.productId != null && !pending.productId.equals(productId)) {
+            // Belongs to an earlier flow, e.g. a pending purchase that completed late.
+            Log.w(LOG_TAG, String.format("Purchase of %s does not match the pending request for %s", productId, pending.productId));
+            refreshEntitlements();
+            return;
+        }
+
+        if (details == null) {
+            rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, "E_UNKNOWN", "There is no transaction information.", null);
+            return;
+        }
+
+        if (!productId.equals(details.purchaseInfo.purchaseData.productId)) {
+            rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, "E_UNKNOWN", "Product id does not match.", null);
+            return;
+        }
+
+        refreshEntitlements();
+
+        WritableMap map = mMapper.mapTransactionDetails(details);
+        resolvePromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, map);
+    }
+
+    @Override
+    public void onBillingError(int errorCode, Throwable error) {
+        mMetrics.increment("billingError." + errorCode);
+        if (errorCode == BILLING_ERROR_BIND_FAILED) {
+            onBindFailed(error);
+            return;
+        }
+
+        if (!hasPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE)) {
+            return;
+        }
+
+        if (errorCode == BillingBackend.BILLING_ERROR_PURCHASE_PENDING) {
+            rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, "E_PURCHASE_PENDING",
+                    "The purchase is pending. It is reported through onPurchasesUpdated once the payment completes.", error);
+            return;
+        }
+
+        String errorMessage = error == null ? "Could not purchase product." : error.getMessage();
+
+        rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, getResponseCode(errorCode), errorMessage, error);
+    }
+
+    /**
+     * The backend could not connect. In warm mode the module reconnects; otherwise open()
+     * fails and the backend is released, so open() may be called again.
+     */
+    private void onBindFailed(Throwable error) {
+        String message = error == null || error.getMessage() == null ? "Could not bind the billing service." : error.getMessage();
+        if (mConfig.warmUp) {
+            onConnectFailed(message);
+            return;
+        }
+
+        if (!hasPromise(PromiseConstants.OPEN)) {
+            return;
+        }
+
+        String code = error instanceof BillingError ? ((BillingError) error).code : "E_CONNECTION";
+        rejectPromise(PromiseConstants.OPEN, code, message, error);
+
+        BillingBackend processor;
+        synchronized (mChannelLock) {
+            processor = bp;
+            bp = null;
+        }
+        if (processor != null) {
+            processor.release();
+        }
+    }
+
+    /**
+     * Looks the ids up as products, then the rest as subscriptions, and lets the backend
+     * keep what it needs to start their purchase flows, so a purchase started shortly after
+     * skips that round trip. The details also go into the product cache. Resolves
+     * {@code {products, subscriptions, unavailable}} with the ids of each kind.
+     */
+    @ReactMethod
+    public void preparePurchase(final ReadableArray productIds, final Promise promise) {
+        final LinkedHashSet<String> productIdSet = new LinkedHashSet<>();
+        for (int i = 0; i < productIds.size(); i++) {
+            productIdSet.add(productIds.getString(i));
+        }
+
+        executeQuery(METRIC_PREPARE_PURCHASE, null, promise, new AsyncBillingTask() {
+            @Override
+            public void run(final BillingBackend processor, final TaskCompletion completion) {
+                final LinkedHashSet<String> remaining = new LinkedHashSet<>(productIdSet);
+                prepare(processor, remaining, false, completion, new PrepareCallback() {
+                    @Override
+                    public void onPrepared(final WritableArray products) {
+                        if (remaining.isEmpty()) {
+                            resolvePrepared(products, mMapper.createArray(), remaining);
+                            return;
+                        }
+
+                        prepare(processor, remaining, true, completion, new PrepareCallback() {
+                            @Override
+                            public void onPrepared(WritableArray subscriptions) {
+                                resolvePrepared(products, subscriptions, remaining);
+                            }
+                        });
+                    }
+
+                    private void resolvePrepared(WritableArray products, WritableArray subscriptions, Set<String> remaining) {
+                        WritableArray unavailable = mMapper.createArray();
+                        for (String productId : remaining) {
+                            unavailable.pushString(productId);
+                        }
+
+                        WritableMap result = mMapper.createMap();
+                        result.putArray("products", products);
+                        result.putArray("subscriptions", subscriptions);
+                        result.putArray("unavailable", unavailable);
+                        promise.resolve(result);
+                        completion.succeeded();
+                    }
+                });
+            }
+        });
+    }
+
+    private interface PrepareCallback {
+        void onPrepared(WritableArray prepared);
+    }
+
+    /**
+     * Prepares the remaining ids of one type and removes the ones that exist from
+     * {@code remaining}. The prepared ids go to the callback; a failure goes to the
+     * completion.
+     */
+    private void prepare(BillingBackend processor, final Set<String> remaining, final boolean subscription,
+                         final TaskCompletion completion, final PrepareCallback callback) {
+        processor.preparePurchase(new ArrayList<>(remaining), subscription, onBillingThread(new BillingBackend.Callback<List<SkuDetails>>() {
+            @Override
+            public void onSuccess(List<SkuDetails> details) {
+                mProductCache.put(subscription ? ProductDetailsCache.TYPE_SUBSCRIPTION : ProductDetailsCache.TYPE_PRODUCT, details);
+
+                WritableArray prepared = mMapper.createArray();
+                for (SkuDetails detail : details) {
+                    if (detail != null && remaining.remove(detail.productId)) {
+                        prepared.pushString(detail.productId);
+                    }
+                }
+                callback.onPrepared(prepared);
+            }
+
+            @Override
+            public void onFailure(int responseCode) {
+                completion.failed(new BillingError(responseCode, "Could not prepare purchase."));
+            }
+        }));
+    }
+
+    @ReactMethod
+    public void purchase(final String productId, final String developerPayload, final Promise promise) {
+        if (rejectIfChannelClosed(promise))
+            return;
+
+        final String requestId = putPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, productId, promise);
+        if (requestId != null) {
+            startPurchaseFlow(requestId, productId, new BillingTask() {
+                @Override
+                public void run(BillingBackend processor) {
+                    boolean purchaseProcessStarted = processor.purchase(getCurrentActivity(), productId, developerPayload);
+                    if (!purchaseProcessStarted)
+                        mPromises.reject(requestId, "E_UNKNOWN", "Could not start purchase process.", null);
+                }
+            });
+        } else {
+            rejectBusy(promise, "Previous purchase or subscribe operation is not resolved.");
+        }
+    }
+
+    @ReactMethod
+    public void consumePurchase(final String productId, final Promise promise) {
+        executeSerial(METRIC_CONSUME_PURCHASE, productKey(productId), promise, new AsyncBillingTask() {
+            @Override
+            public void run(BillingBackend processor, final TaskCompletion completion) {
+                processor.consumePurchase(productId, onBillingThread(new BillingBackend.Callback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        mVerificationCache.invalidateProduct(productId);
+                        refreshEntitlements();
+                        promise.resolve(true);
+                        completion.succeeded();
+                    }
+
+                    @Override
+                    public void onFailure(int responseCode) {
+                        completion.failed(new BillingError(responseCode, "Could not consume purchase"));
+                    }
+                }));
+            }
+        });
+    }
+
+    /**
+     * Consumes several purchases at once. Each consume runs on the serial queue of its
+     * product, so up to the pool size run in parallel, and the owned products are
+     * refreshed once after the last one. Resolves a map of productId to
+     * {success, code, message} rather than failing the batch on the first error.
+     */
+    @ReactMethod
+    public void consumePurchases(final ReadableArray productIds, final Promise promise) {
+        if (rejectIfChannelClosed(promise))
+            return;
+
+        final LinkedHashSet<String> productIdSet = new LinkedHashSet<>();
+        for (int i = 0; i < productIds.size(); i++) {
+            productIdSet.add(productIds.getString(i));
+        }
+
+        startConsumes(new ArrayList<>(productIdSet), promise, System.nanoTime());
+    }
+
+    private void startConsumes(final List<String> productIds, final Promise promise, final long startNanos) {
+        if (!isConnected(bp)) {
+            boolean deferred = deferUntilConnected(new PendingCall() {
+                @Override
+                public void run() {
+                    startConsumes(productIds, promise, startNanos);
+                }
+
+                @Override
+                public void fail(String code, String message) {
+                    mMetrics.record(METRIC_CONSUME_PURCHASES, startNanos, true);
+                    promise.reject(code, message);
+                }
+            });
+
+            if (deferred)
+                return;
+        }
+
+        final String[] codes = new String[productIds.size()];
+        final String[] messages = new String[productIds.size()];
+        final AtomicInteger remaining = new AtomicInteger(productIds.size());
+
+        final Runnable complete = new Runnable() {
+            @Override
+            public void run() {
+                WritableMap results = mMapper.createMap();
+                boolean anyConsumed = false;
+                for (int i = 0; i < codes.length; i++) {
+                    WritableMap result = mMapper.createMap();
+                    result.putBoolean("success", codes[i] == null);
+                    if (codes[i] != null) {
+                        result.putString("code", codes[i]);
+                        result.putString("message", messages[i]);
+                    } else {
+                        anyConsumed = true;
+                    }
+                    results.putMap(productIds.get(i), result);
+                }
+
+                if (anyConsumed)
+                    refreshEntitlements();
+                mMetrics.record(METRIC_CONSUME_PURCHASES, startNanos, false);
+                promise.resolve(results);
+            }
+        };
+
+        if (productIds.isEmpty()) {
+            complete.run();
+            return;
+        }
+
+        for (int i = 0; i < productIds.size(); i++) {
+            final int index = i;
+            final String productId = productIds.get(i);
+            BillingExecutor.SerialTask consume = new BillingExecutor.SerialTask() {
+                @Override
+                public void run(final Runnable done) {
+                    final Runnable finish = new Runnable() {
+                        @Override
+                        public void run() {
+                            done.run();
+                            if (remaining.decrementAndGet() == 0)
+                                complete.run();
+                        }
+                    };
+
+                    BillingBackend processor = bp;
+                    if (!isConnected(processor)) {
+                        BillingError error = connectionError(processor);
+                        codes[index] = error.code;
+                        messages[index] = error.getMessage();
+                        finish.run();
+                        return;
+                    }
+
+                    try {
+                        processor.consumePurchase(productId, onBillingThread(new BillingBackend.Callback<Void>() {
+                            @Override
+                            public void onSuccess(Void result) {
+                                mVerificationCache.invalidateProduct(productId);
+                                finish.run();
+                            }
+
+                            @Override
+                            public void onFailure(int responseCode) {
+                                codes[index] = getResponseCode(responseCode);
+                                messages[index] = "Could not consume purchase";
+                                finish.run();
+                            }
+                        }));
+                    } catch (Exception ex) {
+                        codes[index] = "E_UNKNOWN";
+                        messages[index] = ex.getMessage();
+                        finish.run();
+                    }
+                }
+            };
+
+            try {
+                mExecutor.executeSerial(productKey(productId), consume);
+            } catch (RejectedExecutionException ex) {
+                codes[index] = "E_UNKNOWN";
+                messages[index] = "Too many pending billing operations.";
+                if (remaining.decrementAndGet() == 0)
+                    complete.run();
+            }
+        }
+    }
+
+    @ReactMethod
+    public void subscribe(final String productId, final String developerPayload, final Promise promise) {
+        if (rejectIfChannelClosed(promise))
+            return;
+
+        final String requestId = putPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, productId, promise);
+        if (requestId != null) {
+            startPurchaseFlow(requestId, productId, new BillingTask() {
+                @Override
+                public void run(BillingBackend processor) {
+                    boolean subscribeProcessStarted = processor.subscribe(getCurrentActivity(), productId, developerPayload);
+                    if (!subscribeProcessStarted)
+                        mPromises.reject(requestId, "E_UNKNOWN", "Could not start subscribe process.", null);
+                }
+            });
+        } else {
+            rejectBusy(promise, "Previous subscribe or purchase operation is not resolved.");
+        }
+    }
+
+    @ReactMethod
+    public void updateSubscription(final ReadableArray oldProductIds, final String productId, final String developerPayload, final Promise promise) {
+        if (rejectIfChannelClosed(promise))
+            return;
+
+        final String requestId = putPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, productId, promise);
+        if (requestId != null) {
+            final ArrayList<String> oldProductIdList = new ArrayList<>();
+            for (int i = 0; i < oldProductIds.size(); i++) {
+                oldProductIdList.add(oldProductIds.getString(i));
+            }
+
+            startPurchaseFlow(requestId, productId, new BillingTask() {
+                @Override
+                public void run(BillingBackend processor) {
+                    boolean updateProcessStarted = processor.updateSubscription(getCurrentActivity(), oldProductIdList, productId, developerPayload);
+
+                    if (!updateProcessStarted)
+                        mPromises.reject(requestId, "E_UNKNOWN", "Could not start subscribe process.", null);
+                }
+            });
+        } else {
+            rejectBusy(promise, "Previous subscribe or purchase operation is not resolved.");
+        }
+    }
+
+    /**
+     * Starts a purchase flow on the serial queue of the product. Failures settle the
+     * registered request rather than a promise of their own.
+     */
+    private void startPurchaseFlow(final String requestId, final String productId, final BillingTask task) {
+        try {
+            mExecutor.executeSerial(productKey(productId), new Runnable() {
+                @Override
+                public void run() {
+                    BillingBackend processor = bp;
+                    if (!isConnected(processor)) {
+                        boolean deferred = deferUntilConnected(new PendingCall() {
+                            @Override
+                            public void run() {
+                                startPurchaseFlow(requestId, productId, task);
+                            }
+
+                            @Override
+                            public void fail(String code, String message) {
+                                mPromises.reject(requestId, code, message, null);
+                            }
+                        });
+
+                        if (!deferred) {
+                            BillingError error = connectionError(processor);
+                            mPromises.reject(requestId, error.code, error.getMessage(), null);
+                        }
+                        return;
+                    }
+
+                    try {
+                        task.run(processor);
+                    } catch (Exception ex) {
+                        mPromises.reject(requestId, "E_UNKNOWN", ex.getMessage(), ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            mPromises.reject(requestId, "E_UNKNOWN", "Too many pending billing operations.", ex);
+        }
+    }
+
+    @ReactMethod
+    public void isSubscribed(final String productId, final Promise promise) {
+        executeRead(METRIC_IS_SUBSCRIBED, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                boolean subscribed = processor.isSubscribed(productId);
+                promise.resolve(subscribed);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void isPurchased(final String productId, final Promise promise) {
+        executeRead(METRIC_IS_PURCHASED, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                boolean purchased = processor.isPurchased(productId);
+                promise.resolve(purchased);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void isSubscribedMany(final ReadableArray productIds, final Promise promise) {
+        checkOwnership(METRIC_IS_SUBSCRIBED_MANY, productIds, false, true, promise);
+    }
+
+    @ReactMethod
+    public void isPurchasedMany(final ReadableArray productIds, final Promise promise) {
+        checkOwnership(METRIC_IS_PURCHASED_MANY, productIds, true, false, promise);
+    }
+
+    /**
+     * Resolves true for ids that are owned either as a managed product or as a subscription.
+     */
+    @ReactMethod
+    public void checkEntitlements(final ReadableArray productIds, final Promise promise) {
+        checkOwnership(METRIC_CHECK_ENTITLEMENTS, productIds, true, true, promise);
+    }
+
+    private void checkOwnership(String metric, final ReadableArray productIds, final boolean products, final boolean subscriptions, final Promise promise) {
+        final ArrayList<String> productIdList = new ArrayList<>();
+        for (int i = 0; i < productIds.size(); i++) {
+            productIdList.add(productIds.getString(i));
+        }
+
+        executeRead(metric, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                WritableMap map = mMapper.createMap();
+
+                for (String productId : productIdList) {
+                    boolean owned = (products && processor.isPurchased(productId))
+                            || (subscriptions && processor.isSubscribed(productId));
+                    map.putBoolean(productId, owned);
+                }
+
+                promise.resolve(map);
+            }
+        });
+    }
+
+    /*
+     * Synchronous reads for render paths. These are served from the in-memory entitlement
+     * index only and never touch the disk or Google Play. Before open() has completed they
+     * report nothing as owned, or what a restored snapshot or shared entitlements hold.
+     * After close() they report nothing as owned until the next refresh.
+     */
+
+    private EntitlementIndex.Snapshot currentEntitlements() {
+        return mEntitlements.get();
+    }
+
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public boolean isPurchasedSync(final String productId) {
+        long start = System.nanoTime();
+        boolean owned = currentEntitlements().productSet.contains(productId);
+        mMetrics.record(METRIC_IS_PURCHASED_SYNC, start, false);
+        return owned;
+    }
+
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public boolean isSubscribedSync(final String productId) {
+        long start = System.nanoTime();
+        boolean owned = currentEntitlements().subscriptionSet.contains(productId);
+        mMetrics.record(METRIC_IS_SUBSCRIBED_SYNC, start, false);
+        return owned;
+    }
+
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableArray listOwnedProductsSync() {
+        long start = System.nanoTime();
+        WritableArray owned = toWritableArray(currentEntitlements().products);
+        mMetrics.record(METRIC_LIST_OWNED_PRODUCTS_SYNC, start, false);
+        return owned;
+    }
+
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableArray listOwnedSubscriptionsSync() {
+        long start = System.nanoTime();
+        WritableArray owned = toWritableArray(currentEntitlements().subscriptions);
+        mMetrics.record(METRIC_LIST_OWNED_SUBSCRIPTIONS_SYNC, start, false);
+        return owned;
+    }
+
+    private WritableArray toWritableArray(List<String> values) {
+        WritableArray arr = mMapper.createArray();
+        for (int i = 0; i < values.size(); i++) {
+            arr.pushString(values.get(i));
+        }
+        return arr;
+    }
+
+    @ReactMethod
+    public void isOneTimePurchaseSupported(final Promise promise) {
+        executeRead(METRIC_IS_ONE_TIME_PURCHASE_SUPPORTED, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                boolean oneTimePurchaseSupported = processor.isOneTimePurchaseSupported();
+                promise.resolve(oneTimePurchaseSupported);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void isValidTransactionDetails(final String productId, final Promise promise) {
+        executeRead(METRIC_IS_VALID_TRANSACTION_DETAILS, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                try {
+                    TransactionDetails details = processor.getPurchaseTransactionDetails(productId);
+                    promise.resolve(isValidTransactionDetails(processor, details));
+                } catch (Exception ex) {
+                    promise.reject("E_UNKNOWN", "Could not validate transaction details", ex);
+                }
+            }
+        });
+    }
+
+    @ReactMethod
+    public void areValidTransactionDetails(ReadableArray productIds, final Promise promise) {
+        // ReadableArray is not safe to read from the billing threads.
+        final ArrayList<String> productIdList = new ArrayList<>();
+        for (int i = 0; i < productIds.size(); i++) {
+            productIdList.add(productIds.getString(i));
+        }
+
+        executeRead(METRIC_ARE_VALID_TRANSACTION_DETAILS, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                try {
+                    WritableMap result = mMapper.createMap();
+                    for (String productId : productIdList) {
+                        TransactionDetails details = processor.getPurchaseTransactionDetails(productId);
+                        if (details == null) {
+                            details = processor.getSubscriptionTransactionDetails(productId);
+                        }
+                        result.putBoolean(productId, details != null && isValidTransactionDetails(processor, details));
+                    }
+                    promise.resolve(result);
+                } catch (Exception ex) {
+                    promise.reject("E_UNKNOWN", "Could not validate transaction details", ex);
+                }
+            }
+        });
+    }
+
+    private boolean isValidTransactionDetails(BillingBackend processor, TransactionDetails details) {
+        if (details == null) {
+            return processor.isValidTransactionDetails(details);
+        }
+
+        Boolean cached = mVerificationCache.get(details);
+        mMetrics.cacheLookup(BillingMetrics.CACHE_VERIFICATION, cached != null ? 1 : 0, cached != null ? 0 : 1);
+        if (cached != null) {
+            return cached;
+        }
+
+        boolean valid = processor.isValidTransactionDetails(details);
+        mVerificationCache.put(details, valid);
+        return valid;
+    }
+
+    @ReactMethod
+    public void listOwnedProducts(final Promise promise) {
+        executeRead(METRIC_LIST_OWNED_PRODUCTS, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                List<String> purchasedProductIds = processor.listOwnedProducts();
+                WritableArray arr = mMapper.createArray();
+
+                for (int i = 0; i < purchasedProductIds.size(); i++) {
+                    arr.pushString(purchasedProductIds.get(i));
+                }
+
+                promise.resolve(arr);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void listOwnedSubscriptions(final Promise promise) {
+        executeRead(METRIC_LIST_OWNED_SUBSCRIPTIONS, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                List<String> ownedSubscriptionsIds = processor.listOwnedSubscriptions();
+                WritableArray arr = mMapper.createArray();
+
+                for (int i = 0; i < ownedSubscriptionsIds.size(); i++) {
+                    arr.pushString(ownedSubscriptionsIds.get(i));
+                }
+
+                promise.resolve(arr);
+            }
+        });
+    }
+
+    /**
+     * Returns one page of the owned products. Pass the nextCursor of the previous page,
+     * or null for the first page.
+     */
+    @ReactMethod
+    public void listOwnedProductsPage(final String cursor, final int pageSize, final Promise promise) {
+        loadOwnedPage(METRIC_LIST_OWNED_PRODUCTS_PAGE, false, cursor, pageSize, promise);
+    }
+
+    @ReactMethod
+    public void listOwnedSubscriptionsPage(final String cursor, final int pageSize, final Promise promise) {
+        loadOwnedPage(METRIC_LIST_OWNED_SUBSCRIPTIONS_PAGE, true, cursor, pageSize, promise);
+    }
+
+    /**
+     * Loads a single page from Google Play. The cursor is Google Play's continuation token,
+     * so only one page is held in memory at a time, however much the account owns.
+     */
+    private void loadOwnedPage(String metric, final boolean subscription, final String cursor, int pageSize, final Promise promise) {
+        final int size = pageSize <= 0 ? DEFAULT_PAGE_SIZE : Math.min(pageSize, MAX_PAGE_SIZE);
+        executeQuery(metric, null, promise, new AsyncBillingTask() {
+            @Override
+            public void run(BillingBackend processor, final TaskCompletion completion) {
+                processor.getOwnedPage(subscription, cursor, size, onBillingThread(new BillingBackend.Callback<BillingBackend.OwnedPage>() {
+                    @Override
+                    public void onSuccess(BillingBackend.OwnedPage result) {
+                        WritableMap page = mMapper.createMap();
+                        page.putArray("items", toWritableArray(result.productIds));
+                        page.putString("nextCursor", result.continuationToken);
+                        promise.resolve(page);
+                        completion.succeeded();
+                    }
+
+                    @Override
+                    public void onFailure(int responseCode) {
+                        completion.failed(new BillingError(responseCode, "Could not load owned items from Google."));
+                    }
+                }));
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getProductDetails(final ReadableArray productIds, final Promise promise) {
+        if (rejectIfChannelClosed(promise))
+            return;
+
+        resolveListingDetails(METRIC_GET_PRODUCT_DETAILS, ProductDetailsCache.TYPE_PRODUCT, productIds, false, promise);
+    }
+
+    @ReactMethod
+    public void getProductDetailsColumns(final ReadableArray productIds, final Promise promise) {
+        if (rejectIfChannelClosed(promise))
+            return;
+
+        resolveListingDetails(METRIC_GET_PRODUCT_DETAILS_COLUMNS, ProductDetailsCache.TYPE_PRODUCT, productIds, true, promise);
+    }
+
+    @ReactMethod
+    public void getSubscriptionDetails(final ReadableArray productIds, final Promise promise) {
+        if (rejectIfChannelClosed(promise))
+            return;
+
+        resolveListingDetails(METRIC_GET_SUBSCRIPTION_DETAILS, ProductDetailsCache.TYPE_SUBSCRIPTION, productIds, false, promise);
+    }
+
+    @ReactMethod
+    public void getSubscriptionDetailsColumns(final ReadableArray productIds, final Promise promise) {
+        if (rejectIfChannelClosed(promise))
+            return;
+
+        resolveListingDetails(METRIC_GET_SUBSCRIPTION_DETAILS_COLUMNS, ProductDetailsCache.TYPE_SUBSCRIPTION, productIds, true, promise);
+    }
+
+    private void resolveListingDetails(final String metric, String type, ReadableArray productIds, final boolean columnar, final Promise promise) {
+        final long start = System.nanoTime();
+        final boolean subscription = ProductDetailsCache.TYPE_SUBSCRIPTION.equals(type);
+        final String noun = subscription ? "subscription" : "product";
+
+        final ArrayList<String> productIdList = new ArrayList<>();
+        for (int i = 0; i < productIds.size(); i++) {
+            productIdList.add(productIds.getString(i));
+        }
+
+        getListingDetails(type, productIdList, new ListingCallback() {
+            @Override
+            public void onDetails(List<SkuDetails> details) {
+                if (columnar)
+                    promise.resolve(mMapper.mapSkuDetailsColumns(details, subscription));
+                else
+                    promise.resolve(mMapper.mapSkuDetailsList(details, subscription));
+                mMetrics.record(metric, start, false);
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                mMetrics.record(metric, start, true);
+                if (error instanceof BillingError)
+                    promise.reject(((BillingError) error).code, error.getMessage(), error);
+                else if (error == null)
+                    promise.reject("E_UNKNOWN", "Could not find " + noun + " details.");
+                else
+                    promise.reject("E_UNKNOWN", "Could not get " + noun + " details.", error);
+            }
+        });
+    }
+
+    /**
+     * Re-queries the given ids every intervalMs, past the product cache, and emits
+     * {@code {watchId, changed, removed}} when any of them changed: the details of the SKUs
+     * whose price, currency, introductory price or trial changed since the previous query,
+     * and the ids Google Play no longer returns. Nothing crosses the bridge while nothing
+     * changes. The first query reports every SKU found. Resolves the id to pass to
+     * unwatchProductDetails.
+     */
+    @ReactMethod
+    public void watchProductDetails(final ReadableArray productIds, final double intervalMs, final Promise promise) {
+        if (rejectIfChannelClosed(promise))
+            return;
+
+        final LinkedHashSet<String> productIdSet = new LinkedHashSet<>();
+        for (int i = 0; i < productIds.size(); i++) {
+            productIdSet.add(productIds.getString(i));
+        }
+
+        String watchId = String.valueOf(mNextWatchId.incrementAndGet());
+        ProductWatch watch = new ProductWatch(watchId, new ArrayList<>(productIdSet),
+                Math.max(mConfig.minWatchIntervalMs, (long) intervalMs));
+        mProductWatches.put(watchId, watch);
+        try {
+            scheduleWatch(watch, 0);
+        } catch (RejectedExecutionException ex) {
+            mProductWatches.remove(watchId);
+            promise.reject("E_UNKNOWN", "Could not schedule product details watch.", ex);
             return;
         }
+        promise.resolve(watchId);
+    }
 
-        clearPromises();
+    /**
+     * Resolves false if there was no such watch.
+     */
+    @ReactMethod
+    public void unwatchProductDetails(final String watchId, final Promise promise) {
+        ProductWatch watch = mProductWatches.remove(watchId);
+        if (watch != null) {
+            watch.cancel();
+        }
+        promise.resolve(watch != null);
+    }
 
-        if (putPromise(PromiseConstants.OPEN, promise)) {
-            try {
-                bp = new BillingProcessor(_reactContext, LICENSE_KEY, this);
-            } catch (Exception ex) {
-                rejectPromise(PromiseConstants.OPEN, "E_CONNECTION", ex.getMessage(), ex);
+    private void scheduleWatch(final ProductWatch watch, long delayMs) {
+        watch.future = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refreshWatch(watch);
             }
-        } else {
-            promise.reject("E_UNKNOWN", "Previous open operation is not resolved.");
+        }, delayMs);
+        // cancel() may have run before the future was assigned.
+        if (watch.cancelled) {
+            watch.future.cancel(false);
         }
     }
 
-    @ReactMethod
-    public void close(final Promise promise) {
-        if (bp != null) {
-            bp.release();
-            bp = null;
+    private void rescheduleWatch(ProductWatch watch) {
+        if (watch.cancelled) {
+            return;
         }
 
-        clearPromises();
-        promise.resolve(true);
-    }
-
-    @ReactMethod
-    public void loadOwnedPurchasesFromGoogle(final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
+        if (isChannelClosed()) {
+            watch.cancel();
+            mProductWatches.remove(watch.id);
             return;
         }
 
-        bp.loadOwnedPurchasesFromGoogle();
-        promise.resolve(true);
+        try {
+            scheduleWatch(watch, watch.intervalMs);
+        } catch (RejectedExecutionException ex) {
+            mProductWatches.remove(watch.id);
+        }
     }
 
-    @Override
-    public void onProductPurchased(String productId, TransactionDetails details) {
-        if (details == null) {
-            rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, "E_UNKNOWN", "There is no transaction information.", null);
+    /**
+     * Looks the ids up as products, then the rest as subscriptions. Goes to the batcher
+     * directly, so the query shares chunks with concurrent lookups and refreshes the cache.
+     * While the service is unavailable the tick is skipped.
+     */
+    private void refreshWatch(final ProductWatch watch) {
+        if (watch.cancelled) {
             return;
         }
 
-        if (!productId.equals(details.purchaseInfo.purchaseData.productId)) {
-            rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, "E_UNKNOWN", "Product id does not match.", null);
+        if (!isConnected(bp) || !mCircuitBreaker.allowRequest()) {
+            rescheduleWatch(watch);
             return;
         }
 
-        WritableMap map = mapTransactionDetails(details);
-        resolvePromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, map);
+        mSkuDetailsBatcher.request(ProductDetailsCache.TYPE_PRODUCT, watch.productIds, new SkuDetailsBatcher.Callback() {
+            @Override
+            public void onResult(Map<String, SkuDetails> products) {
+                final Map<String, SkuDetails> found = new HashMap<>(products);
+                List<String> remaining = new ArrayList<>();
+                for (String productId : watch.productIds) {
+                    if (!found.containsKey(productId)) {
+                        remaining.add(productId);
+                    }
+                }
+
+                if (remaining.isEmpty()) {
+                    completeWatch(watch, found);
+                    return;
+                }
+
+                mSkuDetailsBatcher.request(ProductDetailsCache.TYPE_SUBSCRIPTION, remaining, new SkuDetailsBatcher.Callback() {
+                    @Override
+                    public void onResult(Map<String, SkuDetails> subscriptions) {
+                        found.putAll(subscriptions);
+                        completeWatch(watch, found);
+                    }
+
+                    @Override
+                    public void onFailure(Exception error) {
+                        rescheduleWatch(watch);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                rescheduleWatch(watch);
+            }
+        });
     }
 
-    @Override
-    public void onBillingError(int errorCode, Throwable error) {
-        if (!hasPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE)) {
+    private void completeWatch(ProductWatch watch, Map<String, SkuDetails> found) {
+        if (watch.cancelled) {
             return;
         }
 
-        String errorMessage = error == null ? "Could not purchase product." : error.getMessage();
+        WritableArray changed = mMapper.createArray();
+        WritableArray removed = mMapper.createArray();
+        boolean emit = false;
+
+        // Only one query per watch is in flight, so the fingerprints need no lock.
+        for (String productId : watch.productIds) {
+            SkuDetails detail = found.get(productId);
+            Long previous = watch.fingerprints.get(productId);
+            if (detail == null) {
+                if (previous != null) {
+                    watch.fingerprints.remove(productId);
+                    removed.pushString(productId);
+                    emit = true;
+                }
+                continue;
+            }
 
-        rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, getResponseCode(errorCode), errorMessage, error);
-    }
+            long fingerprint = BillingMapper.fingerprint(detail);
+            if (previous == null || previous != fingerprint) {
+                watch.fingerprints.put(productId, fingerprint);
+                changed.pushMap(mMapper.mapSkuDetails(detail, detail.isSubscription));
+                emit = true;
+            }
+        }
 
-    @ReactMethod
-    public void purchase(final String productId, final String developerPayload, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
-            return;
+        if (emit) {
+            WritableMap event = mMapper.createMap();
+            event.putString("watchId", watch.id);
+            event.putArray("changed", changed);
+            event.putArray("removed", removed);
+            sendEvent(EVENT_PRODUCT_DETAILS_CHANGED, event);
         }
 
-        if (putPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, promise)) {
-            boolean purchaseProcessStarted = bp.purchase(getCurrentActivity(), productId, developerPayload);
-            if (!purchaseProcessStarted)
-                rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, "E_UNKNOWN", "Could not start purchase process.", null);
-        } else {
-            promise.reject("E_UNKNOWN", "Previous purchase or subscribe operation is not resolved.");
+        rescheduleWatch(watch);
+    }
+
+    private void cancelWatches() {
+        for (ProductWatch watch : mProductWatches.values()) {
+            watch.cancel();
         }
+        mProductWatches.clear();
     }
 
-    @ReactMethod
-    public void consumePurchase(final String productId, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
-            return;
+    private static final class ProductWatch {
+        final String id;
+        final List<String> productIds;
+        final long intervalMs;
+        final Map<String, Long> fingerprints = new HashMap<>();
+        volatile boolean cancelled = false;
+        volatile ScheduledFuture<?> future;
+
+        ProductWatch(String id, List<String> productIds, long intervalMs) {
+            this.id = id;
+            this.productIds = productIds;
+            this.intervalMs = intervalMs;
         }
 
-        try {
-            boolean consumed = bp.consumePurchase(productId);
-            if (consumed)
-                promise.resolve(true);
-            else
-                promise.reject("E_UNKNOWN", "Could not consume purchase");
-        } catch (Exception ex) {
-            promise.reject("E_UNKNOWN", ex.getMessage(), ex);
+        void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> pending = future;
+            if (pending != null) {
+                pending.cancel(false);
+            }
         }
     }
 
-    @ReactMethod
-    public void subscribe(final String productId, final String developerPayload, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
+    interface ListingCallback {
+        /**
+         * @param details the found details, in the order they were requested
+         */
+        void onDetails(List<SkuDetails> details);
+
+        /**
+         * @param error the failure, or null if Google Play returned no details
+         */
+        void onFailure(Exception error);
+    }
+
+    /**
+     * Serves fresh details from the product cache and hands missing or stale ids to the
+     * batcher, which merges them with concurrent lookups into chunked Google Play queries.
+     */
+    void getListingDetails(final String type, final List<String> productIds, final ListingCallback callback) {
+        getListingDetails(type, productIds, callback, 0);
+    }
+
+    private void getListingDetails(final String type, final List<String> productIds, final ListingCallback callback, final int attempt) {
+        final ProductDetailsCache.Lookup lookup = mProductCache.lookup(type, productIds);
+
+        if (lookup.missing.isEmpty()) {
+            mMetrics.cacheLookup(BillingMetrics.CACHE_PRODUCT_DETAILS, lookup.found.size(), 0);
+            callback.onDetails(lookup.inOrder(productIds));
             return;
         }
 
-        if (putPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, promise)) {
-            boolean subscribeProcessStarted = bp.subscribe(getCurrentActivity(), productId, developerPayload);
-            if (!subscribeProcessStarted)
-                rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, "E_UNKNOWN", "Could not start subscribe process.", null);
-        } else {
-            promise.reject("E_UNKNOWN", "Previous subscribe or purchase operation is not resolved.");
+        BillingBackend processor = bp;
+        boolean connected = isConnected(processor);
+        if (!connected) {
+            boolean deferred = deferUntilConnected(new PendingCall() {
+                @Override
+                public void run() {
+                    getListingDetails(type, productIds, callback, attempt);
+                }
+
+                @Override
+                public void fail(String code, String message) {
+                    callback.onFailure(new BillingError(code, message));
+                }
+            });
+
+            if (deferred)
+                return;
         }
-    }
 
-    @ReactMethod
-    public void updateSubscription(final ReadableArray oldProductIds, final String productId, final String developerPayload, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
+        if (attempt == 0)
+            mMetrics.cacheLookup(BillingMetrics.CACHE_PRODUCT_DETAILS, lookup.found.size(), lookup.missing.size());
+
+        if (!connected) {
+            onListingDetailsFailed(type, productIds, lookup, callback, connectionError(processor), attempt);
             return;
         }
 
-        if (putPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, promise)) {
-            ArrayList<String> oldProductIdList = new ArrayList<>();
-            for (int i = 0; i < oldProductIds.size(); i++) {
-                oldProductIdList.add(oldProductIds.getString(i));
+        if (!mCircuitBreaker.allowRequest()) {
+            serveStaleListingDetails(type, productIds, lookup, callback,
+                    new BillingError("E_SERVICE_UNAVAILABLE", "Google Play is unavailable. Try again later."));
+            return;
+        }
+
+        mSkuDetailsBatcher.request(type, lookup.missing, new SkuDetailsBatcher.Callback() {
+            @Override
+            public void onResult(Map<String, SkuDetails> details) {
+                lookup.found.putAll(details);
+                callback.onDetails(lookup.inOrder(productIds));
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                onListingDetailsFailed(type, productIds, lookup, callback, error, attempt);
+            }
+        });
+    }
+
+    /**
+     * Retries the lookup, or answers from the stale cache once a transient failure is final.
+     */
+    private void onListingDetailsFailed(final String type, final List<String> productIds, ProductDetailsCache.Lookup lookup,
+                                        final ListingCallback callback, Exception error, final int attempt) {
+        boolean retrying = scheduleRetry(error, attempt, new Runnable() {
+            @Override
+            public void run() {
+                getListingDetails(type, productIds, callback, attempt + 1);
             }
+        });
 
-            boolean updateProcessStarted = bp.updateSubscription(getCurrentActivity(), oldProductIdList, productId, developerPayload);
+        if (retrying)
+            return;
+
+        if (RetryPolicy.isTransient(error))
+            serveStaleListingDetails(type, productIds, lookup, callback, error);
+        else
+            callback.onFailure(error);
+    }
 
-            if (!updateProcessStarted)
-                rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, "E_UNKNOWN", "Could not start subscribe process.", null);
+    /**
+     * While Google Play is unavailable, answers with whatever is cached, even if expired.
+     * Fails only if none of the requested details are cached.
+     */
+    private void serveStaleListingDetails(String type, List<String> productIds, ProductDetailsCache.Lookup lookup,
+                                          ListingCallback callback, Exception error) {
+        lookup.found.putAll(mProductCache.lookupStale(type, lookup.missing));
+        if (lookup.found.isEmpty()) {
+            callback.onFailure(error);
         } else {
-            promise.reject("E_UNKNOWN", "Previous subscribe or purchase operation is not resolved.");
+            callback.onDetails(lookup.inOrder(productIds));
         }
     }
 
-    @ReactMethod
-    public void isSubscribed(final String productId, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
+    private final SkuDetailsBatcher.Fetcher mListingFetcher = new SkuDetailsBatcher.Fetcher() {
+        @Override
+        public void fetch(final String type, ArrayList<String> productIds, final SkuDetailsBatcher.FetchCallback callback) {
+            BillingBackend processor = bp;
+            if (processor == null) {
+                // Closed while the lookup was queued.
+                callback.onFailure(new BillingError("E_CONNECTION", CHANNEL_NOT_OPENED));
+                return;
+            }
+
+            BillingBackend.Callback<List<SkuDetails>> fetched = onBillingThread(new BillingBackend.Callback<List<SkuDetails>>() {
+                @Override
+                public void onSuccess(List<SkuDetails> details) {
+                    mCircuitBreaker.onSuccess();
+                    mProductCache.put(type, details);
+                    scheduleSnapshotWrite();
+                    callback.onResult(details);
+                }
+
+                @Override
+                public void onFailure(int responseCode) {
+                    BillingError error = new BillingError(responseCode, "Could not query Google Play for details.");
+                    mCircuitBreaker.onFailure(RetryPolicy.isTransient(error));
+                    callback.onFailure(error);
+                }
+            });
+
+            if (ProductDetailsCache.TYPE_SUBSCRIPTION.equals(type))
+                processor.getSubscriptionListingDetails(productIds, fetched);
+            else
+                processor.getPurchaseListingDetails(productIds, fetched);
+        }
+    };
+
+    /**
+     * Loads the on-disk snapshot, if enabled, into the product cache as stale entries and
+     * into the entitlement index, so both can be served before open() completes.
+     */
+    private void restoreSnapshot() {
+        if (mSnapshotStore == null) {
             return;
         }
 
-        boolean subscribed = bp.isSubscribed(productId);
-        promise.resolve(subscribed);
+        runSnapshotTask(new Runnable() {
+            @Override
+            public void run() {
+                BillingSnapshotStore.Snapshot snapshot = mSnapshotStore.read();
+                if (snapshot == null) {
+                    return;
+                }
+
+                mSnapshotSavedAt = snapshot.savedAt;
+                mProductCache.putStale(ProductDetailsCache.TYPE_PRODUCT, snapshot.products);
+                mProductCache.putStale(ProductDetailsCache.TYPE_SUBSCRIPTION, snapshot.subscriptions);
+
+                seedEntitlements(new EntitlementIndex.Snapshot(snapshot.ownedProducts, snapshot.ownedSubscriptions));
+            }
+        });
     }
 
-    @ReactMethod
-    public void isPurchased(final String productId, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
+    /**
+     * Seeds the entitlement index from the shared entitlements, if enabled, unless a refresh
+     * or close() got there first.
+     */
+    private void restoreSharedEntitlements() {
+        if (mSharedEntitlementsFile == null) {
             return;
         }
 
-        boolean purchased = bp.isPurchased(productId);
-        promise.resolve(purchased);
+        try {
+            mExecutor.executeSerial(SHARED_ENTITLEMENTS_KEY, new Runnable() {
+                @Override
+                public void run() {
+                    BillingEntitlements shared = BillingEntitlements.read(mSharedEntitlementsFile);
+                    if (shared != null) {
+                        seedEntitlements(new EntitlementIndex.Snapshot(shared.getProducts(), shared.getSubscriptions()));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(LOG_TAG, "Could not restore shared entitlements", ex);
+        }
     }
 
-    @ReactMethod
-    public void isOneTimePurchaseSupported(final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
+    private void seedEntitlements(EntitlementIndex.Snapshot seeded) {
+        if (mEntitlementsClosed || !mEntitlements.setIfEmpty(seeded)) {
             return;
         }
 
-        boolean oneTimePurchaseSupported = bp.isOneTimePurchaseSupported();
-        promise.resolve(oneTimePurchaseSupported);
+        if (mEntitlementsClosed) {
+            // close() ran between the check and the seed.
+            mEntitlements.clear(seeded);
+        }
     }
 
-    @ReactMethod
-    public void isValidTransactionDetails(final String productId, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
+    /**
+     * Re-fetches every known SKU once the service is bound, then persists the result and
+     * tells JS that the snapshot is no longer stale.
+     */
+    private void revalidateSnapshot() {
+        if (mSnapshotStore == null || mSnapshotFresh) {
             return;
         }
 
         try {
-            TransactionDetails details = bp.getPurchaseTransactionDetails(productId);
-            promise.resolve(bp.isValidTransactionDetails(details));
-        } catch (Exception ex) {
-            promise.reject("E_UNKNOWN", "Could not validate transaction details", ex);
+            // Queued behind the entitlement refresh started by onBillingInitialized.
+            mExecutor.executeSerial(OWNED_PURCHASES_KEY, new Runnable() {
+                @Override
+                public void run() {
+                    final AtomicInteger pending = new AtomicInteger(2);
+                    final AtomicBoolean failed = new AtomicBoolean(false);
+
+                    ListingCallback callback = new ListingCallback() {
+                        @Override
+                        public void onDetails(List<SkuDetails> details) {
+                            complete();
+                        }
+
+                        @Override
+                        public void onFailure(Exception error) {
+                            failed.set(true);
+                            complete();
+                        }
+
+                        private void complete() {
+                            if (pending.decrementAndGet() == 0 && !failed.get()) {
+                                mSnapshotFresh = true;
+                                runSnapshotTask(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        writeSnapshot();
+                                        sendEvent(EVENT_SNAPSHOT_REFRESHED, buildSnapshotPayload());
+                                    }
+                                });
+                            }
+                        }
+                    };
+
+                    revalidateListing(ProductDetailsCache.TYPE_PRODUCT, callback);
+                    revalidateListing(ProductDetailsCache.TYPE_SUBSCRIPTION, callback);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(LOG_TAG, "Could not revalidate billing snapshot", ex);
         }
     }
 
-    @ReactMethod
-    public void listOwnedProducts(final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
-            return;
+    private void revalidateListing(String type, ListingCallback callback) {
+        List<String> productIds = new ArrayList<>();
+        for (SkuDetails detail : mProductCache.values(type)) {
+            productIds.add(detail.productId);
         }
 
-        List<String> purchasedProductIds = bp.listOwnedProducts();
-        WritableArray arr = Arguments.createArray();
-
-        for (int i = 0; i < purchasedProductIds.size(); i++) {
-            arr.pushString(purchasedProductIds.get(i));
+        if (productIds.isEmpty()) {
+            callback.onDetails(Collections.<SkuDetails>emptyList());
+        } else {
+            getListingDetails(type, productIds, callback);
         }
-
-        promise.resolve(arr);
     }
 
-    @ReactMethod
-    public void listOwnedSubscriptions(final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
+    private void scheduleSnapshotWrite() {
+        if (mSnapshotStore == null || !mSnapshotWriteScheduled.compareAndSet(false, true)) {
             return;
         }
 
-        List<String> ownedSubscriptionsIds = bp.listOwnedSubscriptions();
-        WritableArray arr = Arguments.createArray();
+        try {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mSnapshotWriteScheduled.set(false);
+                    runSnapshotTask(new Runnable() {
+                        @Override
+                        public void run() {
+                            writeSnapshot();
+                        }
+                    });
+                }
+            }, SNAPSHOT_WRITE_DELAY_MS);
+        } catch (RejectedExecutionException ex) {
+            mSnapshotWriteScheduled.set(false);
+        }
+    }
+
+    private void writeSnapshot() {
+        EntitlementIndex.Snapshot entitlements = mEntitlements.get();
+        long savedAt = System.currentTimeMillis();
+
+        boolean written = mSnapshotStore.write(new BillingSnapshotStore.Snapshot(savedAt,
+                mProductCache.values(ProductDetailsCache.TYPE_PRODUCT),
+                mProductCache.values(ProductDetailsCache.TYPE_SUBSCRIPTION),
+                entitlements.products,
+                entitlements.subscriptions));
 
-        for (int i = 0; i < ownedSubscriptionsIds.size(); i++) {
-            arr.pushString(ownedSubscriptionsIds.get(i));
+        if (written) {
+            mSnapshotSavedAt = savedAt;
+        }
+    }
+
+    private void runSnapshotTask(Runnable task) {
+        try {
+            mExecutor.executeSerial(SNAPSHOT_KEY, task);
+        } catch (RejectedExecutionException ex) {
+            Log.w(LOG_TAG, "Could not schedule billing snapshot task", ex);
         }
+    }
+
+    private WritableMap buildSnapshotPayload() {
+        EntitlementIndex.Snapshot entitlements = mEntitlements.get();
+        WritableMap map = mMapper.createMap();
 
-        promise.resolve(arr);
+        map.putBoolean("stale", !mSnapshotFresh);
+        map.putDouble("savedAt", mSnapshotSavedAt);
+        map.putArray("products", mMapper.mapSkuDetailsList(mProductCache.values(ProductDetailsCache.TYPE_PRODUCT), false));
+        map.putArray("subscriptions", mMapper.mapSkuDetailsList(mProductCache.values(ProductDetailsCache.TYPE_SUBSCRIPTION), true));
+        map.putArray("ownedProducts", toWritableArray(entitlements.products));
+        map.putArray("ownedSubscriptions", toWritableArray(entitlements.subscriptions));
+
+        return map;
     }
 
+    /**
+     * Returns the last known catalog and entitlements without waiting for open(). The
+     * result is flagged stale until it has been revalidated against Google Play.
+     */
     @ReactMethod
-    public void getProductDetails(final ReadableArray productIds, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_CONNECTION", "Channel is not opened. Call open() on InAppBilling.");
-            return;
+    public void getSnapshot(final Promise promise) {
+        try {
+            // Queued behind restoreSnapshot() so a cold start sees the restored data.
+            mExecutor.executeSerial(SNAPSHOT_KEY, new Runnable() {
+                @Override
+                public void run() {
+                    promise.resolve(buildSnapshotPayload());
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            promise.reject("E_UNKNOWN", "Too many pending billing operations.", ex);
         }
+    }
 
-        try {
+    @ReactMethod
+    public void invalidateProductCache(final ReadableArray productIds, final Promise promise) {
+        if (productIds == null) {
+            mProductCache.invalidateAll();
+        } else {
             ArrayList<String> productIdList = new ArrayList<>();
             for (int i = 0; i < productIds.size(); i++) {
                 productIdList.add(productIds.getString(i));
             }
+            mProductCache.invalidate(productIdList);
+        }
 
-            List<SkuDetails> details = bp.getPurchaseListingDetails(productIdList);
+        promise.resolve(true);
+    }
 
-            if (details != null) {
-                WritableArray arr = Arguments.createArray();
-                for (SkuDetails detail : details) {
-                    if (detail != null) {
-                        WritableMap map = Arguments.createMap();
-
-                        map.putString("productId", detail.productId);
-                        map.putString("title", detail.title);
-                        map.putString("description", detail.description);
-                        map.putBoolean("isSubscription", detail.isSubscription);
-                        map.putString("currency", detail.currency);
-                        map.putDouble("priceValue", detail.priceValue);
-                        map.putString("priceText", detail.priceText);
-                        arr.pushMap(map);
-                    }
+    @ReactMethod
+    public void getPurchaseTransactionDetails(final String productId, final Promise promise) {
+        executeRead(METRIC_GET_PURCHASE_TRANSACTION_DETAILS, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                TransactionDetails details = processor.getPurchaseTransactionDetails(productId);
+                if (details != null && productId.equals(details.purchaseInfo.purchaseData.productId)) {
+                    WritableMap map = mMapper.mapTransactionDetails(details);
+                    promise.resolve(map);
+                } else {
+                    promise.reject("E_UNKNOWN", "Could not find transaction details for product id.");
                 }
+            }
+        });
+    }
 
-                promise.resolve(arr);
-            } else {
-                promise.reject("E_UNKNOWN", "Could not find product details.");
+    @ReactMethod
+    public void getSubscriptionTransactionDetails(final String productId, final Promise promise) {
+        executeRead(METRIC_GET_SUBSCRIPTION_TRANSACTION_DETAILS, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                TransactionDetails details = processor.getSubscriptionTransactionDetails(productId);
+                if (details != null && productId.equals(details.purchaseInfo.purchaseData.productId)) {
+                    WritableMap map = mMapper.mapTransactionDetails(details);
+                    promise.resolve(map);
+                } else {
+                    promise.reject("E_UNKNOWN", "Could not find transaction details for product id.");
+                }
             }
-        } catch (Exception ex) {
-            promise.reject("E_UNKNOWN", "Could not get product details.", ex);
-        }
+        });
     }
 
+    /**
+     * Returns the mapped details of every owned purchase in one call, as
+     * {products, subscriptions}. Options: type ("inapp" or "subs", both if omitted) and
+     * since (ms since epoch; only purchases made at or after it are returned).
+     */
     @ReactMethod
-    public void getSubscriptionDetails(final ReadableArray productIds, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_UNKNOWN", "Channel is not opened. Call open() on InAppBilling.");
-            return;
-        }
+    public void getAllTransactionDetails(final ReadableMap options, final Promise promise) {
+        String type = options != null && options.hasKey("type") && !options.isNull("type")
+                ? options.getString("type") : null;
+        final long since = options != null && options.hasKey("since") && !options.isNull("since")
+                ? (long) options.getDouble("since") : Long.MIN_VALUE;
+        final boolean products = type == null || ProductDetailsCache.TYPE_PRODUCT.equals(type);
+        final boolean subscriptions = type == null || ProductDetailsCache.TYPE_SUBSCRIPTION.equals(type);
+
+        executeRead(METRIC_GET_ALL_TRANSACTION_DETAILS, promise, new BillingTask() {
+            @Override
+            public void run(BillingBackend processor) {
+                WritableMap map = mMapper.createMap();
+                map.putArray("products", products
+                        ? mapTransactionDetailsSince(processor.getAllPurchaseTransactionDetails(), since)
+                        : mMapper.createArray());
+                map.putArray("subscriptions", subscriptions
+                        ? mapTransactionDetailsSince(processor.getAllSubscriptionTransactionDetails(), since)
+                        : mMapper.createArray());
+                promise.resolve(map);
+            }
+        });
+    }
 
-        try {
-            ArrayList<String> productIdList = new ArrayList<>();
-            for (int i = 0; i < productIds.size(); i++) {
-                productIdList.add(productIds.getString(i));
+    private WritableArray mapTransactionDetailsSince(List<TransactionDetails> all, long since) {
+        WritableArray arr = mMapper.createArray();
+        for (TransactionDetails details : all) {
+            Date purchaseTime = details.purchaseInfo.purchaseData.purchaseTime;
+            if (since == Long.MIN_VALUE || (purchaseTime != null && purchaseTime.getTime() >= since)) {
+                arr.pushMap(mMapper.mapTransactionDetails(details));
             }
+        }
+        return arr;
+    }
 
-            List<SkuDetails> details = bp.getSubscriptionListingDetails(productIdList);
+    @Override
+    public void onPurchaseHistoryRestored() {
+        /*
+         * Called when purchase history was restored and the list of all owned PRODUCT ID's
+         * was loaded from Google Play
+         */
+        refreshEntitlements();
 
-            if (details != null) {
-                WritableArray arr = Arguments.createArray();
-                for (SkuDetails detail : details) {
-                    if (detail != null) {
-                        WritableMap map = Arguments.createMap();
-
-                        map.putString("productId", detail.productId);
-                        map.putString("title", detail.title);
-                        map.putString("description", detail.description);
-                        map.putBoolean("isSubscription", detail.isSubscription);
-                        map.putString("currency", detail.currency);
-                        map.putDouble("priceValue", detail.priceValue);
-                        map.putString("priceText", detail.priceText);
-                        map.putString("subscriptionPeriod", detail.subscriptionPeriod);
-                        if (detail.subscriptionFreeTrialPeriod != null)
-                            map.putString("subscriptionFreeTrialPeriod", detail.subscriptionFreeTrialPeriod);
-                        map.putBoolean("haveTrialPeriod", detail.haveTrialPeriod);
-                        map.putDouble("introductoryPriceValue", detail.introductoryPriceValue);
-                        if (detail.introductoryPriceText != null)
-                            map.putString("introductoryPriceText", detail.introductoryPriceText);
-                        if (detail.introductoryPricePeriod != null)
-                            map.putString("introductoryPricePeriod", detail.introductoryPricePeriod);
-                        map.putBoolean("haveIntroductoryPeriod", detail.haveIntroductoryPeriod);
-                        map.putInt("introductoryPriceCycles", detail.introductoryPriceCycles);
-                        arr.pushMap(map);
+        if (mReceiptUploader != null) {
+            try {
+                mExecutor.executeSerial(OWNED_PURCHASES_KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        BillingBackend processor = bp;
+                        if (processor != null) {
+                            enqueueOwnedReceipts(processor);
+                        }
                     }
-                }
-
-                promise.resolve(arr);
-            } else {
-                promise.reject("E_UNKNOWN", "Could not find subscription details.");
+                });
+            } catch (RejectedExecutionException ex) {
+                Log.w(LOG_TAG, "Could not queue restored receipts", ex);
             }
-        } catch (Exception ex) {
-            promise.reject("E_UNKNOWN", "Could not get subscription details.", ex);
         }
     }
 
-    @ReactMethod
-    public void getPurchaseTransactionDetails(final String productId, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_UNKNOWN", "Channel is not opened. Call open() on InAppBilling.");
+    /**
+     * Queues the receipts of every owned item for upload. Ones already queued or uploaded
+     * are skipped by the uploader.
+     */
+    private void enqueueOwnedReceipts(BillingBackend processor) {
+        if (mReceiptUploader == null) {
             return;
         }
 
-        TransactionDetails details = bp.getPurchaseTransactionDetails(productId);
-        if (details != null && productId.equals(details.purchaseInfo.purchaseData.productId)) {
-            WritableMap map = mapTransactionDetails(details);
-            promise.resolve(map);
-        } else {
-            promise.reject("E_UNKNOWN", "Could not find transaction details for product id.");
+        for (TransactionDetails details : processor.getAllPurchaseTransactionDetails()) {
+            mReceiptUploader.enqueue(details);
+        }
+        for (TransactionDetails details : processor.getAllSubscriptionTransactionDetails()) {
+            mReceiptUploader.enqueue(details);
         }
     }
 
-    @ReactMethod
-    public void getSubscriptionTransactionDetails(final String productId, final Promise promise) {
-        if (bp == null) {
-            promise.reject("E_UNKNOWN", "Channel is not opened. Call open() on InAppBilling.");
+    private BillingBackend createBackend() {
+        return new MeteredBillingBackend(mConfig.backend.create(_reactContext, LICENSE_KEY, this), mMetrics);
+    }
+
+    private Boolean isIabServiceAvailable() {
+        return mConfig.backend.isAvailable(_reactContext);
+    }
+
+    public void onActivityResult(final Activity activity, final int requestCode, final int resultCode, final Intent intent) {
+        if (mShortCircuit) {
+            shortCircuitActivityResult(activity, requestCode, resultCode, intent);
             return;
         }
 
-        TransactionDetails details = bp.getSubscriptionTransactionDetails(productId);
-        if (details != null && productId.equals(details.purchaseInfo.purchaseData.productId)) {
-            WritableMap map = mapTransactionDetails(details);
-            promise.resolve(map);
-        } else {
-            promise.reject("E_UNKNOWN", "Could not find transaction details for product id.");
+        boolean handled = bp != null && bp.handleActivityResult(requestCode, resultCode, intent);
+        if (!handled && requestCode == PURCHASE_FLOW_REQUEST_CODE) {
+            // The backend dropped the result (no intent, or the channel closed meanwhile) and
+            // will never call back, so settle the flow here instead of blocking the next one.
+            mMetrics.increment("lostActivityResult");
+            rejectPromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE,
+                    resultCode == Activity.RESULT_CANCELED ? "E_USER_CANCELED" : "E_UNKNOWN",
+                    "The purchase flow returned no result. Code: " + resultCode, null);
         }
     }
 
-    private WritableMap mapTransactionDetails(TransactionDetails details) {
-        WritableMap map = Arguments.createMap();
+    /**
+     * Resolves CLOSED, OPEN or HALF_OPEN, see {@link CircuitBreaker}.
+     */
+    @ReactMethod
+    public void getCircuitBreakerState(final Promise promise) {
+        promise.resolve(mCircuitBreaker.getState().name());
+    }
+
+    /**
+     * Starts uploading the queued receipts now instead of waiting for the batch window or
+     * the next retry, and resolves the number of receipts waiting.
+     */
+    @ReactMethod
+    public void flushReceiptUploads(final Promise promise) {
+        if (mReceiptUploader == null) {
+            promise.reject("E_UNKNOWN", "Receipt upload is not enabled. Call BillingConfig.setReceiptUpload.");
+            return;
+        }
 
-        map.putString("receiptData", details.purchaseInfo.responseData);
+        mReceiptUploader.flush();
+        promise.resolve(mReceiptUploader.pendingCount());
+    }
 
-        if (details.purchaseInfo.signature != null)
-            map.putString("receiptSignature", details.purchaseInfo.signature);
+    @ReactMethod
+    public void getMetrics(final Promise promise) {
+        promise.resolve(buildMetricsPayload());
+    }
 
-        PurchaseData purchaseData = details.purchaseInfo.purchaseData;
+    @ReactMethod
+    public void resetMetrics(final Promise promise) {
+        mMetrics.reset();
+        promise.resolve(true);
+    }
 
-        map.putString("productId", purchaseData.productId);
-        map.putString("orderId", purchaseData.orderId);
-        map.putString("purchaseToken", purchaseData.purchaseToken);
-        map.putString("purchaseTime", purchaseData.purchaseTime == null
-                ? "" : purchaseData.purchaseTime.toString());
-        map.putString("purchaseState", purchaseData.purchaseState == null
-                ? "" : purchaseData.purchaseState.toString());
-        map.putBoolean("autoRenewing", purchaseData.autoRenewing);
+    /**
+     * Emits the metrics as an event every intervalMs until stopMetricsEvents() is called.
+     */
+    @ReactMethod
+    public void startMetricsEvents(final double intervalMs, final Promise promise) {
+        synchronized (mMetricsEventsLock) {
+            if (mMetricsEvents != null) {
+                mMetricsEvents.cancel(false);
+            }
 
-        if (purchaseData.developerPayload != null) {
-            map.putString("developerPayload", purchaseData.developerPayload);
+            mMetricsEventsToken = new Object();
+            try {
+                scheduleMetricsEvent(mMetricsEventsToken, Math.max(MIN_METRICS_INTERVAL_MS, (long) intervalMs));
+            } catch (RejectedExecutionException ex) {
+                mMetricsEventsToken = null;
+                mMetricsEvents = null;
+                promise.reject("E_UNKNOWN", "Could not schedule metrics events.", ex);
+                return;
+            }
         }
+        promise.resolve(true);
+    }
 
-        return map;
+    @ReactMethod
+    public void stopMetricsEvents(final Promise promise) {
+        synchronized (mMetricsEventsLock) {
+            mMetricsEventsToken = null;
+            if (mMetricsEvents != null) {
+                mMetricsEvents.cancel(false);
+                mMetricsEvents = null;
+            }
+        }
+        promise.resolve(true);
     }
 
-    @Override
-    public void onPurchaseHistoryRestored() {
-        /*
-         * Called when purchase history was restored and the list of all owned PRODUCT ID's
-         * was loaded from Google Play
-         */
+    private void scheduleMetricsEvent(final Object token, final long intervalMs) {
+        mMetricsEvents = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mMetricsEventsLock) {
+                    if (mMetricsEventsToken != token) {
+                        return;
+                    }
+                    try {
+                        scheduleMetricsEvent(token, intervalMs);
+                    } catch (RejectedExecutionException ex) {
+                        mMetricsEventsToken = null;
+                        mMetricsEvents = null;
+                    }
+                }
+                sendEvent(EVENT_METRICS, buildMetricsPayload());
+            }
+        }, intervalMs);
     }
 
-    private Boolean isIabServiceAvailable() {
-        return BillingProcessor.isIabServiceAvailable(_reactContext);
+    WritableMap buildMetricsPayload() {
+        WritableMap map = mMetrics.toWritableMap(mMapper);
+        map.putInt("pendingPromises", mPromises.size());
+        map.putArray("pendingPromiseDetails", buildPendingPromises());
+        map.putString("circuitBreaker", mCircuitBreaker.getState().name());
+        if (mReceiptUploader != null) {
+            map.putInt("pendingReceipts", mReceiptUploader.pendingCount());
+        }
+        return map;
     }
 
-    public void onActivityResult(final Activity activity, final int requestCode, final int resultCode, final Intent intent) {
-        if (mShortCircuit) {
-            shortCircuitActivityResult(activity, requestCode, resultCode, intent);
-            return;
+    private WritableArray buildPendingPromises() {
+        long now = System.currentTimeMillis();
+        WritableArray array = mMapper.createArray();
+        for (PromiseRegistry.Entry entry : mPromises.pending()) {
+            WritableMap map = mMapper.createMap();
+            map.putString("requestId", entry.requestId);
+            map.putString("kind", entry.kind);
+            map.putString("productId", entry.productId);
+            map.putDouble("ageMs", entry.ageMillis());
+            map.putDouble("remainingMs", Math.max(0, entry.deadline - now));
+            array.pushMap(map);
         }
+        return array;
+    }
 
-        if (bp != null) {
-            bp.handleActivityResult(requestCode, resultCode, intent);
+    /**
+     * Rejects a purchase flow that cannot start because another one is pending, naming
+     * the pending one so a flow that never settled can be told apart from a double tap.
+     */
+    private void rejectBusy(Promise promise, String reason) {
+        PromiseRegistry.Entry pending = mPromises.active(PromiseConstants.PURCHASE_OR_SUBSCRIBE);
+        if (pending != null) {
+            reason = String.format("%s Pending: %s for %d ms.", reason, pending.productId, pending.ageMillis());
         }
+        promise.reject("E_UNKNOWN", reason);
     }
 
     @ReactMethod
@@ -482,7 +2579,7 @@ public class InAppBillingBridge extends ReactContextBaseJavaModule implements Ac
             return;
         }
 
-        int responseCode = intent.getIntExtra(RESPONSE_CODE, BILLING_RESPONSE_RESULT_OK);
+        int responseCode = intent == null ? BILLING_RESPONSE_RESULT_ERROR : intent.getIntExtra(RESPONSE_CODE, BILLING_RESPONSE_RESULT_OK);
         if (resultCode == Activity.RESULT_OK && responseCode == BILLING_RESPONSE_RESULT_OK) {
             resolvePromise(PromiseConstants.PURCHASE_OR_SUBSCRIBE, true);
         } else {
@@ -495,63 +2592,70 @@ public class InAppBillingBridge extends ReactContextBaseJavaModule implements Ac
 
     }
 
-    synchronized void resolvePromise(String key, Object value) {
-        if (mPromiseCache.containsKey(key)) {
-            Promise promise = mPromiseCache.get(key);
-            promise.resolve(value);
-            mPromiseCache.remove(key);
+    /**
+     * Resolves the pending request of the given kind, if any.
+     */
+    void resolvePromise(String kind, Object value) {
+        PromiseRegistry.Entry entry = mPromises.active(kind);
+        if (entry != null) {
+            mPromises.resolve(entry.requestId, value);
         } else {
-            Log.w(LOG_TAG, String.format("Tried to resolve promise: %s - but does not exist in cache", key));
+            Log.w(LOG_TAG, String.format("Tried to resolve promise: %s - but does not exist in cache", kind));
         }
     }
 
-    synchronized void rejectPromise(String key, String code, String reason, Throwable throwable) {
-        if (mPromiseCache.containsKey(key)) {
-            Promise promise = mPromiseCache.get(key);
-            promise.reject(code, reason, throwable);
-            mPromiseCache.remove(key);
+    /**
+     * Rejects the pending request of the given kind, if any.
+     */
+    void rejectPromise(String kind, String code, String reason, Throwable throwable) {
+        PromiseRegistry.Entry entry = mPromises.active(kind);
+        if (entry != null) {
+            mPromises.reject(entry.requestId, code, reason, throwable);
         } else {
-            Log.w(LOG_TAG, String.format("Tried to reject promise: %s - but does not exist in cache", key));
+            Log.w(LOG_TAG, String.format("Tried to reject promise: %s - but does not exist in cache", kind));
         }
     }
 
-    synchronized Boolean putPromise(String key, Promise promise) {
-        if (!mPromiseCache.containsKey(key)) {
-            mPromiseCache.put(key, promise);
-            return true;
-        } else {
-            Log.w(LOG_TAG, String.format("Tried to put promise: %s - already exists in cache", key));
-        }
-        return false;
+    /**
+     * Registers the promise under a new request id with the timeout of its kind.
+     *
+     * @return the request id, or null if a request of the same kind is still pending
+     */
+    String putPromise(String kind, String productId, Promise promise) {
+        long timeoutMs = PromiseConstants.OPEN.equals(kind) ? mConfig.openTimeoutMs : mConfig.purchaseTimeoutMs;
+        return mPromises.register(kind, productId, promise, timeoutMs);
     }
 
-    synchronized Boolean hasPromise(String key) {
-        return mPromiseCache.containsKey(key);
+    Boolean hasPromise(String kind) {
+        return mPromises.active(kind) != null;
     }
 
-    synchronized void clearPromises() {
-        mPromiseCache.clear();
+    /**
+     * Rejects every pending request, so no promise outlives the channel it was waiting on.
+     */
+    void clearPromises() {
+        mPromises.rejectAll("E_CONNECTION", "Channel was closed.");
     }
 
     // https://developer.android.com/google/play/billing/billing_reference
-    synchronized String getResponseCode(Integer code) {
-        final Map<Integer, String> constants = new HashMap<>();
-
-        constants.put(1, "E_USER_CANCELED");
-        constants.put(2, "E_SERVICE_UNAVAILABLE");
-        constants.put(3, "E_BILLING_UNAVAILABLE");
-        constants.put(4, "E_ITEM_UNAVAILABLE");
-        constants.put(5, "E_DEVELOPER_ERROR");
-        constants.put(6, "E_API_ERROR");
-        constants.put(7, "E_ITEM_ALREADY_OWNED");
-        constants.put(8, "E_ITEM_NOT_OWNED");
-
-        if (!constants.containsKey(code)) {
+    // Indexed by response code; immutable, so lookups need neither a lock nor allocation.
+    private static final String[] RESPONSE_CODES = {
+            "E_UNKNOWN",
+            "E_USER_CANCELED",
+            "E_SERVICE_UNAVAILABLE",
+            "E_BILLING_UNAVAILABLE",
+            "E_ITEM_UNAVAILABLE",
+            "E_DEVELOPER_ERROR",
+            "E_API_ERROR",
+            "E_ITEM_ALREADY_OWNED",
+            "E_ITEM_NOT_OWNED"
+    };
+
+    static String getResponseCode(int code) {
+        if (code <= 0 || code >= RESPONSE_CODES.length) {
             return "E_UNKNOWN";
         }
 
-        String resCode = constants.get(code);
-
-        return resCode;
+        return RESPONSE_CODES[code];
     }
 }
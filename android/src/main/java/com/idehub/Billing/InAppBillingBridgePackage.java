@@ -1,5 +1,7 @@
 package com.idehub.Billing;
 
+import android.os.Trace;
+
 import com.facebook.react.ReactPackage;
 import com.facebook.react.bridge.JavaScriptModule;
 import com.facebook.react.bridge.NativeModule;
@@ -22,17 +24,28 @@ public class InAppBillingBridgePackage implements ReactPackage {
 
     private String _licenseKey;
     private Boolean _licenseKeySetInConstructor = false;
+    private BillingConfig _config = new BillingConfig();
+
+    public InAppBillingBridgePackage setConfig(BillingConfig config) {
+        _config = config;
+        return this;
+    }
 
     @Override
     public List<NativeModule> createNativeModules(
             ReactApplicationContext reactContext) {
-        List<NativeModule> modules = new ArrayList<>();
-      		if (!_licenseKeySetInConstructor)
-              	modules.add(new InAppBillingBridge(reactContext));
-      		else
-                modules.add(new InAppBillingBridge(reactContext, _licenseKey));
-
-          return modules;
+        Trace.beginSection("InAppBillingBridgePackage.createNativeModules");
+        try {
+            List<NativeModule> modules = new ArrayList<>();
+            if (!_licenseKeySetInConstructor)
+                modules.add(new InAppBillingBridge(reactContext, _config));
+            else
+                modules.add(new InAppBillingBridge(reactContext, _licenseKey, _config));
+
+            return modules;
+        } finally {
+            Trace.endSection();
+        }
     }
 
     // Depreciated RN 0.47
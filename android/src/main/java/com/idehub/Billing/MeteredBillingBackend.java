@@ -0,0 +1,299 @@
+package com.idehub.Billing;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import com.anjlab.android.iab.v3.SkuDetails;
+import com.anjlab.android.iab.v3.TransactionDetails;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times every call into the wrapped backend as {@code backend.<method>}, so IPC with
+ * Google Play can be told apart from time spent in the bridge. A call counts as failed if
+ * it throws, reports a failure to its callback, or cannot start a purchase flow. Failures
+ * reported with a Google Play response code also count as {@code backend.<method>.error.<code>}.
+ */
+class MeteredBillingBackend implements BillingBackend {
+    private static final String RELEASE = "backend.release";
+    private static final String HANDLE_ACTIVITY_RESULT = "backend.handleActivityResult";
+    private static final String LOAD_OWNED_PURCHASES_FROM_GOOGLE = "backend.loadOwnedPurchasesFromGoogle";
+    private static final String PURCHASE = "backend.purchase";
+    private static final String SUBSCRIBE = "backend.subscribe";
+    private static final String UPDATE_SUBSCRIPTION = "backend.updateSubscription";
+    private static final String CONSUME_PURCHASE = "backend.consumePurchase";
+    private static final String IS_PURCHASED = "backend.isPurchased";
+    private static final String IS_SUBSCRIBED = "backend.isSubscribed";
+    private static final String IS_ONE_TIME_PURCHASE_SUPPORTED = "backend.isOneTimePurchaseSupported";
+    private static final String IS_VALID_TRANSACTION_DETAILS = "backend.isValidTransactionDetails";
+    private static final String LIST_OWNED_PRODUCTS = "backend.listOwnedProducts";
+    private static final String LIST_OWNED_SUBSCRIPTIONS = "backend.listOwnedSubscriptions";
+    private static final String GET_PURCHASE_TRANSACTION_DETAILS = "backend.getPurchaseTransactionDetails";
+    private static final String GET_SUBSCRIPTION_TRANSACTION_DETAILS = "backend.getSubscriptionTransactionDetails";
+    private static final String GET_ALL_PURCHASE_TRANSACTION_DETAILS = "backend.getAllPurchaseTransactionDetails";
+    private static final String GET_ALL_SUBSCRIPTION_TRANSACTION_DETAILS = "backend.getAllSubscriptionTransactionDetails";
+    private static final String GET_PURCHASE_LISTING_DETAILS = "backend.getPurchaseListingDetails";
+    private static final String GET_SUBSCRIPTION_LISTING_DETAILS = "backend.getSubscriptionListingDetails";
+    private static final String PREPARE_PURCHASE = "backend.preparePurchase";
+    private static final String GET_OWNED_PAGE = "backend.getOwnedPage";
+
+    private final BillingBackend mBackend;
+    private final BillingMetrics mMetrics;
+
+    MeteredBillingBackend(BillingBackend backend, BillingMetrics metrics) {
+        mBackend = backend;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return mBackend.isInitialized();
+    }
+
+    @Override
+    public void release() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            mBackend.release();
+            failed = false;
+        } finally {
+            mMetrics.record(RELEASE, start, failed);
+        }
+    }
+
+    @Override
+    public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = mBackend.handleActivityResult(requestCode, resultCode, data);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(HANDLE_ACTIVITY_RESULT, start, failed);
+        }
+    }
+
+    @Override
+    public void loadOwnedPurchasesFromGoogle(Callback<Void> callback) {
+        mBackend.loadOwnedPurchasesFromGoogle(timed(LOAD_OWNED_PURCHASES_FROM_GOOGLE, callback));
+    }
+
+    @Override
+    public boolean purchase(Activity activity, String productId, String developerPayload) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean started = mBackend.purchase(activity, productId, developerPayload);
+            failed = !started;
+            return started;
+        } finally {
+            mMetrics.record(PURCHASE, start, failed);
+        }
+    }
+
+    @Override
+    public boolean subscribe(Activity activity, String productId, String developerPayload) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean started = mBackend.subscribe(activity, productId, developerPayload);
+            failed = !started;
+            return started;
+        } finally {
+            mMetrics.record(SUBSCRIBE, start, failed);
+        }
+    }
+
+    @Override
+    public boolean updateSubscription(Activity activity, List<String> oldProductIds, String productId, String developerPayload) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean started = mBackend.updateSubscription(activity, oldProductIds, productId, developerPayload);
+            failed = !started;
+            return started;
+        } finally {
+            mMetrics.record(UPDATE_SUBSCRIPTION, start, failed);
+        }
+    }
+
+    @Override
+    public void consumePurchase(String productId, Callback<Void> callback) {
+        mBackend.consumePurchase(productId, timed(CONSUME_PURCHASE, callback));
+    }
+
+    @Override
+    public boolean isPurchased(String productId) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = mBackend.isPurchased(productId);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(IS_PURCHASED, start, failed);
+        }
+    }
+
+    @Override
+    public boolean isSubscribed(String productId) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = mBackend.isSubscribed(productId);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(IS_SUBSCRIBED, start, failed);
+        }
+    }
+
+    @Override
+    public boolean isOneTimePurchaseSupported() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = mBackend.isOneTimePurchaseSupported();
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(IS_ONE_TIME_PURCHASE_SUPPORTED, start, failed);
+        }
+    }
+
+    @Override
+    public boolean isValidTransactionDetails(TransactionDetails details) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = mBackend.isValidTransactionDetails(details);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(IS_VALID_TRANSACTION_DETAILS, start, failed);
+        }
+    }
+
+    @Override
+    public List<String> listOwnedProducts() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<String> result = mBackend.listOwnedProducts();
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(LIST_OWNED_PRODUCTS, start, failed);
+        }
+    }
+
+    @Override
+    public List<String> listOwnedSubscriptions() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<String> result = mBackend.listOwnedSubscriptions();
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(LIST_OWNED_SUBSCRIPTIONS, start, failed);
+        }
+    }
+
+    @Override
+    public TransactionDetails getPurchaseTransactionDetails(String productId) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            TransactionDetails result = mBackend.getPurchaseTransactionDetails(productId);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(GET_PURCHASE_TRANSACTION_DETAILS, start, failed);
+        }
+    }
+
+    @Override
+    public TransactionDetails getSubscriptionTransactionDetails(String productId) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            TransactionDetails result = mBackend.getSubscriptionTransactionDetails(productId);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(GET_SUBSCRIPTION_TRANSACTION_DETAILS, start, failed);
+        }
+    }
+
+    @Override
+    public List<TransactionDetails> getAllPurchaseTransactionDetails() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<TransactionDetails> result = mBackend.getAllPurchaseTransactionDetails();
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(GET_ALL_PURCHASE_TRANSACTION_DETAILS, start, failed);
+        }
+    }
+
+    @Override
+    public List<TransactionDetails> getAllSubscriptionTransactionDetails() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<TransactionDetails> result = mBackend.getAllSubscriptionTransactionDetails();
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(GET_ALL_SUBSCRIPTION_TRANSACTION_DETAILS, start, failed);
+        }
+    }
+
+    @Override
+    public void getPurchaseListingDetails(ArrayList<String> productIds, Callback<List<SkuDetails>> callback) {
+        mBackend.getPurchaseListingDetails(productIds, timed(GET_PURCHASE_LISTING_DETAILS, callback));
+    }
+
+    @Override
+    public void getSubscriptionListingDetails(ArrayList<String> productIds, Callback<List<SkuDetails>> callback) {
+        mBackend.getSubscriptionListingDetails(productIds, timed(GET_SUBSCRIPTION_LISTING_DETAILS, callback));
+    }
+
+    @Override
+    public void preparePurchase(ArrayList<String> productIds, boolean subscription, Callback<List<SkuDetails>> callback) {
+        mBackend.preparePurchase(productIds, subscription, timed(PREPARE_PURCHASE, callback));
+    }
+
+    @Override
+    public void getOwnedPage(boolean subscription, String continuationToken, int pageSize, Callback<OwnedPage> callback) {
+        mBackend.getOwnedPage(subscription, continuationToken, pageSize, timed(GET_OWNED_PAGE, callback));
+    }
+
+    /**
+     * Records the call once its result arrives, so the time waiting for Google Play counts.
+     */
+    private <T> Callback<T> timed(final String name, final Callback<T> callback) {
+        final long start = System.nanoTime();
+        return new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                mMetrics.record(name, start, false);
+                callback.onSuccess(result);
+            }
+
+            @Override
+            public void onFailure(int responseCode) {
+                mMetrics.record(name, start, true);
+                if (responseCode != 0)
+                    mMetrics.increment(name + ".error." + responseCode);
+                callback.onFailure(responseCode);
+            }
+        };
+    }
+}
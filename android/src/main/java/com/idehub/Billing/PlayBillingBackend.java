@@ -0,0 +1,917 @@
+package com.idehub.Billing;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+import com.anjlab.android.iab.v3.PurchaseInfo;
+import com.anjlab.android.iab.v3.SkuDetails;
+import com.anjlab.android.iab.v3.TransactionDetails;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Google Play billing through the Play Billing Library's asynchronous BillingClient.
+ * Select it with {@code new BillingConfig().setBackend(PlayBillingBackend.FACTORY)}.
+ *
+ * The BillingClient reports results on the main thread. Queries issue the async call and
+ * complete their {@link Callback} from its listener, so no thread waits for Google Play.
+ * A listener that is not called in time fails its query with SERVICE_UNAVAILABLE. A
+ * connection lost after setup is restarted with backoff, and the owned purchases are
+ * reloaded once it is back.
+ *
+ * Owned purchases are kept in memory, refreshed by {@link #loadOwnedPurchasesFromGoogle()}
+ * and by completed purchase flows. Purchases are acknowledged as soon as they are reported,
+ * since Google Play refunds purchases that stay unacknowledged for three days. The library
+ * no longer supports developer payloads, so those are ignored.
+ *
+ * The library is not a dependency of this module. Apps that select this backend add
+ * {@code com.android.billingclient:billing} to their own dependencies.
+ */
+public class PlayBillingBackend implements BillingBackend {
+    public static final Factory FACTORY = new Factory() {
+        /**
+         * True if the Play Store provides the billing service the library binds to. Billing
+         * may still turn out to be unavailable for the account, which open() reports.
+         */
+        @Override
+        public boolean isAvailable(Context context) {
+            Intent intent = new Intent(BILLING_SERVICE_ACTION).setPackage(PLAY_STORE_PACKAGE);
+            List<ResolveInfo> services = context.getPackageManager().queryIntentServices(intent, 0);
+            return services != null && !services.isEmpty();
+        }
+
+        @Override
+        public BillingBackend create(Context context, String licenseKey, Listener listener) {
+            return new PlayBillingBackend(context, licenseKey, listener);
+        }
+    };
+
+    private static final String BILLING_SERVICE_ACTION = "com.android.vending.billing.InAppBillingService.BIND";
+    private static final String PLAY_STORE_PACKAGE = "com.android.vending";
+    private static final long QUERY_TIMEOUT_MS = 30000;
+    private static final long RECONNECT_BASE_MS = 1000;
+    private static final long RECONNECT_MAX_MS = 60000;
+    // How long queried SKU details are reused to launch purchase flows.
+    private static final long PREPARED_TTL_MS = 5 * 60 * 1000;
+
+    // Response codes the library adds on top of the ones Google Play reports.
+    private static final int RESULT_SERVICE_TIMEOUT = -3;
+    private static final int RESULT_FEATURE_NOT_SUPPORTED = -2;
+    private static final int RESULT_SERVICE_DISCONNECTED = -1;
+
+    private final String mLicenseKey;
+    private final Listener mListener;
+    private final Client mClient;
+    private final Handler mMainHandler;
+    private final Object mLock = new Object();
+    private Map<String, Purchase> mOwnedProducts = new LinkedHashMap<>();
+    private Map<String, Purchase> mOwnedSubscriptions = new LinkedHashMap<>();
+    private final PreparedDetails mPrepared = new PreparedDetails(PREPARED_TTL_MS);
+    // SKU types of the purchase flows started by this backend, by product id.
+    private final ConcurrentHashMap<String, String> mFlowTypes = new ConcurrentHashMap<>();
+    private final Backoff mReconnectBackoff = new Backoff(RECONNECT_BASE_MS, RECONNECT_MAX_MS);
+    // Only used on the main thread, where the library calls the connection listener.
+    private int mReconnectAttempt = 0;
+    // The license key, parsed on the first verification.
+    private volatile PublicKey mPublicKey;
+    private volatile boolean mInitialized = false;
+    private volatile boolean mReleased = false;
+
+    /**
+     * Reports the first connection to the listener. The library does not reconnect by
+     * itself, so a connection lost after that is restarted here.
+     */
+    private final BillingClientStateListener mConnectionListener = new BillingClientStateListener() {
+        @Override
+        public void onBillingSetupFinished(BillingResult result) {
+            if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                String message = "Billing setup failed: " + result.getDebugMessage();
+                if (mInitialized) {
+                    scheduleReconnect(message);
+                } else {
+                    onSetupFailed(result.getResponseCode(), message);
+                }
+                return;
+            }
+
+            if (mInitialized) {
+                onReconnected();
+            } else {
+                onConnected();
+            }
+        }
+
+        @Override
+        public void onBillingServiceDisconnected() {
+            if (mInitialized) {
+                scheduleReconnect("Billing service disconnected");
+            } else {
+                onSetupFailed(RESULT_SERVICE_DISCONNECTED, "Billing service disconnected during setup.");
+            }
+        }
+    };
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            if (!mReleased) {
+                mClient.startConnection(mConnectionListener);
+            }
+        }
+    };
+
+    PlayBillingBackend(final Context context, String licenseKey, Listener listener) {
+        this(licenseKey, listener, new Handler(Looper.getMainLooper()), new ClientFactory() {
+            @Override
+            public Client create(PurchasesUpdatedListener purchasesUpdated) {
+                return new LibraryClient(BillingClient.newBuilder(context.getApplicationContext())
+                        .setListener(purchasesUpdated)
+                        .enablePendingPurchases()
+                        .build());
+            }
+        });
+    }
+
+    /**
+     * @param mainHandler the handler of the thread the client reports on, which also runs
+     *                    query timeouts and reconnects
+     */
+    PlayBillingBackend(String licenseKey, Listener listener, Handler mainHandler, ClientFactory clients) {
+        mLicenseKey = licenseKey;
+        mListener = listener;
+        mMainHandler = mainHandler;
+        mClient = clients.create(new PurchasesUpdatedListener() {
+            @Override
+            public void onPurchasesUpdated(BillingResult result, List<Purchase> purchases) {
+                handlePurchasesUpdated(result, purchases);
+            }
+        });
+        mClient.startConnection(mConnectionListener);
+    }
+
+    /**
+     * Reports a failed connection like BillingProcessor reports a failed bind, so open()
+     * fails right away and a warm connection reconnects.
+     */
+    private void onSetupFailed(int responseCode, String message) {
+        Log.w(InAppBillingBridge.LOG_TAG, message);
+        if (!mReleased) {
+            mListener.onBillingError(InAppBillingBridge.BILLING_ERROR_BIND_FAILED,
+                    new BillingError(toResponseCode(responseCode), message));
+        }
+    }
+
+    private void onConnected() {
+        // Loads the owned purchases before reporting the backend as ready, the same way
+        // BillingProcessor restores its cache before onBillingInitialized. Initialization
+        // does not depend on the result, like BillingProcessor's.
+        queryOwnedPurchases(new GuardedCallback<>(new Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                onInitialized();
+            }
+
+            @Override
+            public void onFailure(int responseCode) {
+                Log.w(InAppBillingBridge.LOG_TAG, "Could not load owned purchases, code " + responseCode);
+                onInitialized();
+            }
+        }));
+    }
+
+    private void scheduleReconnect(String reason) {
+        if (mReleased) {
+            return;
+        }
+        long delayMs = mReconnectBackoff.delayMs(mReconnectAttempt++);
+        Log.w(InAppBillingBridge.LOG_TAG, String.format("%s, reconnecting in %d ms", reason, delayMs));
+        mMainHandler.postDelayed(mReconnect, delayMs);
+    }
+
+    private void onReconnected() {
+        mReconnectAttempt = 0;
+        // Purchases may have completed or been refunded while disconnected.
+        queryOwnedPurchases(new GuardedCallback<>(new Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(int responseCode) {
+                Log.w(InAppBillingBridge.LOG_TAG, "Could not reload owned purchases, code " + responseCode);
+            }
+        }));
+    }
+
+    private void onInitialized() {
+        mInitialized = true;
+        if (!mReleased) {
+            mListener.onBillingInitialized();
+        }
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return !mReleased && mClient.isReady();
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        mMainHandler.removeCallbacks(mReconnect);
+        mClient.endConnection();
+    }
+
+    @Override
+    public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
+        // Results arrive through the PurchasesUpdatedListener instead.
+        return false;
+    }
+
+    @Override
+    public void loadOwnedPurchasesFromGoogle(Callback<Void> callback) {
+        queryOwnedPurchases(new GuardedCallback<>(callback));
+    }
+
+    /**
+     * Replaces the owned purchases with both lists from Google Play, or keeps them if either
+     * query fails.
+     */
+    private void queryOwnedPurchases(final Callback<Void> callback) {
+        queryPurchases(BillingClient.SkuType.INAPP, new Callback<Map<String, Purchase>>() {
+            @Override
+            public void onSuccess(final Map<String, Purchase> products) {
+                queryPurchases(BillingClient.SkuType.SUBS, new Callback<Map<String, Purchase>>() {
+                    @Override
+                    public void onSuccess(Map<String, Purchase> subscriptions) {
+                        synchronized (mLock) {
+                            mOwnedProducts = products;
+                            mOwnedSubscriptions = subscriptions;
+                        }
+                        acknowledgeAll(products.values());
+                        acknowledgeAll(subscriptions.values());
+                        callback.onSuccess(null);
+                    }
+
+                    @Override
+                    public void onFailure(int responseCode) {
+                        callback.onFailure(responseCode);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(int responseCode) {
+                callback.onFailure(responseCode);
+            }
+        });
+    }
+
+    @Override
+    public boolean purchase(Activity activity, String productId, String developerPayload) {
+        return launchFlow(activity, productId, BillingClient.SkuType.INAPP, null);
+    }
+
+    @Override
+    public boolean subscribe(Activity activity, String productId, String developerPayload) {
+        return launchFlow(activity, productId, BillingClient.SkuType.SUBS, null);
+    }
+
+    @Override
+    public boolean updateSubscription(Activity activity, List<String> oldProductIds, String productId, String developerPayload) {
+        String oldPurchaseToken = null;
+        synchronized (mLock) {
+            for (String oldProductId : oldProductIds) {
+                Purchase purchase = mOwnedSubscriptions.get(oldProductId);
+                if (purchase != null) {
+                    oldPurchaseToken = purchase.getPurchaseToken();
+                    break;
+                }
+            }
+        }
+        if (oldPurchaseToken == null) {
+            return false;
+        }
+        return launchFlow(activity, productId, BillingClient.SkuType.SUBS, oldPurchaseToken);
+    }
+
+    /**
+     * Starts the flow without waiting for Google Play. If the product was not prepared, its
+     * details are queried first; failures are reported to the listener like failed flows.
+     */
+    private boolean launchFlow(final Activity activity, final String productId, final String type, final String oldPurchaseToken) {
+        if (activity == null) {
+            return false;
+        }
+
+        mFlowTypes.put(productId, type);
+        com.android.billingclient.api.SkuDetails details = mPrepared.get(productId, System.currentTimeMillis());
+        if (details != null) {
+            launchFlow(activity, details, oldPurchaseToken);
+            return true;
+        }
+
+        // Not prepared, or expired: one more round trip before the sheet shows.
+        ArrayList<String> productIds = new ArrayList<>();
+        productIds.add(productId);
+        querySkuDetails(type, productIds, new GuardedCallback<>(new Callback<List<SkuDetails>>() {
+            @Override
+            public void onSuccess(List<SkuDetails> result) {
+                com.android.billingclient.api.SkuDetails details = mPrepared.get(productId, System.currentTimeMillis());
+                if (details == null) {
+                    // Not in the catalog, reported like BillingProcessor does.
+                    reportFlowError(BillingClient.BillingResponseCode.ITEM_UNAVAILABLE);
+                } else {
+                    launchFlow(activity, details, oldPurchaseToken);
+                }
+            }
+
+            @Override
+            public void onFailure(int responseCode) {
+                reportFlowError(responseCode);
+            }
+        }));
+        return true;
+    }
+
+    private void launchFlow(final Activity activity, com.android.billingclient.api.SkuDetails details, String oldPurchaseToken) {
+        BillingFlowParams.Builder builder = BillingFlowParams.newBuilder().setSkuDetails(details);
+        if (oldPurchaseToken != null) {
+            builder.setSubscriptionUpdateParams(BillingFlowParams.SubscriptionUpdateParams.newBuilder()
+                    .setOldSkuPurchaseToken(oldPurchaseToken)
+                    .build());
+        }
+        final BillingFlowParams params = builder.build();
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                BillingResult result = mClient.launchBillingFlow(activity, params);
+                if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                    mListener.onBillingError(toResponseCode(result.getResponseCode()), null);
+                }
+            }
+        });
+    }
+
+    private void reportFlowError(final int errorCode) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onBillingError(errorCode, null);
+            }
+        });
+    }
+
+    private void handlePurchasesUpdated(BillingResult result, List<Purchase> purchases) {
+        int responseCode = result.getResponseCode();
+        if (responseCode != BillingClient.BillingResponseCode.OK || purchases == null) {
+            mListener.onBillingError(toResponseCode(responseCode), null);
+            return;
+        }
+
+        boolean untracked = false;
+        for (Purchase purchase : purchases) {
+            if (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING) {
+                // Reported again once it completes, which may be days later.
+                mListener.onBillingError(BILLING_ERROR_PURCHASE_PENDING, null);
+                continue;
+            }
+            if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
+                continue;
+            }
+
+            for (String productId : purchase.getSkus()) {
+                String type = mFlowTypes.remove(productId);
+                if (type == null) {
+                    // Not started here, e.g. a purchase completed after a restart.
+                    untracked = true;
+                    continue;
+                }
+                synchronized (mLock) {
+                    (BillingClient.SkuType.SUBS.equals(type) ? mOwnedSubscriptions : mOwnedProducts).put(productId, purchase);
+                }
+            }
+            acknowledge(purchase);
+        }
+
+        if (untracked) {
+            // The library does not say which type a purchase is, so Google Play files it.
+            final List<Purchase> reported = purchases;
+            queryOwnedPurchases(new GuardedCallback<>(new Callback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    reportPurchased(reported);
+                }
+
+                @Override
+                public void onFailure(int responseCode) {
+                    Log.w(InAppBillingBridge.LOG_TAG, "Could not reload owned purchases, code " + responseCode);
+                    reportPurchased(reported);
+                }
+            }));
+        } else {
+            reportPurchased(purchases);
+        }
+    }
+
+    private void reportPurchased(List<Purchase> purchases) {
+        for (Purchase purchase : purchases) {
+            if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
+                continue;
+            }
+
+            TransactionDetails details = toTransactionDetails(purchase);
+            for (String productId : purchase.getSkus()) {
+                mListener.onProductPurchased(productId, details);
+            }
+        }
+    }
+
+    @Override
+    public void consumePurchase(final String productId, Callback<Void> callback) {
+        final Purchase purchase;
+        synchronized (mLock) {
+            purchase = mOwnedProducts.get(productId);
+        }
+        if (purchase == null) {
+            callback.onFailure(BillingClient.BillingResponseCode.ITEM_NOT_OWNED);
+            return;
+        }
+
+        final GuardedCallback<Void> guarded = new GuardedCallback<>(callback);
+        mClient.consumeAsync(ConsumeParams.newBuilder().setPurchaseToken(purchase.getPurchaseToken()).build(),
+                new ConsumeResponseListener() {
+                    @Override
+                    public void onConsumeResponse(BillingResult result, String purchaseToken) {
+                        int errorCode = toResponseCode(result.getResponseCode());
+                        if (errorCode != 0) {
+                            guarded.onFailure(errorCode);
+                            return;
+                        }
+
+                        synchronized (mLock) {
+                            if (mOwnedProducts.get(productId) == purchase) {
+                                mOwnedProducts.remove(productId);
+                            }
+                        }
+                        guarded.onSuccess(null);
+                    }
+                });
+    }
+
+    @Override
+    public boolean isPurchased(String productId) {
+        synchronized (mLock) {
+            return mOwnedProducts.containsKey(productId);
+        }
+    }
+
+    @Override
+    public boolean isSubscribed(String productId) {
+        synchronized (mLock) {
+            return mOwnedSubscriptions.containsKey(productId);
+        }
+    }
+
+    @Override
+    public boolean isOneTimePurchaseSupported() {
+        // Every Play Store version the library binds to supports one-time purchases.
+        return true;
+    }
+
+    @Override
+    public boolean isValidTransactionDetails(TransactionDetails details) {
+        if (details == null) {
+            return false;
+        }
+        if (TextUtils.isEmpty(mLicenseKey)) {
+            // Same as BillingProcessor: without a license key there is nothing to check against.
+            return true;
+        }
+        if (TextUtils.isEmpty(details.purchaseInfo.signature)) {
+            return false;
+        }
+
+        try {
+            Signature verifier = Signature.getInstance("SHA1withRSA");
+            verifier.initVerify(publicKey());
+            verifier.update(details.purchaseInfo.responseData.getBytes("UTF-8"));
+            return verifier.verify(Base64.decode(details.purchaseInfo.signature, Base64.DEFAULT));
+        } catch (Exception ex) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not verify purchase signature", ex);
+            return false;
+        }
+    }
+
+    private PublicKey publicKey() throws GeneralSecurityException {
+        PublicKey key = mPublicKey;
+        if (key == null) {
+            // Racing verifications may both parse it; either result is the same key.
+            byte[] encoded = Base64.decode(mLicenseKey, Base64.DEFAULT);
+            key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+            mPublicKey = key;
+        }
+        return key;
+    }
+
+    @Override
+    public List<String> listOwnedProducts() {
+        synchronized (mLock) {
+            return new ArrayList<>(mOwnedProducts.keySet());
+        }
+    }
+
+    @Override
+    public List<String> listOwnedSubscriptions() {
+        synchronized (mLock) {
+            return new ArrayList<>(mOwnedSubscriptions.keySet());
+        }
+    }
+
+    @Override
+    public TransactionDetails getPurchaseTransactionDetails(String productId) {
+        Purchase purchase;
+        synchronized (mLock) {
+            purchase = mOwnedProducts.get(productId);
+        }
+        return purchase == null ? null : toTransactionDetails(purchase);
+    }
+
+    @Override
+    public TransactionDetails getSubscriptionTransactionDetails(String productId) {
+        Purchase purchase;
+        synchronized (mLock) {
+            purchase = mOwnedSubscriptions.get(productId);
+        }
+        return purchase == null ? null : toTransactionDetails(purchase);
+    }
+
+    @Override
+    public List<TransactionDetails> getAllPurchaseTransactionDetails() {
+        List<Purchase> purchases;
+        synchronized (mLock) {
+            purchases = new ArrayList<>(new LinkedHashSet<>(mOwnedProducts.values()));
+        }
+        return toTransactionDetails(purchases);
+    }
+
+    @Override
+    public List<TransactionDetails> getAllSubscriptionTransactionDetails() {
+        List<Purchase> purchases;
+        synchronized (mLock) {
+            purchases = new ArrayList<>(new LinkedHashSet<>(mOwnedSubscriptions.values()));
+        }
+        return toTransactionDetails(purchases);
+    }
+
+    @Override
+    public void getPurchaseListingDetails(ArrayList<String> productIds, Callback<List<SkuDetails>> callback) {
+        querySkuDetails(BillingClient.SkuType.INAPP, productIds, new GuardedCallback<>(callback));
+    }
+
+    @Override
+    public void getSubscriptionListingDetails(ArrayList<String> productIds, Callback<List<SkuDetails>> callback) {
+        querySkuDetails(BillingClient.SkuType.SUBS, productIds, new GuardedCallback<>(callback));
+    }
+
+    @Override
+    public void preparePurchase(ArrayList<String> productIds, boolean subscription, Callback<List<SkuDetails>> callback) {
+        querySkuDetails(subscription ? BillingClient.SkuType.SUBS : BillingClient.SkuType.INAPP, productIds,
+                new GuardedCallback<>(callback));
+    }
+
+    /**
+     * Queries the listing details and prepares the library's own details, which
+     * launchBillingFlow needs.
+     */
+    private void querySkuDetails(final String type, ArrayList<String> productIds, final Callback<List<SkuDetails>> callback) {
+        mClient.querySkuDetailsAsync(SkuDetailsParams.newBuilder().setSkusList(productIds).setType(type).build(),
+                new SkuDetailsResponseListener() {
+                    @Override
+                    public void onSkuDetailsResponse(BillingResult result, List<com.android.billingclient.api.SkuDetails> results) {
+                        int errorCode = toResponseCode(result.getResponseCode());
+                        if (errorCode != 0) {
+                            callback.onFailure(errorCode);
+                            return;
+                        }
+
+                        List<SkuDetails> details = new ArrayList<>();
+                        if (results != null) {
+                            for (com.android.billingclient.api.SkuDetails detail : results) {
+                                mPrepared.put(detail, System.currentTimeMillis());
+                                try {
+                                    details.add(new SkuDetails(new JSONObject(detail.getOriginalJson())));
+                                } catch (JSONException ex) {
+                                    Log.w(InAppBillingBridge.LOG_TAG, "Could not parse details of " + detail.getSku(), ex);
+                                }
+                            }
+                        }
+                        callback.onSuccess(details);
+                    }
+                });
+    }
+
+    /**
+     * Reports the purchases keyed by product id.
+     */
+    private void queryPurchases(String type, final Callback<Map<String, Purchase>> callback) {
+        mClient.queryPurchasesAsync(type, new PurchasesResponseListener() {
+            @Override
+            public void onQueryPurchasesResponse(BillingResult result, List<Purchase> purchases) {
+                int errorCode = toResponseCode(result.getResponseCode());
+                if (errorCode != 0) {
+                    callback.onFailure(errorCode);
+                } else {
+                    callback.onSuccess(indexPurchases(purchases));
+                }
+            }
+        });
+    }
+
+    /**
+     * The library follows Google Play's continuation token itself and only returns
+     * complete lists, so pages are cut from the answer of one query.
+     */
+    @Override
+    public void getOwnedPage(boolean subscription, final String continuationToken, final int pageSize,
+                             Callback<OwnedPage> callback) {
+        final GuardedCallback<OwnedPage> guarded = new GuardedCallback<>(callback);
+        queryPurchases(subscription ? BillingClient.SkuType.SUBS : BillingClient.SkuType.INAPP, new Callback<Map<String, Purchase>>() {
+            @Override
+            public void onSuccess(Map<String, Purchase> owned) {
+                OwnedPage page = OwnedPage.slice(new ArrayList<>(owned.keySet()), continuationToken, pageSize);
+                if (page == null) {
+                    guarded.onFailure(toResponseCode(BillingClient.BillingResponseCode.DEVELOPER_ERROR));
+                } else {
+                    guarded.onSuccess(page);
+                }
+            }
+
+            @Override
+            public void onFailure(int responseCode) {
+                guarded.onFailure(responseCode);
+            }
+        });
+    }
+
+    private static Map<String, Purchase> indexPurchases(List<Purchase> purchases) {
+        Map<String, Purchase> owned = new LinkedHashMap<>();
+        if (purchases == null) {
+            return owned;
+        }
+        for (Purchase purchase : purchases) {
+            if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
+                continue;
+            }
+            for (String productId : purchase.getSkus()) {
+                owned.put(productId, purchase);
+            }
+        }
+        return owned;
+    }
+
+    private void acknowledgeAll(Iterable<Purchase> purchases) {
+        for (Purchase purchase : purchases) {
+            acknowledge(purchase);
+        }
+    }
+
+    private void acknowledge(final Purchase purchase) {
+        if (purchase.isAcknowledged()) {
+            return;
+        }
+        mClient.acknowledgePurchase(AcknowledgePurchaseParams.newBuilder().setPurchaseToken(purchase.getPurchaseToken()).build(),
+                new AcknowledgePurchaseResponseListener() {
+                    @Override
+                    public void onAcknowledgePurchaseResponse(BillingResult result) {
+                        if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                            // Retried on the next loadOwnedPurchasesFromGoogle.
+                            Log.w(InAppBillingBridge.LOG_TAG, "Could not acknowledge purchase: " + result.getDebugMessage());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Completes a callback once, and fails it with a service timeout if the library never
+     * calls back, e.g. because the connection was ended.
+     */
+    private final class GuardedCallback<T> implements Callback<T>, Runnable {
+        private final Callback<T> mCallback;
+        private final AtomicBoolean mCompleted = new AtomicBoolean();
+
+        GuardedCallback(Callback<T> callback) {
+            mCallback = callback;
+            mMainHandler.postDelayed(this, QUERY_TIMEOUT_MS);
+        }
+
+        @Override
+        public void onSuccess(T result) {
+            if (complete()) {
+                mCallback.onSuccess(result);
+            }
+        }
+
+        @Override
+        public void onFailure(int responseCode) {
+            if (complete()) {
+                mCallback.onFailure(responseCode);
+            }
+        }
+
+        @Override
+        public void run() {
+            onFailure(toResponseCode(RESULT_SERVICE_TIMEOUT));
+        }
+
+        private boolean complete() {
+            if (!mCompleted.compareAndSet(false, true)) {
+                return false;
+            }
+            mMainHandler.removeCallbacks(this);
+            return true;
+        }
+    }
+
+    /**
+     * Maps the library's response codes onto the ones Google Play reports, which are
+     * what the bridge and {@link RetryPolicy} understand.
+     */
+    private static int toResponseCode(int responseCode) {
+        switch (responseCode) {
+            case RESULT_SERVICE_TIMEOUT:
+            case RESULT_SERVICE_DISCONNECTED:
+                return BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE;
+            case RESULT_FEATURE_NOT_SUPPORTED:
+                return BillingClient.BillingResponseCode.BILLING_UNAVAILABLE;
+            default:
+                return responseCode;
+        }
+    }
+
+    private static TransactionDetails toTransactionDetails(Purchase purchase) {
+        return new TransactionDetails(new PurchaseInfo(purchase.getOriginalJson(), purchase.getSignature()));
+    }
+
+    private static List<TransactionDetails> toTransactionDetails(List<Purchase> purchases) {
+        List<TransactionDetails> all = new ArrayList<>(purchases.size());
+        for (Purchase purchase : purchases) {
+            all.add(toTransactionDetails(purchase));
+        }
+        return all;
+    }
+
+    /**
+     * The library's SKU details by product id, for launchBillingFlow. Every entry lives
+     * for the same time, so insertion order is expiry order and stale entries are always
+     * at the head.
+     */
+    static final class PreparedDetails {
+        private final long mTtlMs;
+        private final LinkedHashMap<String, Prepared> mEntries = new LinkedHashMap<>();
+
+        PreparedDetails(long ttlMs) {
+            mTtlMs = ttlMs;
+        }
+
+        synchronized com.android.billingclient.api.SkuDetails get(String productId, long now) {
+            evictStale(now);
+            Prepared prepared = mEntries.get(productId);
+            return prepared == null ? null : prepared.details;
+        }
+
+        synchronized void put(com.android.billingclient.api.SkuDetails details, long now) {
+            evictStale(now);
+            // Re-inserted so the entry moves to the tail.
+            mEntries.remove(details.getSku());
+            mEntries.put(details.getSku(), new Prepared(details, now + mTtlMs));
+        }
+
+        private void evictStale(long now) {
+            Iterator<Prepared> iterator = mEntries.values().iterator();
+            while (iterator.hasNext() && iterator.next().expiresAt <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Prepared {
+        final com.android.billingclient.api.SkuDetails details;
+        final long expiresAt;
+
+        Prepared(com.android.billingclient.api.SkuDetails details, long expiresAt) {
+            this.details = details;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * The calls this backend makes on the library's BillingClient. Tests provide their own,
+     * since the library's client needs the Play Store.
+     */
+    interface Client {
+        boolean isReady();
+
+        void startConnection(BillingClientStateListener listener);
+
+        void endConnection();
+
+        BillingResult launchBillingFlow(Activity activity, BillingFlowParams params);
+
+        void querySkuDetailsAsync(SkuDetailsParams params, SkuDetailsResponseListener listener);
+
+        void queryPurchasesAsync(String skuType, PurchasesResponseListener listener);
+
+        void consumeAsync(ConsumeParams params, ConsumeResponseListener listener);
+
+        void acknowledgePurchase(AcknowledgePurchaseParams params, AcknowledgePurchaseResponseListener listener);
+    }
+
+    interface ClientFactory {
+        Client create(PurchasesUpdatedListener purchasesUpdated);
+    }
+
+    private static final class LibraryClient implements Client {
+        private final BillingClient mClient;
+
+        LibraryClient(BillingClient client) {
+            mClient = client;
+        }
+
+        @Override
+        public boolean isReady() {
+            return mClient.isReady();
+        }
+
+        @Override
+        public void startConnection(BillingClientStateListener listener) {
+            mClient.startConnection(listener);
+        }
+
+        @Override
+        public void endConnection() {
+            mClient.endConnection();
+        }
+
+        @Override
+        public BillingResult launchBillingFlow(Activity activity, BillingFlowParams params) {
+            return mClient.launchBillingFlow(activity, params);
+        }
+
+        @Override
+        public void querySkuDetailsAsync(SkuDetailsParams params, SkuDetailsResponseListener listener) {
+            mClient.querySkuDetailsAsync(params, listener);
+        }
+
+        @Override
+        public void queryPurchasesAsync(String skuType, PurchasesResponseListener listener) {
+            mClient.queryPurchasesAsync(skuType, listener);
+        }
+
+        @Override
+        public void consumeAsync(ConsumeParams params, ConsumeResponseListener listener) {
+            mClient.consumeAsync(params, listener);
+        }
+
+        @Override
+        public void acknowledgePurchase(AcknowledgePurchaseParams params, AcknowledgePurchaseResponseListener listener) {
+            mClient.acknowledgePurchase(params, listener);
+        }
+    }
+}
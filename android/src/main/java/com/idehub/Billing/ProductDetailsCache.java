@@ -0,0 +1,204 @@
+package com.idehub.Billing;
+
+import com.anjlab.android.iab.v3.SkuDetails;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory cache of SKU details keyed by product type and product id, with a TTL
+ * and a size bound evicting the least recently used entries.
+ */
+class ProductDetailsCache {
+    static final String TYPE_PRODUCT = "inapp";
+    static final String TYPE_SUBSCRIPTION = "subs";
+
+    private final long mTtlMs;
+    private final int mMaxSize;
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    ProductDetailsCache(long ttlMs, final int maxSize) {
+        mTtlMs = ttlMs;
+        mMaxSize = maxSize;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mMaxSize;
+            }
+        };
+    }
+
+    /**
+     * Splits the requested ids into fresh cached details and ids that have to be
+     * fetched from Google Play.
+     */
+    synchronized Lookup lookup(String type, List<String> productIds) {
+        Lookup lookup = new Lookup(productIds.size());
+        // Found ids are deduplicated by the result map. Missing ids need a set of their own
+        // to stay linear when most ids miss; it is created on the first miss, so a lookup
+        // served entirely from cache allocates nothing beyond its result.
+        Set<String> missing = null;
+        long now = System.currentTimeMillis();
+
+        for (String productId : productIds) {
+            if (lookup.found.containsKey(productId) || (missing != null && missing.contains(productId))) {
+                continue;
+            }
+
+            Entry entry = isEnabled() ? mEntries.get(key(type, productId)) : null;
+            if (entry != null && now - entry.fetchedAt < mTtlMs) {
+                lookup.found.put(productId, entry.details);
+            } else {
+                if (missing == null) {
+                    missing = new HashSet<>();
+                }
+                missing.add(productId);
+                lookup.missing.add(productId);
+            }
+        }
+
+        return lookup;
+    }
+
+    /**
+     * Returns the cached details for the given ids regardless of their age.
+     */
+    synchronized Map<String, SkuDetails> lookupStale(String type, List<String> productIds) {
+        Map<String, SkuDetails> found = new HashMap<>();
+        for (String productId : productIds) {
+            Entry entry = mEntries.get(key(type, productId));
+            if (entry != null) {
+                found.put(productId, entry.details);
+            }
+        }
+        return found;
+    }
+
+    synchronized void put(String type, List<SkuDetails> details) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        if (currencyChanged(type, details)) {
+            // Prices of every other entry are in the old currency as well. Cleared
+            // before inserting, so the rest of this batch is kept.
+            mEntries.clear();
+        }
+
+        long now = System.currentTimeMillis();
+        for (SkuDetails detail : details) {
+            if (detail != null) {
+                mEntries.put(key(type, detail.productId), new Entry(detail, now));
+            }
+        }
+    }
+
+    private boolean currencyChanged(String type, List<SkuDetails> details) {
+        for (SkuDetails detail : details) {
+            if (detail == null) {
+                continue;
+            }
+
+            Entry previous = mEntries.get(key(type, detail.productId));
+            if (previous != null && !equal(previous.details.currency, detail.currency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Seeds entries restored from disk. They are served as cached values but count as
+     * stale, so the next lookup still fetches them from Google Play.
+     */
+    synchronized void putStale(String type, List<SkuDetails> details) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        for (SkuDetails detail : details) {
+            String key = key(type, detail.productId);
+            if (!mEntries.containsKey(key)) {
+                mEntries.put(key, new Entry(detail, 0));
+            }
+        }
+    }
+
+    /**
+     * Returns every cached entry of the given type, fresh or stale.
+     */
+    synchronized List<SkuDetails> values(String type) {
+        String prefix = type + ":";
+        List<SkuDetails> values = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                values.add(entry.getValue().details);
+            }
+        }
+        return values;
+    }
+
+    synchronized void invalidate(Collection<String> productIds) {
+        for (String productId : productIds) {
+            mEntries.remove(key(TYPE_PRODUCT, productId));
+            mEntries.remove(key(TYPE_SUBSCRIPTION, productId));
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mEntries.clear();
+    }
+
+    private boolean isEnabled() {
+        return mTtlMs > 0 && mMaxSize > 0;
+    }
+
+    private static String key(String type, String productId) {
+        return type + ":" + productId;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static final class Entry {
+        final SkuDetails details;
+        final long fetchedAt;
+
+        Entry(SkuDetails details, long fetchedAt) {
+            this.details = details;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    static final class Lookup {
+        final Map<String, SkuDetails> found;
+        final ArrayList<String> missing = new ArrayList<>();
+
+        Lookup(int expectedSize) {
+            found = new HashMap<>(expectedSize * 2);
+        }
+
+        /**
+         * Returns the found details in the order they were requested, skipping ids
+         * Google Play did not return.
+         */
+        List<SkuDetails> inOrder(List<String> productIds) {
+            List<SkuDetails> result = new ArrayList<>(found.size());
+            Map<String, SkuDetails> remaining = new HashMap<>(found);
+            for (String productId : productIds) {
+                SkuDetails detail = remaining.remove(productId);
+                if (detail != null) {
+                    result.add(detail);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.idehub.Billing;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Promise;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pending promises of long-running operations, keyed by request id.
+ *
+ * Each kind of operation (see {@link PromiseConstants}) has at most one active request,
+ * since Google Play runs a single connection handshake and a single purchase flow at a
+ * time. Every entry carries a deadline; the billing timer rejects it with E_TIMEOUT
+ * once the deadline passes. Whoever removes the entry from the map owns the promise, so
+ * a late callback can never settle it twice.
+ *
+ * No lock is taken. A request claims its kind with putIfAbsent and is then published by
+ * request id; removing it by request id decides ownership, and the kind is released with
+ * a conditional remove, so it never drops a newer request. {@link #active} only returns
+ * an entry that is published under both keys, so a lookup by kind that races a register
+ * or a take sees the registry as it was before or after it, never halfway.
+ */
+class PromiseRegistry {
+    static final class Entry {
+        final String requestId;
+        final String kind;
+        final String productId;
+        final Promise promise;
+        final long deadline;
+        final long startNanos = System.nanoTime();
+        volatile ScheduledFuture<?> timeout;
+
+        Entry(String requestId, String kind, String productId, Promise promise, long deadline) {
+            this.requestId = requestId;
+            this.kind = kind;
+            this.productId = productId;
+            this.promise = promise;
+            this.deadline = deadline;
+        }
+
+        long ageMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+
+    private final BillingExecutor mExecutor;
+    private final BillingMetrics mMetrics;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> mActiveByKind = new ConcurrentHashMap<>();
+
+    PromiseRegistry(BillingExecutor executor, BillingMetrics metrics) {
+        mExecutor = executor;
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return the request id, or null if a request of the same kind is still pending
+     */
+    String register(String kind, String productId, Promise promise, long timeoutMs) {
+        final String requestId = kind + "#" + mSequence.incrementAndGet();
+        Entry entry = new Entry(requestId, kind, productId, promise, System.currentTimeMillis() + timeoutMs);
+        if (mActiveByKind.putIfAbsent(kind, entry) != null) {
+            Log.w(InAppBillingBridge.LOG_TAG, String.format("Tried to put promise: %s - already exists in cache", kind));
+            return null;
+        }
+        mEntries.put(requestId, entry);
+
+        if (timeoutMs > 0) {
+            try {
+                entry.timeout = mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        reject(requestId, "E_TIMEOUT", "The operation did not complete in time.", null);
+                    }
+                }, timeoutMs);
+            } catch (RejectedExecutionException ex) {
+                Log.w(InAppBillingBridge.LOG_TAG, String.format("Could not schedule timeout for: %s", requestId), ex);
+            }
+        }
+
+        return requestId;
+    }
+
+    /**
+     * @return the pending request of the given kind, or null
+     */
+    Entry active(String kind) {
+        Entry entry = mActiveByKind.get(kind);
+        return entry != null && mEntries.get(entry.requestId) == entry ? entry : null;
+    }
+
+    boolean resolve(String requestId, Object value) {
+        Entry entry = take(requestId);
+        if (entry == null) {
+            Log.w(InAppBillingBridge.LOG_TAG, String.format("Tried to resolve promise: %s - but does not exist in cache", requestId));
+            return false;
+        }
+
+        mMetrics.record("promise." + entry.kind, entry.startNanos, false);
+        entry.promise.resolve(value);
+        return true;
+    }
+
+    boolean reject(String requestId, String code, String reason, Throwable throwable) {
+        Entry entry = take(requestId);
+        if (entry == null) {
+            Log.w(InAppBillingBridge.LOG_TAG, String.format("Tried to reject promise: %s - but does not exist in cache", requestId));
+            return false;
+        }
+
+        recordRejection(entry, code);
+        entry.promise.reject(code, reason, throwable);
+        return true;
+    }
+
+    void rejectAll(String code, String reason) {
+        List<String> requestIds = new ArrayList<>(mEntries.keySet());
+        for (String requestId : requestIds) {
+            Entry entry = take(requestId);
+            if (entry != null) {
+                recordRejection(entry, code);
+                entry.promise.reject(code, reason);
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot of the pending requests, for diagnostics
+     */
+    List<Entry> pending() {
+        return new ArrayList<>(mEntries.values());
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    private void recordRejection(Entry entry, String code) {
+        mMetrics.record("promise." + entry.kind, entry.startNanos, true);
+        mMetrics.increment("rejected." + code);
+    }
+
+    private Entry take(String requestId) {
+        Entry entry = mEntries.remove(requestId);
+        if (entry == null) {
+            return null;
+        }
+        mActiveByKind.remove(entry.kind, entry);
+
+        ScheduledFuture<?> timeout = entry.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,432 @@
+package com.idehub.Billing;
+
+import android.util.Log;
+
+import com.anjlab.android.iab.v3.PurchaseData;
+import com.anjlab.android.iab.v3.TransactionDetails;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends receipts to the app's server for verification, in batches, through a queue that
+ * survives restarts.
+ *
+ * Each receipt is one file in the queue directory, named after the SHA-256 of its purchase
+ * token. A receipt whose file exists, or that was uploaded before (left behind as an empty
+ * {@code .done} file), is not queued again, so restoring purchases does not upload the same
+ * receipts twice. Uploads run one batch at a time as a gzipped
+ * {@code POST {"receipts": [...]}}. Server errors and network failures are retried with
+ * backoff, other 4xx responses drop the batch. Once {@code maxPending} receipts are waiting,
+ * new ones are dropped and counted; they are queued again on the next restore. After a
+ * batch is accepted only the newest {@link #MAX_DONE_MARKERS} markers are kept; a receipt
+ * whose marker was pruned is uploaded again if it is restored, which the server already
+ * has to tolerate after a reinstall.
+ *
+ * Queueing and uploads run on the uploader's own thread, one task at a time, so a slow or
+ * unreachable server never holds a billing thread.
+ */
+class ReceiptUploader {
+    static final String DIRECTORY = "receipts";
+    static final int BATCH_SIZE = 50;
+    // Gives receipts arriving together, such as a restore, a chance to share a batch.
+    static final long BATCH_DELAY_MS = 2000;
+    static final long RETRY_BASE_DELAY_MS = 1000;
+    static final long RETRY_MAX_DELAY_MS = 5 * 60 * 1000;
+    static final int CONNECT_TIMEOUT_MS = 15000;
+    static final int READ_TIMEOUT_MS = 30000;
+    static final int MAX_DONE_MARKERS = 1000;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final String PENDING = ".json";
+    private static final String DONE = ".done";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Comparator<File> OLDEST_FIRST = new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+            long diff = a.lastModified() - b.lastModified();
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    };
+
+    private final File mDirectory;
+    private final String mEndpoint;
+    private final Map<String, String> mHeaders;
+    private final int mMaxPending;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final BillingMetrics mMetrics;
+    private final Backoff mBackoff = new Backoff(RETRY_BASE_DELAY_MS, RETRY_MAX_DELAY_MS);
+    private final AtomicBoolean mUploadScheduled = new AtomicBoolean(false);
+    // The upload waiting for its delay, guarded by this.
+    private ScheduledFuture<?> mScheduledUpload;
+    // Counted from the directory on first use, then kept in step with it. -1 until then.
+    private final AtomicInteger mPending = new AtomicInteger(-1);
+    // Only touched on the uploader thread.
+    private int mFailedAttempts = 0;
+
+    ReceiptUploader(File directory, String endpoint, Map<String, String> headers, int maxPending,
+                    BillingMetrics metrics) {
+        mDirectory = directory;
+        mEndpoint = endpoint;
+        mHeaders = headers;
+        mMaxPending = maxPending;
+        mMetrics = metrics;
+
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "rnbilling-receipts");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+        mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Queues the receipt on the uploader thread, unless it is already queued or uploaded.
+     */
+    void enqueue(final TransactionDetails details) {
+        if (details == null || details.purchaseInfo == null || details.purchaseInfo.purchaseData == null) {
+            return;
+        }
+
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (write(details)) {
+                        scheduleUpload(BATCH_DELAY_MS);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not queue receipt", ex);
+        }
+    }
+
+    /**
+     * Uploads whatever is queued from earlier runs.
+     */
+    void start() {
+        scheduleUpload(0);
+    }
+
+    /**
+     * Uploads the queued receipts right away, also if a retry is waiting.
+     */
+    synchronized void flush() {
+        if (mScheduledUpload != null && mScheduledUpload.cancel(false)) {
+            mUploadScheduled.set(false);
+        }
+        scheduleUpload(0);
+    }
+
+    /**
+     * Stops the uploader thread. Queued receipts stay on disk for the next start.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    int pendingCount() {
+        int pending = mPending.get();
+        return pending < 0 ? 0 : pending;
+    }
+
+    private boolean write(TransactionDetails details) {
+        PurchaseData purchaseData = details.purchaseInfo.purchaseData;
+        String name = hash(purchaseData.purchaseToken);
+        File pending = new File(mDirectory, name + PENDING);
+        if (pending.exists() || new File(mDirectory, name + DONE).exists()) {
+            return false;
+        }
+
+        if (countPending() >= mMaxPending) {
+            mMetrics.increment("receipts.dropped");
+            Log.w(InAppBillingBridge.LOG_TAG, "Receipt queue is full, dropping receipt for " + purchaseData.productId);
+            return false;
+        }
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not create receipt queue directory");
+            return false;
+        }
+
+        File temp = new File(mDirectory, name + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            JSONObject receipt = new JSONObject();
+            receipt.put("productId", purchaseData.productId);
+            receipt.put("orderId", purchaseData.orderId);
+            receipt.put("purchaseToken", purchaseData.purchaseToken);
+            receipt.put("purchaseTime", purchaseData.purchaseTime == null ? 0 : purchaseData.purchaseTime.getTime());
+            receipt.put("receiptData", details.purchaseInfo.responseData);
+            receipt.put("receiptSignature", details.purchaseInfo.signature);
+            receipt.put("queuedAt", System.currentTimeMillis());
+
+            stream = new FileOutputStream(temp);
+            stream.write(receipt.toString().getBytes(UTF_8));
+            stream.getFD().sync();
+            stream.close();
+            stream = null;
+
+            if (!temp.renameTo(pending)) {
+                Log.w(InAppBillingBridge.LOG_TAG, "Could not queue receipt for " + purchaseData.productId);
+                return false;
+            }
+            mPending.incrementAndGet();
+            mMetrics.increment("receipts.queued");
+            return true;
+        } catch (IOException | JSONException ex) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not queue receipt for " + purchaseData.productId, ex);
+            return false;
+        } finally {
+            BillingSnapshotStore.closeQuietly(stream);
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    private synchronized void scheduleUpload(long delayMs) {
+        if (!mUploadScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            mScheduledUpload = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mUploadScheduled.set(false);
+                    uploadBatch();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            mUploadScheduled.set(false);
+        }
+    }
+
+    private void uploadBatch() {
+        File[] files = listPending();
+        if (files.length == 0) {
+            return;
+        }
+
+        // Oldest first, so a receipt cannot be starved by newer ones.
+        Arrays.sort(files, OLDEST_FIRST);
+        File[] batch = Arrays.copyOf(files, Math.min(BATCH_SIZE, files.length));
+
+        long start = System.nanoTime();
+        int status;
+        try {
+            status = post(batch);
+        } catch (IOException ex) {
+            Log.w(InAppBillingBridge.LOG_TAG, "Could not upload receipts", ex);
+            status = -1;
+        }
+        boolean retry = status < 200 || status == 408 || status == 429 || status >= 500;
+        mMetrics.record("receipts.upload", start, status < 200 || status >= 300);
+
+        if (retry) {
+            scheduleUpload(mBackoff.delayMs(mFailedAttempts++));
+            return;
+        }
+        mFailedAttempts = 0;
+
+        boolean accepted = status < 300;
+        for (File file : batch) {
+            String name = file.getName();
+            File done = new File(mDirectory, name.substring(0, name.length() - PENDING.length()) + DONE);
+            try {
+                // The empty marker keeps the receipt from being queued again.
+                if (accepted && !done.createNewFile() && !done.exists()) {
+                    Log.w(InAppBillingBridge.LOG_TAG, "Could not mark receipt as uploaded");
+                }
+            } catch (IOException ex) {
+                Log.w(InAppBillingBridge.LOG_TAG, "Could not mark receipt as uploaded", ex);
+            }
+            if (file.delete()) {
+                mPending.decrementAndGet();
+            }
+        }
+
+        if (accepted) {
+            mMetrics.add("receipts.uploaded", batch.length);
+            pruneDone();
+        } else {
+            mMetrics.add("receipts.rejected", batch.length);
+            Log.w(InAppBillingBridge.LOG_TAG, "Receipt server rejected a batch with status " + status);
+        }
+
+        if (files.length > batch.length) {
+            scheduleUpload(0);
+        }
+    }
+
+    /**
+     * @return the HTTP status
+     */
+    private int post(File[] batch) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mEndpoint).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            Writer writer = new OutputStreamWriter(new GZIPOutputStream(
+                    new BufferedOutputStream(connection.getOutputStream())), UTF_8);
+            try {
+                // Queue files already hold one JSON object each.
+                writer.write("{\"receipts\":[");
+                for (int i = 0; i < batch.length; i++) {
+                    if (i > 0) {
+                        writer.write(',');
+                    }
+                    writer.write(readFile(batch[i]));
+                }
+                writer.write("]}");
+            } finally {
+                writer.close();
+            }
+
+            int status = connection.getResponseCode();
+            drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+            return status;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Reads the response so the connection can be reused.
+     */
+    private static void drain(InputStream stream) {
+        if (stream == null) {
+            return;
+        }
+
+        byte[] buffer = new byte[1024];
+        try {
+            while (stream.read(buffer) != -1) {
+                // Discarded.
+            }
+        } catch (IOException ex) {
+            // The status is all that matters.
+        } finally {
+            BillingSnapshotStore.closeQuietly(stream);
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream stream = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = stream.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return new String(bytes, 0, read, UTF_8);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Deletes the oldest markers beyond {@link #MAX_DONE_MARKERS}.
+     */
+    private void pruneDone() {
+        File[] markers = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(DONE);
+            }
+        });
+        if (markers == null || markers.length <= MAX_DONE_MARKERS) {
+            return;
+        }
+
+        Arrays.sort(markers, OLDEST_FIRST);
+        int pruned = 0;
+        for (int i = 0; i < markers.length - MAX_DONE_MARKERS; i++) {
+            if (markers[i].delete()) {
+                pruned++;
+            }
+        }
+        mMetrics.add("receipts.pruned", pruned);
+    }
+
+    private int countPending() {
+        int pending = mPending.get();
+        if (pending < 0) {
+            mPending.compareAndSet(-1, listPending().length);
+            pending = mPending.get();
+        }
+        return pending;
+    }
+
+    private File[] listPending() {
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(PENDING);
+            }
+        });
+        if (files == null) {
+            files = new File[0];
+        }
+        mPending.compareAndSet(-1, files.length);
+        return files;
+    }
+
+    private static String hash(String purchaseToken) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return VerificationCache.toHex(digest.digest(String.valueOf(purchaseToken).getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is guaranteed on Android.
+            throw new IllegalStateException(ex);
+        }
+    }
+}
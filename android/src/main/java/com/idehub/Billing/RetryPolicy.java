@@ -0,0 +1,43 @@
+package com.idehub.Billing;
+
+/**
+ * Decides whether an idempotent query that failed is tried again, and when.
+ *
+ * Only transient Google Play failures are retried: the service being unavailable, e.g.
+ * while the Play Store updates itself, or a failed IPC.
+ */
+class RetryPolicy {
+    static final int RESPONSE_SERVICE_UNAVAILABLE = 2;
+    static final int RESPONSE_API_ERROR = 6;
+
+    private final int mMaxAttempts;
+    private final Backoff mBackoff;
+
+    /**
+     * @param maxAttempts total number of attempts, including the first one
+     */
+    RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mBackoff = new Backoff(baseDelayMs, maxDelayMs);
+    }
+
+    /**
+     * @param attempt zero-based number of the attempt that just failed
+     */
+    boolean shouldRetry(Throwable error, int attempt) {
+        return attempt + 1 < mMaxAttempts && isTransient(error);
+    }
+
+    long delayMs(int attempt) {
+        return mBackoff.delayMs(attempt);
+    }
+
+    static boolean isTransient(Throwable error) {
+        if (!(error instanceof BillingError)) {
+            return false;
+        }
+
+        int responseCode = ((BillingError) error).responseCode;
+        return responseCode == RESPONSE_SERVICE_UNAVAILABLE || responseCode == RESPONSE_API_ERROR;
+    }
+}
@@ -0,0 +1,225 @@
+package com.idehub.Billing;
+
+import com.anjlab.android.iab.v3.SkuDetails;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces SKU detail lookups that arrive within a short window into deduplicated,
+ * chunked queries against Google Play, and fans the results back out to every caller.
+ */
+class SkuDetailsBatcher {
+    /**
+     * Google Play accepts at most 20 SKUs per getSkuDetails call.
+     */
+    static final int MAX_SKUS_PER_QUERY = 20;
+
+    interface Fetcher {
+        /**
+         * Queries Google Play for a single chunk. Starts on the billing executor and
+         * reports to the callback once, from any thread.
+         */
+        void fetch(String type, ArrayList<String> productIds, FetchCallback callback) throws Exception;
+    }
+
+    interface FetchCallback {
+        void onResult(List<SkuDetails> details);
+
+        /**
+         * @param error the failure, or null if Google Play could not be queried
+         */
+        void onFailure(Exception error);
+    }
+
+    interface Callback {
+        void onResult(Map<String, SkuDetails> details);
+
+        /**
+         * @param error the failure, or null if Google Play returned no details
+         */
+        void onFailure(Exception error);
+    }
+
+    private final BillingExecutor mExecutor;
+    private final Fetcher mFetcher;
+    private final long mWindowMs;
+    private final Map<String, Batch> mPending = new HashMap<>();
+
+    SkuDetailsBatcher(BillingExecutor executor, Fetcher fetcher, long windowMs) {
+        mExecutor = executor;
+        mFetcher = fetcher;
+        mWindowMs = windowMs;
+    }
+
+    void request(final String type, List<String> productIds, Callback callback) {
+        boolean schedule = false;
+        synchronized (mPending) {
+            Batch batch = mPending.get(type);
+            if (batch == null) {
+                batch = new Batch();
+                mPending.put(type, batch);
+                schedule = true;
+            }
+            batch.productIds.addAll(productIds);
+            batch.waiters.add(new Waiter(productIds, callback));
+        }
+
+        if (!schedule) {
+            return;
+        }
+
+        Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                flush(type);
+            }
+        };
+
+        try {
+            if (mWindowMs > 0) {
+                mExecutor.schedule(flush, mWindowMs);
+            } else {
+                flush.run();
+            }
+        } catch (RejectedExecutionException ex) {
+            flush.run();
+        }
+    }
+
+    private void flush(final String type) {
+        final Batch batch;
+        synchronized (mPending) {
+            batch = mPending.remove(type);
+        }
+
+        if (batch == null) {
+            return;
+        }
+
+        List<ArrayList<String>> chunks = new ArrayList<>();
+        ArrayList<String> chunk = null;
+        for (String productId : batch.productIds) {
+            if (chunk == null || chunk.size() == MAX_SKUS_PER_QUERY) {
+                chunk = new ArrayList<>(MAX_SKUS_PER_QUERY);
+                chunks.add(chunk);
+            }
+            chunk.add(productId);
+        }
+
+        if (chunks.isEmpty()) {
+            batch.dispatch();
+            return;
+        }
+
+        batch.remaining.set(chunks.size());
+        for (final ArrayList<String> productIds : chunks) {
+            Runnable query = new Runnable() {
+                @Override
+                public void run() {
+                    final AtomicBoolean completed = new AtomicBoolean();
+                    try {
+                        mFetcher.fetch(type, productIds, new FetchCallback() {
+                            @Override
+                            public void onResult(List<SkuDetails> details) {
+                                if (completed.compareAndSet(false, true))
+                                    batch.complete(productIds, details, null);
+                            }
+
+                            @Override
+                            public void onFailure(Exception error) {
+                                if (completed.compareAndSet(false, true))
+                                    batch.complete(productIds, null, error);
+                            }
+                        });
+                    } catch (Exception ex) {
+                        if (completed.compareAndSet(false, true))
+                            batch.complete(productIds, null, ex);
+                    }
+                }
+            };
+
+            try {
+                mExecutor.execute(query);
+            } catch (RejectedExecutionException ex) {
+                batch.complete(productIds, null, ex);
+            }
+        }
+    }
+
+    private static final class Waiter {
+        final List<String> productIds;
+        final Callback callback;
+
+        Waiter(List<String> productIds, Callback callback) {
+            this.productIds = productIds;
+            this.callback = callback;
+        }
+    }
+
+    private static final class Batch {
+        final LinkedHashSet<String> productIds = new LinkedHashSet<>();
+        final List<Waiter> waiters = new ArrayList<>();
+        final AtomicInteger remaining = new AtomicInteger();
+
+        // Guarded by this.
+        final Map<String, SkuDetails> found = new HashMap<>();
+        final Set<String> failedIds = new HashSet<>();
+        Exception error;
+
+        void complete(List<String> productIds, List<SkuDetails> details, Exception chunkError) {
+            synchronized (this) {
+                if (details == null) {
+                    failedIds.addAll(productIds);
+                    if (chunkError != null) {
+                        error = chunkError;
+                    }
+                } else {
+                    for (SkuDetails detail : details) {
+                        if (detail != null) {
+                            found.put(detail.productId, detail);
+                        }
+                    }
+                }
+            }
+
+            if (remaining.decrementAndGet() == 0) {
+                dispatch();
+            }
+        }
+
+        private void dispatch() {
+            for (Waiter waiter : waiters) {
+                Map<String, SkuDetails> result = new HashMap<>();
+                boolean failed = false;
+                synchronized (this) {
+                    for (String productId : waiter.productIds) {
+                        if (failedIds.contains(productId)) {
+                            failed = true;
+                            break;
+                        }
+
+                        SkuDetails detail = found.get(productId);
+                        if (detail != null) {
+                            result.put(productId, detail);
+                        }
+                    }
+                }
+
+                if (failed) {
+                    waiter.callback.onFailure(error);
+                } else {
+                    waiter.callback.onResult(result);
+                }
+            }
+        }
+    }
+}
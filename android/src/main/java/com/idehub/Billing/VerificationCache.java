@@ -0,0 +1,96 @@
+package com.idehub.Billing;
+
+import com.anjlab.android.iab.v3.TransactionDetails;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded memo of signature verification results. Entries are keyed by purchase token
+ * plus a SHA-256 digest of the signature and the signed data, so a receipt that changes
+ * in any way is verified again.
+ */
+class VerificationCache {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    VerificationCache(final int maxSize) {
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the memoized result, or null if the receipt has not been verified yet
+     */
+    synchronized Boolean get(TransactionDetails details) {
+        Entry entry = mEntries.get(key(details));
+        return entry == null ? null : entry.valid;
+    }
+
+    synchronized void put(TransactionDetails details, boolean valid) {
+        mEntries.put(key(details), new Entry(details.purchaseInfo.purchaseData.productId, valid));
+    }
+
+    synchronized void invalidateProduct(String productId) {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            if (productId.equals(iterator.next().productId)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mEntries.clear();
+    }
+
+    private static String key(TransactionDetails details) {
+        String token = details.purchaseInfo.purchaseData.purchaseToken;
+        String signature = details.purchaseInfo.signature;
+        String data = details.purchaseInfo.responseData;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (signature != null) {
+                digest.update(signature.getBytes(UTF_8));
+            }
+            digest.update((byte) 0);
+            if (data != null) {
+                digest.update(data.getBytes(UTF_8));
+            }
+            return token + ":" + toHex(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is guaranteed on Android; fall back to the full receipt just in case.
+            return token + ":" + signature + ":" + data;
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    private static final class Entry {
+        final String productId;
+        final boolean valid;
+
+        Entry(String productId, boolean valid) {
+            this.productId = productId;
+            this.valid = valid;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.idehub.Billing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BillingEntitlementsTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(new File(mFolder.getRoot(), InAppBillingBridge.SNAPSHOT_DIRECTORY), BillingEntitlements.FILE_NAME);
+    }
+
+    @Test
+    public void writtenEntitlementsReadBack() {
+        long before = System.currentTimeMillis();
+
+        assertTrue(BillingEntitlements.write(mFile, Arrays.asList("coins", "gems"), Collections.singletonList("premium")));
+
+        BillingEntitlements read = BillingEntitlements.read(mFile);
+        assertEquals(1, read.getVersion());
+        assertTrue(read.getUpdatedAt() >= before);
+        assertEquals(Arrays.asList("coins", "gems"), read.getProducts());
+        assertEquals(Collections.singletonList("premium"), read.getSubscriptions());
+        assertTrue(read.isPurchased("gems"));
+        assertTrue(read.isSubscribed("premium"));
+        // Products and subscriptions are kept apart.
+        assertFalse(read.isSubscribed("coins"));
+        assertFalse(read.isPurchased("premium"));
+    }
+
+    @Test
+    public void everyWriteBumpsTheVersion() {
+        BillingEntitlements.write(mFile, Collections.singletonList("coins"), Collections.<String>emptyList());
+
+        BillingEntitlements.write(mFile, Collections.<String>emptyList(), Collections.singletonList("premium"));
+
+        BillingEntitlements read = BillingEntitlements.read(mFile);
+        assertEquals(2, read.getVersion());
+        assertFalse(read.isPurchased("coins"));
+        assertTrue(read.isSubscribed("premium"));
+        // Only the entitlements and the writers' lock are left behind, no temporary file.
+        List<String> files = Arrays.asList(mFile.getParentFile().list());
+        Collections.sort(files);
+        assertEquals(Arrays.asList(BillingEntitlements.FILE_NAME, BillingEntitlements.FILE_NAME + ".lock"), files);
+    }
+
+    @Test
+    public void contextReadsTheFileTheModulePublishes() {
+        TestReactContext context = new TestReactContext(mFolder.getRoot());
+
+        BillingEntitlements.write(BillingEntitlements.file(context), Collections.singletonList("coins"), Collections.<String>emptyList());
+
+        assertTrue(BillingEntitlements.read(context).isPurchased("coins"));
+    }
+
+    @Test
+    public void missingEntitlementsReadAsNull() {
+        assertNull(BillingEntitlements.read(mFile));
+    }
+
+    @Test
+    public void fileOfAnotherFormatReadsAsNull() throws Exception {
+        assertTrue(mFile.getParentFile().mkdirs());
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.writeBytes("not entitlements");
+        } finally {
+            file.close();
+        }
+
+        assertNull(BillingEntitlements.read(mFile));
+    }
+
+    @Test
+    public void concurrentWritersEachPublishTheirOwnVersion() throws Exception {
+        final int writers = 4;
+        final int writes = 25;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger torn = new AtomicInteger();
+        BillingEntitlements.write(mFile, Collections.<String>emptyList(), Collections.<String>emptyList());
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            final String productId = "product" + i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < writes; n++) {
+                            if (!BillingEntitlements.write(mFile, Collections.singletonList(productId),
+                                    Collections.<String>emptyList())) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception ex) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        // Readers take no lock and must never see a partial file.
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    for (int n = 0; n < writers * writes; n++) {
+                        BillingEntitlements read = BillingEntitlements.read(mFile);
+                        if (read == null || read.getProducts().size() > 1) {
+                            torn.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    torn.incrementAndGet();
+                }
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(0, torn.get());
+        assertEquals(1 + writers * writes, BillingEntitlements.read(mFile).getVersion());
+    }
+}
@@ -0,0 +1,211 @@
+package com.idehub.Billing;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BillingExecutorTest {
+    private final BillingExecutor mExecutor = new BillingExecutor();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void serialTasksOfOneKeyRunInOrderAndNeverOverlap() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(50);
+
+        for (int i = 0; i < 50; i++) {
+            final int index = i;
+            mExecutor.executeSerial("product:a", new Runnable() {
+                @Override
+                public void run() {
+                    maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                    order.add(index);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void serialTasksOfDifferentKeysRunInParallel() throws Exception {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final CountDownLatch done = new CountDownLatch(2);
+
+        for (String key : new String[]{"product:a", "product:b"}) {
+            mExecutor.executeSerial(key, new Runnable() {
+                @Override
+                public void run() {
+                    bothStarted.countDown();
+                    try {
+                        // Only returns if the other key's task runs at the same time.
+                        if (bothStarted.await(5, TimeUnit.SECONDS)) {
+                            done.countDown();
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void productNamedLikeAnInternalKeyDoesNotBlockIt() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        mExecutor.executeSerial(InAppBillingBridge.productKey(InAppBillingBridge.SNAPSHOT_KEY), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        mExecutor.executeSerial(InAppBillingBridge.SNAPSHOT_KEY, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        try {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void asyncSerialTaskHoldsItsKeyUntilDone() throws Exception {
+        final AtomicReference<Runnable> firstDone = new AtomicReference<>();
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch secondRan = new CountDownLatch(1);
+
+        mExecutor.executeSerial("product:a", new BillingExecutor.SerialTask() {
+            @Override
+            public void run(Runnable done) {
+                firstDone.set(done);
+                firstStarted.countDown();
+            }
+        });
+        mExecutor.executeSerial("product:a", new Runnable() {
+            @Override
+            public void run() {
+                secondRan.countDown();
+            }
+        });
+
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+        assertFalse(secondRan.await(100, TimeUnit.MILLISECONDS));
+
+        // Finishing from another thread, as a Play Billing callback would.
+        Thread callback = new Thread(firstDone.get());
+        callback.start();
+        callback.join();
+
+        assertTrue(secondRan.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failingSerialTaskDoesNotStallItsKey() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        mExecutor.executeSerial("product:a", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("boom");
+            }
+        });
+        mExecutor.executeSerial("product:a", new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rejectsTasksOnceTheQueueIsFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        int accepted = 0;
+        try {
+            for (int i = 0; i < 1000; i++) {
+                mExecutor.execute(blocker);
+                accepted++;
+            }
+            fail("Expected the bounded queue to reject tasks");
+        } catch (RejectedExecutionException expected) {
+            // Pool threads plus the bounded queue.
+            assertTrue(accepted < 1000);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void scheduledTasksRunAfterTheirDelay() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, 50);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void rejectsTasksAfterShutdown() {
+        mExecutor.shutdown();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+}
@@ -0,0 +1,148 @@
+package com.idehub.Billing;
+
+import com.anjlab.android.iab.v3.SkuDetails;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BillingMapperTest {
+    private final BillingMapper mMapper = new BillingMapper(JavaOnlyPayloads.INSTANCE);
+
+    private static SkuDetails subscription(String productId, boolean trial, boolean intro) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("productId", productId);
+        json.put("type", "subs");
+        json.put("title", "Premium " + productId);
+        json.put("description", "Monthly premium");
+        json.put("price", "4.99 EUR");
+        json.put("price_amount_micros", 4990000);
+        json.put("price_currency_code", "EUR");
+        json.put("subscriptionPeriod", "P1M");
+        if (trial) {
+            json.put("freeTrialPeriod", "P1W");
+        }
+        if (intro) {
+            json.put("introductoryPrice", "0.99 EUR");
+            json.put("introductoryPriceAmountMicros", 990000);
+            json.put("introductoryPricePeriod", "P1M");
+            json.put("introductoryPriceCycles", 3);
+        }
+        return new SkuDetails(json);
+    }
+
+    /**
+     * Expands the columnar layout into rows the way index.js does.
+     */
+    private static List<Map<String, Object>> expand(ReadableMap payload) {
+        int count = payload.getInt("count");
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int row = 0; row < count; row++) {
+            rows.add(new HashMap<String, Object>());
+        }
+
+        ReadableMap columns = payload.getMap("columns");
+        ReadableMapKeySetIterator fields = columns.keySetIterator();
+        while (fields.hasNextKey()) {
+            String field = fields.nextKey();
+            List<Object> column = columns.getArray(field).toArrayList();
+            assertEquals(field, count, column.size());
+            for (int row = 0; row < count; row++) {
+                rows.get(row).put(field, column.get(row));
+            }
+        }
+
+        ReadableMap sparse = payload.getMap("sparse");
+        fields = sparse.keySetIterator();
+        while (fields.hasNextKey()) {
+            String field = fields.nextKey();
+            ReadableArray present = sparse.getMap(field).getArray("present");
+            ReadableArray values = sparse.getMap(field).getArray("values");
+            int next = 0;
+            for (int row = 0; row < count; row++) {
+                boolean set = ((present.getInt(row >>> 5) >>> (row & 31)) & 1) != 0;
+                rows.get(row).put(field, set ? values.getString(next++) : "");
+            }
+            assertEquals(field, values.size(), next);
+        }
+        return rows;
+    }
+
+    private static List<Map<String, Object>> rows(ReadableArray list) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < list.size(); i++) {
+            rows.add(list.getMap(i).toHashMap());
+        }
+        return rows;
+    }
+
+    @Test
+    public void columnsExpandToTheRowLayout() throws Exception {
+        List<SkuDetails> details = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            details.add(subscription("sku" + i, i % 3 == 0, i % 5 == 0));
+        }
+        // Skipped by both layouts.
+        details.add(5, null);
+
+        List<Map<String, Object>> expected = rows(mMapper.mapSkuDetailsList(details, true));
+        List<Map<String, Object>> expanded = expand(mMapper.mapSkuDetailsColumns(details, true));
+
+        assertEquals(40, expected.size());
+        assertEquals(expected, expanded);
+    }
+
+    @Test
+    public void missingOffersAreLeftOutOfSparseColumns() throws Exception {
+        List<SkuDetails> details = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            // Rows 0, 31, 32 and 39 have a trial, so both words of the bitmap are used.
+            details.add(subscription("sku" + i, i == 0 || i == 31 || i == 32 || i == 39, false));
+        }
+
+        ReadableMap sparse = mMapper.mapSkuDetailsColumns(details, true).getMap("sparse");
+
+        ReadableMap trial = sparse.getMap("subscriptionFreeTrialPeriod");
+        assertEquals(2, trial.getArray("present").size());
+        assertEquals(1 | 1 << 31, trial.getArray("present").getInt(0));
+        assertEquals(1 | 1 << 7, trial.getArray("present").getInt(1));
+        assertEquals(4, trial.getArray("values").size());
+        ReadableMap intro = sparse.getMap("introductoryPriceText");
+        assertEquals(0, intro.getArray("present").getInt(0));
+        assertEquals(0, intro.getArray("values").size());
+    }
+
+    @Test
+    public void productsHaveNoSubscriptionFields() {
+        List<SkuDetails> details = new ArrayList<>();
+        details.add(FakeBillingBackend.Factory.createSkuDetails("coins", "Coins", 990000, "EUR", null));
+        details.add(FakeBillingBackend.Factory.createSkuDetails("gems", "Gems", 1990000, "USD", null));
+
+        ReadableMap payload = mMapper.mapSkuDetailsColumns(details, false);
+
+        assertFalse(payload.getMap("sparse").keySetIterator().hasNextKey());
+        assertFalse(payload.getMap("columns").hasKey("subscriptionPeriod"));
+        assertEquals(rows(mMapper.mapSkuDetailsList(details, false)), expand(payload));
+    }
+
+    @Test
+    public void noDetailsMapToEmptyColumns() {
+        ReadableMap payload = mMapper.mapSkuDetailsColumns(new ArrayList<SkuDetails>(), true);
+
+        assertEquals(0, payload.getInt("count"));
+        assertEquals(0, payload.getMap("columns").getArray("productId").size());
+        assertEquals(0, payload.getMap("sparse").getMap("introductoryPricePeriod").getArray("present").size());
+        assertTrue(expand(payload).isEmpty());
+    }
+}
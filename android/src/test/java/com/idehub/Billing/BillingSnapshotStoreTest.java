@@ -0,0 +1,117 @@
+package com.idehub.Billing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BillingSnapshotStoreTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private BillingSnapshotStore mStore;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(mFolder.getRoot(), "rnbilling");
+        mStore = new BillingSnapshotStore(mDirectory);
+    }
+
+    static BillingSnapshotStore.Snapshot snapshot(long savedAt, String ownedProduct) {
+        return new BillingSnapshotStore.Snapshot(savedAt,
+                Arrays.asList(FakeBillingBackend.Factory.createSkuDetails("coins", "Coins", 990000, "EUR", null),
+                        FakeBillingBackend.Factory.createSkuDetails("gems", "Gems \u2728", 1990000, "EUR", null)),
+                Collections.singletonList(FakeBillingBackend.Factory.createSkuDetails("premium", "Premium", 4990000, "EUR", "P1M")),
+                ownedProduct == null ? Collections.<String>emptyList() : Collections.singletonList(ownedProduct),
+                Collections.singletonList("premium"));
+    }
+
+    @Test
+    public void writtenSnapshotReadsBack() {
+        assertTrue(mStore.write(snapshot(1234, "coins")));
+
+        BillingSnapshotStore.Snapshot read = mStore.read();
+
+        assertEquals(1234, read.savedAt);
+        assertEquals(2, read.products.size());
+        assertEquals("coins", read.products.get(0).productId);
+        assertEquals("Gems \u2728", read.products.get(1).title);
+        assertEquals(1990000, read.products.get(1).priceLong);
+        assertEquals("premium", read.subscriptions.get(0).productId);
+        assertTrue(read.subscriptions.get(0).isSubscription);
+        assertEquals(Collections.singletonList("coins"), read.ownedProducts);
+        assertEquals(Collections.singletonList("premium"), read.ownedSubscriptions);
+    }
+
+    @Test
+    public void laterWriteReplacesTheSnapshot() {
+        mStore.write(snapshot(1, "coins"));
+
+        mStore.write(snapshot(2, null));
+
+        BillingSnapshotStore.Snapshot read = mStore.read();
+        assertEquals(2, read.savedAt);
+        assertTrue(read.ownedProducts.isEmpty());
+        // Only the snapshot is left behind, no temporary file.
+        assertEquals(Collections.singletonList("snapshot.bin"), Arrays.asList(mDirectory.list()));
+    }
+
+    @Test
+    public void missingSnapshotReadsAsNull() {
+        assertNull(mStore.read());
+    }
+
+    @Test
+    public void truncatedSnapshotReadsAsNull() throws Exception {
+        mStore.write(snapshot(1, "coins"));
+        File file = new File(mDirectory, "snapshot.bin");
+
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        try {
+            truncated.setLength(file.length() - 10);
+        } finally {
+            truncated.close();
+        }
+
+        assertNull(mStore.read());
+    }
+
+    @Test
+    public void snapshotOfAnotherFormatVersionReadsAsNull() throws Exception {
+        mStore.write(snapshot(1, "coins"));
+
+        RandomAccessFile file = new RandomAccessFile(new File(mDirectory, "snapshot.bin"), "rw");
+        try {
+            // The version follows the 4-byte magic.
+            file.seek(4);
+            file.writeInt(2);
+        } finally {
+            file.close();
+        }
+
+        assertNull(mStore.read());
+    }
+
+    @Test
+    public void fileOfAnotherFormatReadsAsNull() throws Exception {
+        assertTrue(mDirectory.mkdirs());
+        RandomAccessFile file = new RandomAccessFile(new File(mDirectory, "snapshot.bin"), "rw");
+        try {
+            file.writeBytes("not a snapshot");
+        } finally {
+            file.close();
+        }
+
+        assertNull(mStore.read());
+    }
+}
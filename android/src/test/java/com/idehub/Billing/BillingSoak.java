@@ -0,0 +1,368 @@
+package com.idehub.Billing;
+
+import android.app.Activity;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the bridge from many threads at once against the fake backend, with random latency
+ * and injected errors: open and close, purchases, lost purchase flows, consumes and queries,
+ * interleaved. Then checks that every promise settled exactly once, and that destroying the
+ * module removed its listeners, stopped its threads and let it be garbage collected.
+ *
+ * BillingSoakTest runs a short soak with the unit tests. For a long one, with the results
+ * in SOAK.md:
+ *
+ * <pre>
+ * ./gradlew :react-native-billing:soak -PsoakArgs='threads=16 operations=200000'
+ * </pre>
+ */
+public class BillingSoak {
+    static final String[] PRODUCTS = {"coins", "gems"};
+    static final String SUBSCRIPTION = "premium";
+    private static final String THREAD_PREFIX = "rnbilling";
+
+    static final class Options {
+        int threads = 8;
+        int operations = 20000;
+        long minLatencyMs = 0;
+        long maxLatencyMs = 20;
+        double errorRate = 0.05;
+        // How long promises may take to settle once the last call was made.
+        long settleTimeoutMs = 30000;
+        long seed = 1;
+        // Each round uses a new module. The first one also pays for class loading, so
+        // memory retained by later rounds is what the module leaks.
+        int rounds = 3;
+
+        /**
+         * Reads {@code name=value} pairs, e.g. {@code threads=16 errorRate=0.1}.
+         */
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                String[] pair = arg.split("=", 2);
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Expected name=value: " + arg);
+                }
+                switch (pair[0]) {
+                    case "threads": options.threads = Integer.parseInt(pair[1]); break;
+                    case "operations": options.operations = Integer.parseInt(pair[1]); break;
+                    case "minLatencyMs": options.minLatencyMs = Long.parseLong(pair[1]); break;
+                    case "maxLatencyMs": options.maxLatencyMs = Long.parseLong(pair[1]); break;
+                    case "errorRate": options.errorRate = Double.parseDouble(pair[1]); break;
+                    case "settleTimeoutMs": options.settleTimeoutMs = Long.parseLong(pair[1]); break;
+                    case "seed": options.seed = Long.parseLong(pair[1]); break;
+                    case "rounds": options.rounds = Integer.parseInt(pair[1]); break;
+                    default: throw new IllegalArgumentException("Unknown option " + pair[0]);
+                }
+            }
+            return options;
+        }
+    }
+
+    static final class Report {
+        Options options;
+        int operations;
+        int promises;
+        // Promises still pending settleTimeoutMs after the last call.
+        int unresolved;
+        int settledTwice;
+        // Calls that threw instead of settling their promise.
+        int threw;
+        long elapsedNanos;
+        final Map<String, long[]> latencies = new TreeMap<>();
+        final Map<String, AtomicInteger> outcomes = new TreeMap<>();
+        int activityEventListenersLeft;
+        int receiversLeft;
+        int threadsLeft;
+        boolean bridgeCollected;
+        long retainedBytes;
+
+        double throughput() {
+            return operations / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format(Locale.US, "threads=%d operations=%d latency=%d-%dms errorRate=%.2f seed=%d%n",
+                    options.threads, options.operations, options.minLatencyMs, options.maxLatencyMs,
+                    options.errorRate, options.seed));
+            out.append(String.format(Locale.US, "elapsed %.2f s, %.0f ops/s%n", elapsedNanos / 1e9, throughput()));
+            out.append(String.format(Locale.US, "promises %d, unresolved %d, settled twice %d, threw %d%n",
+                    promises, unresolved, settledTwice, threw));
+            out.append(String.format(Locale.US, "%-30s %8s %10s %10s %10s%n", "method", "calls", "p50 ms", "p99 ms", "max ms"));
+            for (Map.Entry<String, long[]> entry : latencies.entrySet()) {
+                long[] sorted = entry.getValue();
+                out.append(String.format(Locale.US, "%-30s %8d %10.2f %10.2f %10.2f%n", entry.getKey(), sorted.length,
+                        percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6));
+            }
+            for (Map.Entry<String, AtomicInteger> entry : outcomes.entrySet()) {
+                out.append(String.format(Locale.US, "%-50s %8d%n", entry.getKey(), entry.getValue().get()));
+            }
+            out.append(String.format(Locale.US, "after destroy: activity listeners %d, receivers %d, threads %d, bridge collected %s, retained %d KB%n",
+                    activityEventListenersLeft, receiversLeft, threadsLeft, bridgeCollected, retainedBytes / 1024));
+            return out.toString();
+        }
+    }
+
+    private static final class Call {
+        final String method;
+        final long startNanos;
+        final TestPromise promise;
+
+        Call(String method, long startNanos, TestPromise promise) {
+            this.method = method;
+            this.startNanos = startNanos;
+            this.promise = promise;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        for (int round = 1; round <= options.rounds; round++) {
+            System.out.printf(Locale.US, "## Round %d%n", round);
+            System.out.print(run(options));
+            System.out.println();
+        }
+        System.exit(0);
+    }
+
+    static Report run(final Options options) throws Exception {
+        final Report report = new Report();
+        report.options = options;
+        int threadsBefore = countThreads();
+        long heapBefore = usedHeap();
+
+        TestReactContext context = new TestReactContext();
+        WeakReference<InAppBillingBridge> collected = drive(options, context, report);
+
+        report.activityEventListenersLeft = context.activityEventListeners.get();
+        report.receiversLeft = context.receivers.get();
+        report.threadsLeft = awaitThreads(threadsBefore) - threadsBefore;
+        for (int i = 0; i < 20 && collected.get() != null; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        report.bridgeCollected = collected.get() == null;
+        report.retainedBytes = Math.max(0, usedHeap() - heapBefore);
+        return report;
+    }
+
+    /**
+     * Runs the calls and destroys the module. Everything it allocates is unreachable once
+     * it returns, except what the bridge leaked.
+     */
+    private static WeakReference<InAppBillingBridge> drive(final Options options, TestReactContext context,
+                                                           Report report) throws Exception {
+        FakeBillingBackend.Factory fake = new FakeBillingBackend.Factory()
+                .addProduct(PRODUCTS[0], "Coins", 990000, "EUR")
+                .addProduct(PRODUCTS[1], "Gems", 1990000, "EUR")
+                .addSubscription(SUBSCRIPTION, "Premium", 4990000, "EUR", "P1M")
+                .setLatency(options.minLatencyMs, options.maxLatencyMs)
+                .setErrorRate(options.errorRate);
+        final InAppBillingBridge bridge = new InAppBillingBridge(context, "license-key",
+                new BillingConfig().setBackend(fake).setPayloads(JavaOnlyPayloads.INSTANCE));
+
+        final List<List<Call>> calls = new ArrayList<>();
+        final AtomicInteger threw = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < options.threads; t++) {
+            final List<Call> own = new ArrayList<>();
+            calls.add(own);
+            final Random random = new Random(options.seed * 31 + t);
+            final int count = options.operations / options.threads + (t < options.operations % options.threads ? 1 : 0);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        try {
+                            Call call = callRandom(bridge, random);
+                            if (call != null) {
+                                own.add(call);
+                            }
+                        } catch (RuntimeException ex) {
+                            threw.incrementAndGet();
+                        }
+                    }
+                }
+            }, "soak-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.settleTimeoutMs);
+        long lastSettled = startNanos;
+        List<Long> all = new ArrayList<>();
+        Map<String, List<Long>> byMethod = new TreeMap<>();
+        for (List<Call> own : calls) {
+            for (Call call : own) {
+                report.promises++;
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (!call.promise.await(Math.max(0, remainingMs))) {
+                    report.unresolved++;
+                    count(report, call.method + ":unresolved");
+                    continue;
+                }
+                if (call.promise.settlements.get() > 1) {
+                    report.settledTwice++;
+                }
+                count(report, call.method + " " + (call.promise.resolved ? "resolved" : call.promise.code));
+
+                long latency = call.promise.settledNanos - call.startNanos;
+                lastSettled = Math.max(lastSettled, call.promise.settledNanos);
+                all.add(latency);
+                List<Long> method = byMethod.get(call.method);
+                if (method == null) {
+                    method = new ArrayList<>();
+                    byMethod.put(call.method, method);
+                }
+                method.add(latency);
+            }
+        }
+        // Until the last promise settled, or until giving up on the unresolved ones.
+        report.elapsedNanos = (report.unresolved > 0 ? System.nanoTime() : lastSettled) - startNanos;
+        report.operations = options.operations;
+        report.threw = threw.get();
+        report.latencies.put("(all)", sorted(all));
+        for (Map.Entry<String, List<Long>> entry : byMethod.entrySet()) {
+            report.latencies.put(entry.getKey(), sorted(entry.getValue()));
+        }
+
+        bridge.close(new TestPromise());
+        bridge.onCatalystInstanceDestroy();
+        return new WeakReference<>(bridge);
+    }
+
+    /**
+     * @return the call, or null if it has no promise
+     */
+    private static Call callRandom(InAppBillingBridge bridge, Random random) {
+        String product = PRODUCTS[random.nextInt(PRODUCTS.length)];
+        TestPromise promise = new TestPromise();
+        long start = System.nanoTime();
+        int pick = random.nextInt(100);
+        String method;
+        if (pick < 3) {
+            method = "open";
+            bridge.open(promise);
+        } else if (pick < 4) {
+            method = "close";
+            bridge.close(promise);
+        } else if (pick < 16) {
+            method = "purchase";
+            bridge.purchase(product, null, promise);
+        } else if (pick < 20) {
+            method = "subscribe";
+            bridge.subscribe(SUBSCRIPTION, null, promise);
+        } else if (pick < 25) {
+            // A purchase flow whose result the backend dropped.
+            bridge.onActivityResult(null, bridge.PURCHASE_FLOW_REQUEST_CODE, Activity.RESULT_CANCELED, null);
+            return null;
+        } else if (pick < 35) {
+            method = "consumePurchase";
+            bridge.consumePurchase(product, promise);
+        } else if (pick < 50) {
+            method = "isPurchased";
+            bridge.isPurchased(product, promise);
+        } else if (pick < 65) {
+            method = "getProductDetails";
+            bridge.getProductDetails(JavaOnlyArray.of(PRODUCTS[0], PRODUCTS[1]), promise);
+        } else if (pick < 73) {
+            method = "getSubscriptionDetails";
+            bridge.getSubscriptionDetails(JavaOnlyArray.of(SUBSCRIPTION), promise);
+        } else if (pick < 81) {
+            method = "loadOwnedPurchasesFromGoogle";
+            bridge.loadOwnedPurchasesFromGoogle(promise);
+        } else if (pick < 91) {
+            method = "listOwnedProductsPage";
+            bridge.listOwnedProductsPage(null, 10, promise);
+        } else {
+            method = "getMetrics";
+            bridge.getMetrics(promise);
+        }
+        return new Call(method, start, promise);
+    }
+
+    private static void count(Report report, String outcome) {
+        AtomicInteger counter = report.outcomes.get(outcome);
+        if (counter == null) {
+            counter = new AtomicInteger();
+            report.outcomes.put(outcome, counter);
+        }
+        counter.incrementAndGet();
+    }
+
+    private static long[] sorted(List<Long> values) {
+        long[] sorted = new long[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Waits for the module's threads to wind down to the given count.
+     */
+    private static int awaitThreads(int expected) throws InterruptedException {
+        int count = countThreads();
+        for (int i = 0; i < 100 && count > expected; i++) {
+            Thread.sleep(50);
+            count = countThreads();
+        }
+        return count;
+    }
+
+    private static int countThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith(THREAD_PREFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,31 @@
+package com.idehub.Billing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A short run of {@link BillingSoak}, so leaks and lost promises fail the build.
+ */
+public class BillingSoakTest {
+    @Test
+    public void everyPromiseSettlesAndNothingOutlivesTheModule() throws Exception {
+        BillingSoak.Options options = new BillingSoak.Options();
+        options.threads = 4;
+        options.operations = 2000;
+        options.maxLatencyMs = 5;
+        options.settleTimeoutMs = 10000;
+
+        BillingSoak.Report report = BillingSoak.run(options);
+
+        String summary = report.toString();
+        assertEquals(summary, 0, report.unresolved);
+        assertEquals(summary, 0, report.settledTwice);
+        assertEquals(summary, 0, report.threw);
+        assertEquals(summary, 0, report.activityEventListenersLeft);
+        assertEquals(summary, 0, report.receiversLeft);
+        assertEquals(summary, 0, report.threadsLeft);
+        assertTrue(summary, report.bridgeCollected);
+    }
+}
@@ -0,0 +1,114 @@
+package com.idehub.Billing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    private static final long OPEN_MS = 50;
+
+    @Test
+    public void opensAfterTheThresholdOfTransientFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60 * 1000);
+
+        breaker.onFailure(true);
+        breaker.onFailure(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        breaker.onFailure(true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void successResetsTheFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 60 * 1000);
+
+        breaker.onFailure(true);
+        breaker.onSuccess();
+        breaker.onFailure(true);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void answeredFailureCountsAsHealthy() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 60 * 1000);
+
+        breaker.onFailure(true);
+        breaker.onFailure(false);
+        breaker.onFailure(true);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void zeroThresholdNeverOpens() {
+        CircuitBreaker breaker = new CircuitBreaker(0, 60 * 1000);
+
+        for (int i = 0; i < 100; i++) {
+            breaker.onFailure(true);
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void letsOneProbeThroughOnceTheOpenPeriodEnds() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, OPEN_MS);
+        breaker.onFailure(true);
+        assertFalse(breaker.allowRequest());
+
+        Thread.sleep(OPEN_MS * 2);
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void successfulProbeClosesTheBreaker() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, OPEN_MS);
+        breaker.onFailure(true);
+        Thread.sleep(OPEN_MS * 2);
+        assertTrue(breaker.allowRequest());
+
+        breaker.onSuccess();
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeReopensTheBreaker() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, OPEN_MS);
+        breaker.onFailure(true);
+        breaker.onFailure(true);
+        breaker.onFailure(true);
+        Thread.sleep(OPEN_MS * 2);
+        assertTrue(breaker.allowRequest());
+
+        // A single failure is enough while half-open, whatever the threshold.
+        breaker.onFailure(true);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void probeThatNeverReportsBackIsRetried() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, OPEN_MS);
+        breaker.onFailure(true);
+        Thread.sleep(OPEN_MS * 2);
+        assertTrue(breaker.allowRequest());
+
+        Thread.sleep(OPEN_MS * 2);
+
+        assertTrue(breaker.allowRequest());
+    }
+}
@@ -0,0 +1,611 @@
+package com.idehub.Billing;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the bridge through the fake backend, the way JS would.
+ */
+public class InAppBillingBridgeTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FakeBillingBackend.Factory mFake;
+    private TestReactContext mContext;
+    private InAppBillingBridge mBridge;
+
+    @Before
+    public void setUp() {
+        mFake = new FakeBillingBackend.Factory()
+                .addProduct("coins", "Coins", 990000, "EUR")
+                .addSubscription("premium", "Premium", 4990000, "EUR", "P1M");
+        mContext = new TestReactContext();
+        mBridge = new InAppBillingBridge(mContext, "license-key", new BillingConfig().setBackend(mFake).setPayloads(JavaOnlyPayloads.INSTANCE));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mBridge.close(new TestPromise());
+        mBridge.onCatalystInstanceDestroy();
+    }
+
+    @Test
+    public void openResolvesOnceTheBackendIsReady() throws Exception {
+        TestPromise promise = new TestPromise();
+
+        mBridge.open(promise);
+
+        assertEquals(true, promise.awaitResolved());
+    }
+
+    @Test
+    public void openFailsWhenBillingIsUnavailable() throws Exception {
+        mFake.setAvailable(false);
+        TestPromise promise = new TestPromise();
+
+        mBridge.open(promise);
+
+        promise.awaitRejected("E_NO_EMULATOR");
+    }
+
+    @Test
+    public void callsBeforeOpenAreRejected() throws Exception {
+        TestPromise promise = new TestPromise();
+
+        mBridge.purchase("coins", null, promise);
+
+        promise.awaitRejected("E_CONNECTION");
+    }
+
+    @Test
+    public void everyCallOnAClosedChannelIsRejectedWithConnectionError() throws Exception {
+        List<TestPromise> promises = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            promises.add(new TestPromise());
+        }
+
+        mBridge.getSubscriptionDetails(JavaOnlyArray.of("premium"), promises.get(0));
+        mBridge.getSubscriptionDetailsColumns(JavaOnlyArray.of("premium"), promises.get(1));
+        mBridge.getPurchaseTransactionDetails("coins", promises.get(2));
+        mBridge.getSubscriptionTransactionDetails("premium", promises.get(3));
+        mBridge.getProductDetails(JavaOnlyArray.of("coins"), promises.get(4));
+        mBridge.isPurchased("coins", promises.get(5));
+        mBridge.loadOwnedPurchasesFromGoogle(promises.get(6));
+        mBridge.consumePurchases(JavaOnlyArray.of("coins"), promises.get(7));
+
+        for (TestPromise promise : promises) {
+            promise.awaitRejected("E_CONNECTION");
+        }
+        // Dispatched calls are counted with the other rejections.
+        assertEquals(4, mBridge.mMetrics.counter("rejected.E_CONNECTION"));
+    }
+
+    @Test
+    public void googlePlayQueriesAreRetriedUntilTheBackendIsReady() throws Exception {
+        mBridge.onCatalystInstanceDestroy();
+        mBridge = new InAppBillingBridge(new TestReactContext(), "license-key", new BillingConfig()
+                .setBackend(mFake.setLatency(200))
+                .setRetryPolicy(10, 100, 100)
+                .setPayloads(JavaOnlyPayloads.INSTANCE));
+        TestPromise query = new TestPromise();
+
+        mBridge.open(new TestPromise());
+        mBridge.getProductDetails(JavaOnlyArray.of("coins"), query);
+
+        ReadableArray details = (ReadableArray) query.awaitResolved();
+        assertEquals("coins", details.getMap(0).getString("productId"));
+        assertTrue(mBridge.mMetrics.counter("retries") > 0);
+    }
+
+    @Test
+    public void purchaseBeforeTheBackendIsReadyIsUnavailable() throws Exception {
+        mFake.setLatency(2000);
+        TestPromise purchase = new TestPromise();
+
+        mBridge.open(new TestPromise());
+        mBridge.purchase("coins", null, purchase);
+
+        purchase.awaitRejected("E_SERVICE_UNAVAILABLE");
+    }
+
+    @Test
+    public void purchaseResolvesTheTransactionAndOwnsTheProduct() throws Exception {
+        open();
+        TestPromise purchase = new TestPromise();
+
+        mBridge.purchase("coins", "payload", purchase);
+
+        ReadableMap details = (ReadableMap) purchase.awaitResolved();
+        assertEquals("coins", details.getString("productId"));
+        assertTrue(isPurchased("coins"));
+    }
+
+    @Test
+    public void purchaseOfAnOwnedProductIsRejected() throws Exception {
+        mFake.grantProduct("coins");
+        open();
+        TestPromise purchase = new TestPromise();
+
+        mBridge.purchase("coins", null, purchase);
+
+        purchase.awaitRejected("E_ITEM_ALREADY_OWNED");
+    }
+
+    @Test
+    public void purchaseOfAnUnknownProductIsRejected() throws Exception {
+        open();
+        TestPromise purchase = new TestPromise();
+
+        mBridge.purchase("unknown", null, purchase);
+
+        purchase.awaitRejected("E_ITEM_UNAVAILABLE");
+    }
+
+    @Test
+    public void injectedErrorCodeRejectsThePurchase() throws Exception {
+        open();
+        mFake.setErrorCode(FakeBillingBackend.Factory.RESULT_USER_CANCELED);
+        TestPromise purchase = new TestPromise();
+
+        mBridge.purchase("coins", null, purchase);
+
+        purchase.awaitRejected("E_USER_CANCELED");
+    }
+
+    @Test
+    public void pendingPurchaseIsRejectedWithItsOwnCode() throws Exception {
+        open();
+        mFake.setPurchasesPending(true);
+        TestPromise purchase = new TestPromise();
+
+        mBridge.purchase("coins", null, purchase);
+
+        purchase.awaitRejected("E_PURCHASE_PENDING");
+        assertFalse(isPurchased("coins"));
+    }
+
+    @Test
+    public void consumeReleasesTheProduct() throws Exception {
+        mFake.grantProduct("coins");
+        open();
+        TestPromise consume = new TestPromise();
+
+        mBridge.consumePurchase("coins", consume);
+
+        assertEquals(true, consume.awaitResolved());
+        assertFalse(isPurchased("coins"));
+    }
+
+    @Test
+    public void consumeOfAProductNotOwnedIsRejected() throws Exception {
+        open();
+        TestPromise consume = new TestPromise();
+
+        mBridge.consumePurchase("coins", consume);
+
+        consume.awaitRejected("E_ITEM_NOT_OWNED");
+        assertEquals(1, mBridge.mMetrics.counter("rejected.E_ITEM_NOT_OWNED"));
+        assertEquals(1, mBridge.mMetrics.counter("backend.consumePurchase.error." + FakeBillingBackend.Factory.RESULT_ITEM_NOT_OWNED));
+    }
+
+    @Test
+    public void consumePurchasesReportsEachProduct() throws Exception {
+        mFake.grantProduct("coins");
+        open();
+        TestPromise consume = new TestPromise();
+
+        mBridge.consumePurchases(JavaOnlyArray.of("coins", "unknown"), consume);
+
+        ReadableMap results = (ReadableMap) consume.awaitResolved();
+        assertTrue(results.getMap("coins").getBoolean("success"));
+        assertEquals("E_ITEM_NOT_OWNED", results.getMap("unknown").getString("code"));
+    }
+
+    @Test
+    public void latencyDelaysTheAnswerButNotTheCaller() throws Exception {
+        open();
+        mFake.setLatency(100);
+        TestPromise load = new TestPromise();
+
+        long start = System.nanoTime();
+        mBridge.loadOwnedPurchasesFromGoogle(load);
+        long returnedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("The call blocked for " + returnedMs + " ms", returnedMs < 100);
+        load.awaitResolved();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+        assertTrue(awaitTimer(InAppBillingBridge.METRIC_LOAD_OWNED_PURCHASES_FROM_GOOGLE).getDouble("maxMs") >= 100);
+    }
+
+    @Test
+    public void ownedItemsArePagedOneGooglePlayPageAtATime() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            mFake.addProduct("item" + i, "Item", 990000, "EUR").grantProduct("item" + i);
+        }
+        mFake.setOwnedPageSize(2);
+        open();
+
+        List<String> items = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            TestPromise promise = new TestPromise();
+            mBridge.listOwnedProductsPage(cursor, 100, promise);
+            ReadableMap page = (ReadableMap) promise.awaitResolved();
+            ReadableArray pageItems = page.getArray("items");
+            assertTrue(pageItems.size() <= 2);
+            for (int i = 0; i < pageItems.size(); i++) {
+                items.add(pageItems.getString(i));
+            }
+            cursor = page.isNull("nextCursor") ? null : page.getString("nextCursor");
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(Arrays.asList("item0", "item1", "item2", "item3", "item4"), items);
+        assertEquals(3, pages);
+    }
+
+    @Test
+    public void invalidCursorIsRejected() throws Exception {
+        open();
+        TestPromise promise = new TestPromise();
+
+        mBridge.listOwnedProductsPage("not-a-cursor", 10, promise);
+
+        promise.awaitRejected("E_DEVELOPER_ERROR");
+    }
+
+    @Test
+    public void closeEndsProductWatches() throws Exception {
+        open();
+        TestPromise watch = new TestPromise();
+        mBridge.watchProductDetails(JavaOnlyArray.of("coins"), 60 * 1000, watch);
+        String watchId = (String) watch.awaitResolved();
+
+        mBridge.close(new TestPromise());
+
+        TestPromise unwatch = new TestPromise();
+        mBridge.unwatchProductDetails(watchId, unwatch);
+        assertEquals(false, unwatch.awaitResolved());
+    }
+
+    @Test
+    public void watchEmitsOnlyWhenThePriceOrCurrencyChanges() throws Exception {
+        BillingConfig config = new BillingConfig().setBackend(mFake).setPayloads(JavaOnlyPayloads.INSTANCE);
+        config.minWatchIntervalMs = 20;
+        mBridge.onCatalystInstanceDestroy();
+        mBridge = new InAppBillingBridge(mContext, "license-key", config);
+        open();
+        mContext.recordEvents();
+        TestPromise watch = new TestPromise();
+
+        mBridge.watchProductDetails(JavaOnlyArray.of("coins", "premium"), 20, watch);
+        String watchId = (String) watch.awaitResolved();
+
+        // The first query reports everything found.
+        ReadableMap first = awaitEvents(1, InAppBillingBridge.EVENT_PRODUCT_DETAILS_CHANGED);
+        assertEquals(watchId, first.getString("watchId"));
+        assertEquals(2, first.getArray("changed").size());
+        // An unchanged catalog is queried again and again, without an event.
+        Thread.sleep(200);
+        assertEquals(1, mContext.events.size());
+
+        mFake.addProduct("coins", "Coins", 1990000, "EUR");
+        ReadableMap price = awaitEvents(2, InAppBillingBridge.EVENT_PRODUCT_DETAILS_CHANGED);
+        assertEquals(1, price.getArray("changed").size());
+        assertEquals("coins", price.getArray("changed").getMap(0).getString("productId"));
+        assertEquals(0, price.getArray("removed").size());
+
+        mFake.addProduct("coins", "Coins", 1990000, "USD");
+        ReadableMap currency = awaitEvents(3, InAppBillingBridge.EVENT_PRODUCT_DETAILS_CHANGED);
+        assertEquals("USD", currency.getArray("changed").getMap(0).getString("currency"));
+
+        Thread.sleep(200);
+        assertEquals(3, mContext.events.size());
+    }
+
+    @Test
+    public void isPurchasedManyAnswersEveryIdFromOneRead() throws Exception {
+        mFake.grantProduct("coins").grantSubscription("premium");
+        open();
+        TestPromise promise = new TestPromise();
+
+        mBridge.isPurchasedMany(JavaOnlyArray.of("coins", "premium", "unknown", "coins"), promise);
+
+        ReadableMap owned = (ReadableMap) promise.awaitResolved();
+        assertEquals(3, owned.toHashMap().size());
+        assertTrue(owned.getBoolean("coins"));
+        // Subscriptions are not products.
+        assertFalse(owned.getBoolean("premium"));
+        assertFalse(owned.getBoolean("unknown"));
+    }
+
+    @Test
+    public void checkEntitlementsCountsProductsAndSubscriptions() throws Exception {
+        mFake.grantProduct("coins").grantSubscription("premium");
+        open();
+        TestPromise promise = new TestPromise();
+
+        mBridge.checkEntitlements(JavaOnlyArray.of("coins", "premium", "unknown"), promise);
+
+        ReadableMap owned = (ReadableMap) promise.awaitResolved();
+        assertTrue(owned.getBoolean("coins"));
+        assertTrue(owned.getBoolean("premium"));
+        assertFalse(owned.getBoolean("unknown"));
+    }
+
+    @Test
+    public void ownershipOfNoIdsIsAnEmptyMap() throws Exception {
+        open();
+        TestPromise many = new TestPromise();
+        TestPromise entitlements = new TestPromise();
+
+        mBridge.isPurchasedMany(JavaOnlyArray.of(), many);
+        mBridge.checkEntitlements(JavaOnlyArray.of(), entitlements);
+
+        assertTrue(((ReadableMap) many.awaitResolved()).toHashMap().isEmpty());
+        assertTrue(((ReadableMap) entitlements.awaitResolved()).toHashMap().isEmpty());
+    }
+
+    @Test
+    public void ownershipOnAClosedChannelIsRejected() throws Exception {
+        TestPromise many = new TestPromise();
+        TestPromise subscribed = new TestPromise();
+        TestPromise entitlements = new TestPromise();
+
+        mBridge.isPurchasedMany(JavaOnlyArray.of("coins"), many);
+        mBridge.isSubscribedMany(JavaOnlyArray.of("premium"), subscribed);
+        mBridge.checkEntitlements(JavaOnlyArray.of("coins"), entitlements);
+
+        many.awaitRejected("E_CONNECTION");
+        subscribed.awaitRejected("E_CONNECTION");
+        entitlements.awaitRejected("E_CONNECTION");
+    }
+
+    @Test
+    public void preparePurchaseSortsTheIdsByType() throws Exception {
+        open();
+        TestPromise promise = new TestPromise();
+
+        mBridge.preparePurchase(JavaOnlyArray.of("premium", "coins", "unknown"), promise);
+
+        ReadableMap prepared = (ReadableMap) promise.awaitResolved();
+        assertEquals(Arrays.<Object>asList("coins"), prepared.getArray("products").toArrayList());
+        assertEquals(Arrays.<Object>asList("premium"), prepared.getArray("subscriptions").toArrayList());
+        assertEquals(Arrays.<Object>asList("unknown"), prepared.getArray("unavailable").toArrayList());
+    }
+
+    @Test
+    public void failedPreparePurchaseIsRejected() throws Exception {
+        open();
+        mFake.setErrorCode(FakeBillingBackend.Factory.RESULT_BILLING_UNAVAILABLE);
+        TestPromise promise = new TestPromise();
+
+        mBridge.preparePurchase(JavaOnlyArray.of("coins"), promise);
+
+        promise.awaitRejected("E_BILLING_UNAVAILABLE");
+    }
+
+    @Test
+    public void allTransactionDetailsListsProductsAndSubscriptions() throws Exception {
+        mFake.grantProduct("coins").grantSubscription("premium");
+        open();
+        TestPromise promise = new TestPromise();
+
+        mBridge.getAllTransactionDetails(null, promise);
+
+        ReadableMap all = (ReadableMap) promise.awaitResolved();
+        assertEquals(1, all.getArray("products").size());
+        assertEquals("coins", all.getArray("products").getMap(0).getString("productId"));
+        assertEquals(1, all.getArray("subscriptions").size());
+        assertEquals("premium", all.getArray("subscriptions").getMap(0).getString("productId"));
+    }
+
+    @Test
+    public void allTransactionDetailsAreFilteredByType() throws Exception {
+        mFake.grantProduct("coins").grantSubscription("premium");
+        open();
+        TestPromise products = new TestPromise();
+        TestPromise subscriptions = new TestPromise();
+
+        mBridge.getAllTransactionDetails(JavaOnlyMap.of("type", "inapp"), products);
+        mBridge.getAllTransactionDetails(JavaOnlyMap.of("type", "subs"), subscriptions);
+
+        ReadableMap onlyProducts = (ReadableMap) products.awaitResolved();
+        assertEquals(1, onlyProducts.getArray("products").size());
+        assertEquals(0, onlyProducts.getArray("subscriptions").size());
+        ReadableMap onlySubscriptions = (ReadableMap) subscriptions.awaitResolved();
+        assertEquals(0, onlySubscriptions.getArray("products").size());
+        assertEquals(1, onlySubscriptions.getArray("subscriptions").size());
+    }
+
+    @Test
+    public void allTransactionDetailsAreFilteredByPurchaseTime() throws Exception {
+        long before = System.currentTimeMillis();
+        mFake.grantProduct("coins").grantSubscription("premium");
+        open();
+        TestPromise since = new TestPromise();
+        TestPromise future = new TestPromise();
+
+        mBridge.getAllTransactionDetails(JavaOnlyMap.of("since", (double) before), since);
+        mBridge.getAllTransactionDetails(JavaOnlyMap.of("since", (double) before + TimeUnit.DAYS.toMillis(1)), future);
+
+        ReadableMap recent = (ReadableMap) since.awaitResolved();
+        assertEquals(1, recent.getArray("products").size());
+        assertEquals(1, recent.getArray("subscriptions").size());
+        ReadableMap none = (ReadableMap) future.awaitResolved();
+        assertEquals(0, none.getArray("products").size());
+        assertEquals(0, none.getArray("subscriptions").size());
+    }
+
+    @Test
+    public void allTransactionDetailsOnAClosedChannelAreRejected() throws Exception {
+        TestPromise promise = new TestPromise();
+
+        mBridge.getAllTransactionDetails(null, promise);
+
+        promise.awaitRejected("E_CONNECTION");
+    }
+
+    @Test
+    public void loadOwnedPurchasesSettlesOnceTheRestoreIsDone() throws Exception {
+        open();
+        mFake.setLatency(300);
+        TestPromise promise = new TestPromise();
+
+        mBridge.loadOwnedPurchasesFromGoogle(promise);
+
+        assertFalse(promise.await(100));
+        assertEquals(true, promise.awaitResolved());
+    }
+
+    @Test
+    public void loadOwnedPurchasesEmitsOnlyAddedAndRemovedIds() throws Exception {
+        mFake.grantProduct("coins");
+        open();
+        loadOwnedPurchases();
+        mContext.recordEvents();
+
+        mFake.revoke("coins").grantProduct("gems").grantSubscription("premium");
+        loadOwnedPurchases();
+
+        assertEquals(2, mContext.events.size());
+        ReadableMap products = event(0, InAppBillingBridge.EVENT_OWNED_PRODUCTS_CHANGED);
+        assertEquals(Arrays.asList((Object) "gems"), products.getArray("added").toArrayList());
+        assertEquals(Arrays.asList((Object) "coins"), products.getArray("removed").toArrayList());
+        ReadableMap subscriptions = event(1, InAppBillingBridge.EVENT_OWNED_SUBSCRIPTIONS_CHANGED);
+        assertEquals(Arrays.asList((Object) "premium"), subscriptions.getArray("added").toArrayList());
+        assertEquals(0, subscriptions.getArray("removed").size());
+    }
+
+    @Test
+    public void unchangedOwnershipEmitsNoEvent() throws Exception {
+        mFake.grantProduct("coins");
+        open();
+        loadOwnedPurchases();
+        mContext.recordEvents();
+
+        loadOwnedPurchases();
+
+        assertTrue(mContext.events.isEmpty());
+    }
+
+    @Test
+    public void restoredSnapshotIsServedStaleUntilRevalidated() throws Exception {
+        File snapshots = new File(mFolder.getRoot(), InAppBillingBridge.SNAPSHOT_DIRECTORY);
+        new BillingSnapshotStore(snapshots).write(BillingSnapshotStoreTest.snapshot(1234, "coins"));
+        mFake.grantSubscription("premium");
+        mBridge.onCatalystInstanceDestroy();
+        mContext = new TestReactContext(mFolder.getRoot());
+        mContext.recordEvents();
+        mBridge = new InAppBillingBridge(mContext, "license-key", new BillingConfig()
+                .setBackend(mFake)
+                .setPersistentSnapshot(true)
+                .setPayloads(JavaOnlyPayloads.INSTANCE));
+
+        TestPromise restored = new TestPromise();
+        mBridge.getSnapshot(restored);
+        ReadableMap stale = (ReadableMap) restored.awaitResolved();
+        assertTrue(stale.getBoolean("stale"));
+        assertEquals(1234, stale.getDouble("savedAt"), 0);
+        assertEquals(2, stale.getArray("products").size());
+        assertEquals(Arrays.asList((Object) "coins"), stale.getArray("ownedProducts").toArrayList());
+        assertTrue(mBridge.isPurchasedSync("coins"));
+
+        open();
+
+        ReadableMap fresh = awaitEvent(InAppBillingBridge.EVENT_SNAPSHOT_REFRESHED);
+        assertFalse(fresh.getBoolean("stale"));
+        assertTrue(fresh.getDouble("savedAt") > 1234);
+        assertEquals(0, fresh.getArray("ownedProducts").size());
+        assertEquals(Arrays.asList((Object) "premium"), fresh.getArray("ownedSubscriptions").toArrayList());
+        assertFalse(mBridge.isPurchasedSync("coins"));
+
+        BillingSnapshotStore.Snapshot persisted = new BillingSnapshotStore(snapshots).read();
+        assertTrue(persisted.ownedProducts.isEmpty());
+        assertEquals(Arrays.asList("premium"), persisted.ownedSubscriptions);
+    }
+
+    /**
+     * Waits for the count-th event, which must be the last one and have the given name.
+     */
+    private ReadableMap awaitEvents(int count, String name) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mContext.events.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mContext.events.size());
+        return event(count - 1, name);
+    }
+
+    private ReadableMap awaitEvent(String name) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            for (TestReactContext.Event event : mContext.events) {
+                if (event.name.equals(name)) {
+                    return (ReadableMap) event.payload;
+                }
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("No " + name + " event");
+    }
+
+    private void loadOwnedPurchases() throws Exception {
+        TestPromise promise = new TestPromise();
+        mBridge.loadOwnedPurchasesFromGoogle(promise);
+        promise.awaitResolved();
+    }
+
+    private ReadableMap event(int index, String name) {
+        TestReactContext.Event event = mContext.events.get(index);
+        assertEquals(name, event.name);
+        return (ReadableMap) event.payload;
+    }
+
+    private void open() throws Exception {
+        TestPromise promise = new TestPromise();
+        mBridge.open(promise);
+        promise.awaitResolved();
+    }
+
+    private boolean isPurchased(String productId) throws Exception {
+        TestPromise promise = new TestPromise();
+        mBridge.isPurchased(productId, promise);
+        return (Boolean) promise.awaitResolved();
+    }
+
+    /**
+     * The timer is recorded right after the promise settles, so it may lag behind it.
+     */
+    private ReadableMap awaitTimer(String name) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            TestPromise metrics = new TestPromise();
+            mBridge.getMetrics(metrics);
+            ReadableMap timers = ((ReadableMap) metrics.awaitResolved()).getMap("timers");
+            if (timers.hasKey(name)) {
+                return timers.getMap(name);
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("No timer named " + name);
+    }
+}
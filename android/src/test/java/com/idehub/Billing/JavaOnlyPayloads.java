@@ -0,0 +1,27 @@
+package com.idehub.Billing;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Payloads backed by plain Java collections, for tests that run without the React Native
+ * JNI libraries.
+ */
+final class JavaOnlyPayloads implements BillingMapper.Payloads {
+    static final JavaOnlyPayloads INSTANCE = new JavaOnlyPayloads();
+
+    private JavaOnlyPayloads() {
+    }
+
+    @Override
+    public WritableMap createMap() {
+        return new JavaOnlyMap();
+    }
+
+    @Override
+    public WritableArray createArray() {
+        return new JavaOnlyArray();
+    }
+}
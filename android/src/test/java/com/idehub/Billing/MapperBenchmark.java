@@ -0,0 +1,91 @@
+package com.idehub.Billing;
+
+import com.anjlab.android.iab.v3.SkuDetails;
+import com.anjlab.android.iab.v3.TransactionDetails;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BillingMapper on the payloads every details query and receipt export builds, by number
+ * of items. Subscriptions are mapped, so the optional trial and introductory price fields
+ * are included; every other item has them. Payloads are the Java-only ones, so the numbers
+ * cover the mapping, not the native maps. See BENCHMARKS.md.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int size;
+
+    private final BillingMapper mMapper = new BillingMapper(JavaOnlyPayloads.INSTANCE);
+    private final List<SkuDetails> mDetails = new ArrayList<>();
+    private final List<TransactionDetails> mTransactions = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws Exception {
+        for (int i = 0; i < size; i++) {
+            mDetails.add(subscription("sku" + i, i % 2 == 0));
+            mTransactions.add(FakeBillingBackend.Factory.createTransactionDetails("sku" + i, "payload", true));
+        }
+    }
+
+    @Benchmark
+    public WritableArray mapSkuDetailsList() {
+        return mMapper.mapSkuDetailsList(mDetails, true);
+    }
+
+    @Benchmark
+    public WritableMap mapSkuDetailsColumns() {
+        return mMapper.mapSkuDetailsColumns(mDetails, true);
+    }
+
+    @Benchmark
+    public WritableArray mapTransactionDetails() {
+        WritableArray arr = mMapper.createArray();
+        for (int i = 0; i < mTransactions.size(); i++) {
+            arr.pushMap(mMapper.mapTransactionDetails(mTransactions.get(i)));
+        }
+        return arr;
+    }
+
+    static SkuDetails subscription(String productId, boolean offers) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("productId", productId);
+        json.put("type", "subs");
+        json.put("title", "Premium " + productId);
+        json.put("description", "Monthly premium");
+        json.put("price", "4.99 EUR");
+        json.put("price_amount_micros", 4990000);
+        json.put("price_currency_code", "EUR");
+        json.put("subscriptionPeriod", "P1M");
+        if (offers) {
+            json.put("freeTrialPeriod", "P1W");
+            json.put("introductoryPrice", "0.99 EUR");
+            json.put("introductoryPriceAmountMicros", 990000);
+            json.put("introductoryPricePeriod", "P1M");
+            json.put("introductoryPriceCycles", 3);
+        }
+        return new SkuDetails(json);
+    }
+}
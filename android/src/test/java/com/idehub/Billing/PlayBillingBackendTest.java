@@ -0,0 +1,450 @@
+package com.idehub.Billing;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+import com.anjlab.android.iab.v3.SkuDetails;
+import com.anjlab.android.iab.v3.TransactionDetails;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlayBillingBackendTest {
+    private static final int OK = 0;
+    private static final int SERVICE_UNAVAILABLE = 2;
+    private static final int BILLING_UNAVAILABLE = 3;
+    private static final int ITEM_UNAVAILABLE = 4;
+
+    private ManualHandler mHandler;
+    private FakeClient mClient;
+    private RecordingListener mListener;
+    private PlayBillingBackend mBackend;
+
+    @Before
+    public void setUp() {
+        mHandler = new ManualHandler();
+        mClient = new FakeClient();
+        mListener = new RecordingListener();
+        mBackend = new PlayBillingBackend("", mListener, mHandler, mClient);
+    }
+
+    private static BillingResult result(int responseCode) {
+        return BillingResult.newBuilder().setResponseCode(responseCode).setDebugMessage("code " + responseCode).build();
+    }
+
+    private static Purchase purchase(String productId, String token, boolean acknowledged) throws JSONException {
+        return new Purchase("{\"productId\":\"" + productId + "\",\"purchaseToken\":\"" + token
+                + "\",\"purchaseState\":0,\"acknowledged\":" + acknowledged + "}", "signature");
+    }
+
+    private void connect(List<Purchase> products) {
+        mClient.connection.onBillingSetupFinished(result(OK));
+        mClient.answerPurchases(products);
+        mClient.answerPurchases(Collections.<Purchase>emptyList());
+    }
+
+    @Test
+    public void failedSetupIsReportedAsBindFailure() {
+        mClient.connection.onBillingSetupFinished(result(BILLING_UNAVAILABLE));
+
+        assertEquals(1, mListener.errors.size());
+        assertEquals(InAppBillingBridge.BILLING_ERROR_BIND_FAILED, (int) mListener.errors.get(0));
+        assertEquals(BILLING_UNAVAILABLE, ((BillingError) mListener.causes.get(0)).responseCode);
+        assertEquals(0, mListener.initialized);
+    }
+
+    @Test
+    public void disconnectDuringSetupIsReportedAsUnavailable() {
+        mClient.connection.onBillingServiceDisconnected();
+
+        assertEquals(InAppBillingBridge.BILLING_ERROR_BIND_FAILED, (int) mListener.errors.get(0));
+        assertEquals(SERVICE_UNAVAILABLE, ((BillingError) mListener.causes.get(0)).responseCode);
+        assertTrue(mHandler.delayed.isEmpty());
+    }
+
+    @Test
+    public void initializesOnceOwnedPurchasesAreLoaded() throws Exception {
+        mClient.connection.onBillingSetupFinished(result(OK));
+        assertEquals(0, mListener.initialized);
+
+        connectRemaining(Collections.singletonList(purchase("coins", "t1", true)));
+
+        assertEquals(1, mListener.initialized);
+        assertTrue(mBackend.isPurchased("coins"));
+    }
+
+    private void connectRemaining(List<Purchase> products) {
+        mClient.answerPurchases(products);
+        mClient.answerPurchases(Collections.<Purchase>emptyList());
+    }
+
+    @Test
+    public void lostConnectionIsRestartedAndReloadsPurchases() throws Exception {
+        connect(Collections.<Purchase>emptyList());
+        assertEquals(1, mClient.connections);
+
+        mClient.connection.onBillingServiceDisconnected();
+        assertEquals(1, mHandler.delayed.size());
+        assertTrue(mListener.errors.isEmpty());
+
+        // The first retry fails too, so the next one waits longer.
+        long firstDelay = mHandler.runNext();
+        assertEquals(2, mClient.connections);
+        mClient.connection.onBillingSetupFinished(result(SERVICE_UNAVAILABLE));
+        assertTrue(mHandler.delayed.firstKey() > firstDelay);
+
+        mHandler.runNext();
+        assertEquals(3, mClient.connections);
+        mClient.connection.onBillingSetupFinished(result(OK));
+        connectRemaining(Collections.singletonList(purchase("coins", "t1", true)));
+
+        assertTrue(mBackend.isPurchased("coins"));
+        assertEquals(1, mListener.initialized);
+        assertTrue(mListener.errors.isEmpty());
+    }
+
+    @Test
+    public void releaseCancelsTheReconnect() {
+        connect(Collections.<Purchase>emptyList());
+        mClient.connection.onBillingServiceDisconnected();
+
+        mBackend.release();
+
+        assertTrue(mHandler.delayed.isEmpty());
+        assertTrue(mClient.ended);
+        assertEquals(1, mClient.connections);
+    }
+
+    @Test
+    public void queryTimesOutWhenTheClientNeverAnswers() {
+        connect(Collections.<Purchase>emptyList());
+        RecordingCallback<List<SkuDetails>> callback = new RecordingCallback<>();
+
+        mBackend.getPurchaseListingDetails(new ArrayList<>(Arrays.asList("coins")), callback);
+        assertEquals(0, callback.calls);
+
+        mHandler.runNext();
+        assertEquals(1, callback.calls);
+        assertEquals(SERVICE_UNAVAILABLE, callback.failure);
+
+        // A late answer does not complete the callback again.
+        mClient.skuDetails.remove(0).onSkuDetailsResponse(result(OK),
+                Collections.<com.android.billingclient.api.SkuDetails>emptyList());
+        assertEquals(1, callback.calls);
+    }
+
+    @Test
+    public void answeredQueryCancelsItsTimeout() {
+        connect(Collections.<Purchase>emptyList());
+        RecordingCallback<List<SkuDetails>> callback = new RecordingCallback<>();
+
+        mBackend.getPurchaseListingDetails(new ArrayList<>(Arrays.asList("coins")), callback);
+        mClient.skuDetails.remove(0).onSkuDetailsResponse(result(BILLING_UNAVAILABLE), null);
+
+        assertEquals(1, callback.calls);
+        assertEquals(BILLING_UNAVAILABLE, callback.failure);
+        assertTrue(mHandler.delayed.isEmpty());
+    }
+
+    @Test
+    public void loadedPurchasesAreAcknowledgedUnlessAlreadyAcknowledged() throws Exception {
+        connect(Arrays.asList(purchase("coins", "t1", false), purchase("gems", "t2", true)));
+
+        assertEquals(Collections.singletonList("t1"), mClient.acknowledged);
+    }
+
+    @Test
+    public void completedPurchaseIsAcknowledgedAndReported() throws Exception {
+        connect(Collections.<Purchase>emptyList());
+        mBackend.purchase(new Activity(), "coins", null);
+        mClient.skuDetails.remove(0).onSkuDetailsResponse(result(OK),
+                Collections.singletonList(new com.android.billingclient.api.SkuDetails(
+                        "{\"productId\":\"coins\",\"type\":\"inapp\"}")));
+        mHandler.runPosted();
+
+        mClient.purchasesUpdated.onPurchasesUpdated(result(OK),
+                Collections.singletonList(purchase("coins", "t1", false)));
+
+        assertEquals(Collections.singletonList("t1"), mClient.acknowledged);
+        assertEquals(Collections.singletonList("coins"), mListener.purchased);
+        assertTrue(mBackend.isPurchased("coins"));
+    }
+
+    @Test
+    public void pendingPurchaseIsNeitherAcknowledgedNorOwned() throws Exception {
+        connect(Collections.<Purchase>emptyList());
+        Purchase pending = new Purchase("{\"productId\":\"coins\",\"purchaseToken\":\"t1\",\"purchaseState\":4,"
+                + "\"acknowledged\":false}", "signature");
+
+        mClient.purchasesUpdated.onPurchasesUpdated(result(OK), Collections.singletonList(pending));
+
+        assertTrue(mClient.acknowledged.isEmpty());
+        assertFalse(mBackend.isPurchased("coins"));
+        assertEquals(BillingBackend.BILLING_ERROR_PURCHASE_PENDING, (int) mListener.errors.get(0));
+        assertNull(mBackend.getPurchaseTransactionDetails("coins"));
+    }
+
+    private static com.android.billingclient.api.SkuDetails details(String productId) throws JSONException {
+        return new com.android.billingclient.api.SkuDetails("{\"productId\":\"" + productId + "\",\"type\":\"inapp\"}");
+    }
+
+    @Test
+    public void preparedProductLaunchesWithoutAQuery() throws Exception {
+        connect(Collections.<Purchase>emptyList());
+        RecordingCallback<List<SkuDetails>> prepared = new RecordingCallback<>();
+        mBackend.preparePurchase(new ArrayList<>(Arrays.asList("coins")), false, prepared);
+        mClient.skuDetails.remove(0).onSkuDetailsResponse(result(OK), Collections.singletonList(details("coins")));
+        assertEquals(1, prepared.calls);
+
+        assertTrue(mBackend.purchase(new Activity(), "coins", null));
+        mHandler.runPosted();
+
+        assertTrue(mClient.skuDetails.isEmpty());
+        assertEquals(1, mClient.launches);
+    }
+
+    @Test
+    public void unpreparedProductIsQueriedBeforeTheFlow() throws Exception {
+        connect(Collections.<Purchase>emptyList());
+
+        assertTrue(mBackend.purchase(new Activity(), "coins", null));
+        mHandler.runPosted();
+        assertEquals(0, mClient.launches);
+
+        mClient.skuDetails.remove(0).onSkuDetailsResponse(result(OK), Collections.singletonList(details("coins")));
+        mHandler.runPosted();
+
+        assertEquals(1, mClient.launches);
+        assertTrue(mListener.errors.isEmpty());
+    }
+
+    @Test
+    public void unknownProductIsReportedUnavailable() {
+        connect(Collections.<Purchase>emptyList());
+
+        mBackend.purchase(new Activity(), "unknown", null);
+        mClient.skuDetails.remove(0).onSkuDetailsResponse(result(OK),
+                Collections.<com.android.billingclient.api.SkuDetails>emptyList());
+        mHandler.runPosted();
+
+        assertEquals(0, mClient.launches);
+        assertEquals(Collections.singletonList(ITEM_UNAVAILABLE), mListener.errors);
+    }
+
+    @Test
+    public void preparedDetailsExpireAfterTheirTtl() throws Exception {
+        PlayBillingBackend.PreparedDetails prepared = new PlayBillingBackend.PreparedDetails(1000);
+        prepared.put(details("coins"), 0);
+        prepared.put(details("gems"), 500);
+
+        assertEquals("coins", prepared.get("coins", 999).getSku());
+        assertNull(prepared.get("coins", 1000));
+        assertEquals("gems", prepared.get("gems", 1000).getSku());
+        assertNull(prepared.get("gems", 1500));
+    }
+
+    @Test
+    public void preparingAgainRestartsTheTtl() throws Exception {
+        PlayBillingBackend.PreparedDetails prepared = new PlayBillingBackend.PreparedDetails(1000);
+        prepared.put(details("coins"), 0);
+        prepared.put(details("gems"), 500);
+
+        prepared.put(details("coins"), 900);
+
+        // gems now expires first, and evicting it leaves coins alone.
+        assertNull(prepared.get("gems", 1500));
+        assertEquals("coins", prepared.get("coins", 1500).getSku());
+        assertNull(prepared.get("coins", 1900));
+    }
+
+    /**
+     * Keeps posted runnables until the test runs them, ordered by delay.
+     */
+    private static class ManualHandler extends Handler {
+        final TreeMap<Long, Runnable> delayed = new TreeMap<>();
+        final List<Runnable> posted = new ArrayList<>();
+
+        ManualHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean post(Runnable r) {
+            posted.add(r);
+            return true;
+        }
+
+        @Override
+        public boolean postDelayed(Runnable r, long delayMillis) {
+            long key = delayMillis;
+            while (delayed.containsKey(key)) {
+                key++;
+            }
+            delayed.put(key, r);
+            return true;
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            posted.remove(r);
+            Iterator<Map.Entry<Long, Runnable>> it = delayed.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue() == r) {
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * @return the delay of the runnable that ran
+         */
+        long runNext() {
+            Map.Entry<Long, Runnable> next = delayed.pollFirstEntry();
+            next.getValue().run();
+            return next.getKey();
+        }
+
+        void runPosted() {
+            while (!posted.isEmpty()) {
+                posted.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * Records the listeners the backend passes, so the test answers for Google Play.
+     */
+    private class FakeClient implements PlayBillingBackend.Client, PlayBillingBackend.ClientFactory {
+        PurchasesUpdatedListener purchasesUpdated;
+        BillingClientStateListener connection;
+        int connections;
+        int launches;
+        boolean ended;
+        final List<PurchasesResponseListener> purchases = new ArrayList<>();
+        final List<SkuDetailsResponseListener> skuDetails = new ArrayList<>();
+        final List<String> acknowledged = new ArrayList<>();
+
+        @Override
+        public PlayBillingBackend.Client create(PurchasesUpdatedListener purchasesUpdated) {
+            this.purchasesUpdated = purchasesUpdated;
+            return this;
+        }
+
+        void answerPurchases(List<Purchase> owned) {
+            purchases.remove(0).onQueryPurchasesResponse(result(OK), owned);
+        }
+
+        @Override
+        public boolean isReady() {
+            return connection != null && !ended;
+        }
+
+        @Override
+        public void startConnection(BillingClientStateListener listener) {
+            connection = listener;
+            connections++;
+        }
+
+        @Override
+        public void endConnection() {
+            ended = true;
+        }
+
+        @Override
+        public BillingResult launchBillingFlow(Activity activity, BillingFlowParams params) {
+            launches++;
+            return result(OK);
+        }
+
+        @Override
+        public void querySkuDetailsAsync(SkuDetailsParams params, SkuDetailsResponseListener listener) {
+            skuDetails.add(listener);
+        }
+
+        @Override
+        public void queryPurchasesAsync(String skuType, PurchasesResponseListener listener) {
+            purchases.add(listener);
+        }
+
+        @Override
+        public void consumeAsync(ConsumeParams params, ConsumeResponseListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void acknowledgePurchase(AcknowledgePurchaseParams params, AcknowledgePurchaseResponseListener listener) {
+            acknowledged.add(params.getPurchaseToken());
+            listener.onAcknowledgePurchaseResponse(result(OK));
+        }
+    }
+
+    private static class RecordingListener implements BillingBackend.Listener {
+        final List<Integer> errors = new ArrayList<>();
+        final List<Throwable> causes = new ArrayList<>();
+        final List<String> purchased = new ArrayList<>();
+        int initialized;
+
+        @Override
+        public void onProductPurchased(String productId, TransactionDetails details) {
+            purchased.add(productId);
+        }
+
+        @Override
+        public void onPurchaseHistoryRestored() {
+        }
+
+        @Override
+        public void onBillingError(int errorCode, Throwable error) {
+            errors.add(errorCode);
+            causes.add(error);
+        }
+
+        @Override
+        public void onBillingInitialized() {
+            initialized++;
+        }
+    }
+
+    private static class RecordingCallback<T> implements BillingBackend.Callback<T> {
+        int calls;
+        int failure;
+
+        @Override
+        public void onSuccess(T result) {
+            calls++;
+        }
+
+        @Override
+        public void onFailure(int responseCode) {
+            calls++;
+            failure = responseCode;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.idehub.Billing;
+
+import com.anjlab.android.iab.v3.SkuDetails;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ProductDetailsCache.lookup against the version it replaced, which found duplicate ids
+ * by scanning the list of missing ids. A cold cache is the worst case for that scan,
+ * since every id ends up in the list. See BENCHMARKS.md.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProductDetailsCacheBenchmark {
+    private static final String TYPE = ProductDetailsCache.TYPE_PRODUCT;
+
+    @Param({"10", "100", "1000", "5000"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean warm;
+
+    private final List<String> mProductIds = new ArrayList<>();
+    private ProductDetailsCache mCache;
+    private final Map<String, SkuDetails> mEntries = new LinkedHashMap<>();
+
+    @Setup
+    public void setUp() throws Exception {
+        mCache = new ProductDetailsCache(60 * 60 * 1000, size);
+        List<SkuDetails> details = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String productId = "sku" + i;
+            mProductIds.add(productId);
+            details.add(ProductDetailsCacheTest.details(productId, "EUR"));
+        }
+
+        if (warm) {
+            mCache.put(TYPE, details);
+            for (SkuDetails detail : details) {
+                mEntries.put(TYPE + ":" + detail.productId, detail);
+            }
+        }
+    }
+
+    @Benchmark
+    public ProductDetailsCache.Lookup lookup() {
+        return mCache.lookup(TYPE, mProductIds);
+    }
+
+    @Benchmark
+    public ProductDetailsCache.Lookup linearDedupe() {
+        return linearDedupeLookup(TYPE, mProductIds);
+    }
+
+    // The replaced loop, over a map with the same keys. It skips the TTL check, which
+    // only favors it.
+    private synchronized ProductDetailsCache.Lookup linearDedupeLookup(String type, List<String> productIds) {
+        // Not presized, like the replaced one.
+        ProductDetailsCache.Lookup lookup = new ProductDetailsCache.Lookup(8);
+
+        for (String productId : productIds) {
+            if (lookup.found.containsKey(productId) || lookup.missing.contains(productId)) {
+                continue;
+            }
+
+            SkuDetails detail = mEntries.get(type + ":" + productId);
+            if (detail != null) {
+                lookup.found.put(productId, detail);
+            } else {
+                lookup.missing.add(productId);
+            }
+        }
+
+        return lookup;
+    }
+}
@@ -0,0 +1,131 @@
+package com.idehub.Billing;
+
+import com.anjlab.android.iab.v3.SkuDetails;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProductDetailsCacheTest {
+    private static final String INAPP = ProductDetailsCache.TYPE_PRODUCT;
+    private static final String SUBS = ProductDetailsCache.TYPE_SUBSCRIPTION;
+
+    static SkuDetails details(String productId, String currency) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("productId", productId);
+        json.put("type", "inapp");
+        json.put("price_currency_code", currency);
+        json.put("price_amount_micros", 990000);
+        json.put("price", "0.99");
+        return new SkuDetails(json);
+    }
+
+    @Test
+    public void lookupSplitsFoundAndMissingIds() throws Exception {
+        ProductDetailsCache cache = new ProductDetailsCache(60000, 10);
+        SkuDetails a = details("a", "EUR");
+        cache.put(INAPP, Collections.singletonList(a));
+
+        ProductDetailsCache.Lookup lookup = cache.lookup(INAPP, Arrays.asList("a", "b", "b"));
+
+        assertSame(a, lookup.found.get("a"));
+        assertEquals(Collections.singletonList("b"), lookup.missing);
+    }
+
+    @Test
+    public void entriesAreKeyedByType() throws Exception {
+        ProductDetailsCache cache = new ProductDetailsCache(60000, 10);
+        cache.put(INAPP, Collections.singletonList(details("a", "EUR")));
+
+        assertEquals(Collections.singletonList("a"), cache.lookup(SUBS, Collections.singletonList("a")).missing);
+    }
+
+    @Test
+    public void expiredEntriesAreMissingButServedStale() throws Exception {
+        ProductDetailsCache cache = new ProductDetailsCache(1, 10);
+        SkuDetails a = details("a", "EUR");
+        cache.put(INAPP, Collections.singletonList(a));
+        Thread.sleep(5);
+
+        assertEquals(Collections.singletonList("a"), cache.lookup(INAPP, Collections.singletonList("a")).missing);
+        assertSame(a, cache.lookupStale(INAPP, Collections.singletonList("a")).get("a"));
+    }
+
+    @Test
+    public void restoredEntriesCountAsStale() throws Exception {
+        ProductDetailsCache cache = new ProductDetailsCache(60000, 10);
+        cache.putStale(INAPP, Collections.singletonList(details("a", "EUR")));
+
+        assertEquals(Collections.singletonList("a"), cache.lookup(INAPP, Collections.singletonList("a")).missing);
+        assertEquals(1, cache.values(INAPP).size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws Exception {
+        ProductDetailsCache cache = new ProductDetailsCache(60000, 2);
+        cache.put(INAPP, Collections.singletonList(details("a", "EUR")));
+        cache.put(INAPP, Collections.singletonList(details("b", "EUR")));
+        cache.lookup(INAPP, Collections.singletonList("a"));
+        cache.put(INAPP, Collections.singletonList(details("c", "EUR")));
+
+        ProductDetailsCache.Lookup lookup = cache.lookup(INAPP, Arrays.asList("a", "b", "c"));
+        assertTrue(lookup.found.containsKey("a"));
+        assertEquals(Collections.singletonList("b"), lookup.missing);
+    }
+
+    @Test
+    public void currencyChangeClearsOldEntriesButKeepsTheWholeBatch() throws Exception {
+        ProductDetailsCache cache = new ProductDetailsCache(60000, 10);
+        cache.put(INAPP, Arrays.asList(details("a", "EUR"), details("b", "EUR"), details("old", "EUR")));
+
+        List<SkuDetails> batch = Arrays.asList(details("c", "USD"), details("a", "USD"), details("b", "USD"));
+        cache.put(INAPP, batch);
+
+        ProductDetailsCache.Lookup lookup = cache.lookup(INAPP, Arrays.asList("a", "b", "c", "old"));
+        assertEquals(3, lookup.found.size());
+        assertEquals("USD", lookup.found.get("a").currency);
+        assertEquals(Collections.singletonList("old"), lookup.missing);
+    }
+
+    @Test
+    public void disabledCacheStoresNothing() throws Exception {
+        ProductDetailsCache cache = new ProductDetailsCache(0, 10);
+        cache.put(INAPP, Collections.singletonList(details("a", "EUR")));
+
+        assertTrue(cache.values(INAPP).isEmpty());
+        assertFalse(cache.lookup(INAPP, Collections.singletonList("a")).missing.isEmpty());
+    }
+
+    @Test
+    public void invalidateRemovesBothTypes() throws Exception {
+        ProductDetailsCache cache = new ProductDetailsCache(60000, 10);
+        cache.put(INAPP, Collections.singletonList(details("a", "EUR")));
+        cache.put(SUBS, Collections.singletonList(details("a", "EUR")));
+
+        cache.invalidate(Collections.singletonList("a"));
+
+        assertTrue(cache.values(INAPP).isEmpty());
+        assertTrue(cache.values(SUBS).isEmpty());
+    }
+
+    @Test
+    public void inOrderFollowsTheRequestAndSkipsUnknownIds() throws Exception {
+        ProductDetailsCache.Lookup lookup = new ProductDetailsCache.Lookup(3);
+        lookup.found.put("b", details("b", "EUR"));
+        lookup.found.put("a", details("a", "EUR"));
+
+        List<SkuDetails> ordered = lookup.inOrder(Arrays.asList("a", "x", "b"));
+
+        assertEquals(2, ordered.size());
+        assertEquals("a", ordered.get(0).productId);
+        assertEquals("b", ordered.get(1).productId);
+    }
+}
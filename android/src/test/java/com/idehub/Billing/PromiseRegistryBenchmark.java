@@ -0,0 +1,74 @@
+package com.idehub.Billing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registering and resolving a request in the PromiseRegistry, the round trip of every
+ * open() and purchase flow. Runs on 4 threads, each with a kind of its own, next to a
+ * number of other pending requests. With a timeout, each request also schedules and
+ * cancels its deadline on the billing timer. See BENCHMARKS.md.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class PromiseRegistryBenchmark {
+    @Param({"0", "100", "10000"})
+    public int pending;
+
+    @Param({"0", "900000"})
+    public long timeoutMs;
+
+    private BillingExecutor mExecutor;
+    private PromiseRegistry mRegistry;
+    private final AtomicInteger mNextKind = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Kind {
+        String kind;
+
+        @Setup
+        public void setUp(PromiseRegistryBenchmark benchmark) {
+            kind = "bench" + benchmark.mNextKind.incrementAndGet();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mExecutor = new BillingExecutor();
+        mRegistry = new PromiseRegistry(mExecutor, new BillingMetrics());
+        for (int i = 0; i < pending; i++) {
+            mRegistry.register("pending" + i, null, new TestPromise(), 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    public boolean registerAndResolve(Kind kind) {
+        String requestId = mRegistry.register(kind.kind, null, new TestPromise(), timeoutMs);
+        return mRegistry.resolve(requestId, Boolean.TRUE);
+    }
+}
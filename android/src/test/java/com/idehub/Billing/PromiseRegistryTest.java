@@ -0,0 +1,176 @@
+package com.idehub.Billing;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PromiseRegistryTest {
+    private static final String KIND = PromiseConstants.PURCHASE_OR_SUBSCRIBE;
+
+    private final BillingExecutor mExecutor = new BillingExecutor();
+    private final BillingMetrics mMetrics = new BillingMetrics();
+    private final PromiseRegistry mRegistry = new PromiseRegistry(mExecutor, mMetrics);
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void allowsOneActiveRequestPerKind() {
+        String first = mRegistry.register(KIND, "a", new TestPromise(), 0);
+
+        assertNotNull(first);
+        assertNull(mRegistry.register(KIND, "b", new TestPromise(), 0));
+        assertNotNull(mRegistry.register(PromiseConstants.OPEN, null, new TestPromise(), 0));
+
+        mRegistry.resolve(first, true);
+        assertNotNull(mRegistry.register(KIND, "b", new TestPromise(), 0));
+    }
+
+    @Test
+    public void settlesEachPromiseOnce() throws Exception {
+        TestPromise promise = new TestPromise();
+        String requestId = mRegistry.register(KIND, "a", promise, 0);
+
+        assertTrue(mRegistry.resolve(requestId, true));
+        assertFalse(mRegistry.reject(requestId, "E_FAILURE", "late", null));
+
+        assertEquals(Boolean.TRUE, promise.awaitResolved());
+        assertEquals(1, promise.settlements.get());
+        assertEquals(0, mRegistry.size());
+    }
+
+    @Test
+    public void rejectsWithTimeoutAfterTheDeadline() throws Exception {
+        TestPromise promise = new TestPromise();
+        mRegistry.register(KIND, "a", promise, 20);
+
+        promise.awaitRejected("E_TIMEOUT");
+        assertNull(mRegistry.active(KIND));
+        assertEquals(1, mMetrics.counter("rejected.E_TIMEOUT"));
+    }
+
+    @Test
+    public void activeReturnsTheRegisteredEntry() {
+        TestPromise promise = new TestPromise();
+        String requestId = mRegistry.register(KIND, "a", promise, 0);
+
+        PromiseRegistry.Entry entry = mRegistry.active(KIND);
+        assertEquals(requestId, entry.requestId);
+        assertSame(promise, entry.promise);
+        assertEquals("a", entry.productId);
+    }
+
+    @Test
+    public void rejectAllSettlesEveryPendingPromise() throws Exception {
+        TestPromise open = new TestPromise();
+        TestPromise purchase = new TestPromise();
+        mRegistry.register(PromiseConstants.OPEN, null, open, 0);
+        mRegistry.register(KIND, "a", purchase, 0);
+
+        mRegistry.rejectAll("E_DESTROYED", "gone");
+
+        open.awaitRejected("E_DESTROYED");
+        purchase.awaitRejected("E_DESTROYED");
+        assertEquals(0, mRegistry.size());
+        assertEquals(2, mMetrics.counter("rejected.E_DESTROYED"));
+    }
+
+    @Test
+    public void concurrentRegistersOfOneKindAdmitOne() throws Exception {
+        final int threads = 8;
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicInteger admitted = new AtomicInteger();
+        List<Thread> started = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    String requestId = mRegistry.register(KIND, "a", new TestPromise(), 0);
+                    if (requestId != null) {
+                        admitted.incrementAndGet();
+                        // The entry is visible by kind as soon as register returns.
+                        assertEquals(requestId, mRegistry.active(KIND).requestId);
+                    }
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+
+        go.countDown();
+        for (Thread thread : started) {
+            thread.join();
+        }
+
+        assertEquals(1, admitted.get());
+        assertEquals(1, mRegistry.size());
+    }
+
+    @Test
+    public void racingRegistersAndResolvesNeverLeaveAStaleKind() throws Exception {
+        final int threads = 8;
+        final int rounds = 2000;
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicInteger admitted = new AtomicInteger();
+        final AtomicInteger resolved = new AtomicInteger();
+        List<Thread> started = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int round = 0; round < rounds; round++) {
+                        String requestId = mRegistry.register(KIND, "a", new TestPromise(), 0);
+                        if (requestId != null) {
+                            admitted.incrementAndGet();
+                        }
+                        PromiseRegistry.Entry active = mRegistry.active(KIND);
+                        if (active != null && mRegistry.resolve(active.requestId, true)) {
+                            resolved.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+
+        go.countDown();
+        for (Thread thread : started) {
+            thread.join();
+        }
+
+        PromiseRegistry.Entry left = mRegistry.active(KIND);
+        if (left != null) {
+            assertTrue(mRegistry.resolve(left.requestId, true));
+            resolved.incrementAndGet();
+        }
+        assertEquals(admitted.get(), resolved.get());
+        assertEquals(0, mRegistry.size());
+        assertNotNull(mRegistry.register(KIND, "b", new TestPromise(), 0));
+    }
+}
@@ -0,0 +1,199 @@
+package com.idehub.Billing;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads to a local HTTP server, so the request the server sees is checked as sent.
+ */
+public class ReceiptUploaderTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    // Statuses to answer with, in order; 200 once they run out.
+    private final BlockingQueue<Integer> mStatuses = new LinkedBlockingQueue<>();
+    private final BlockingQueue<JSONObject> mRequests = new LinkedBlockingQueue<>();
+    private File mDirectory;
+    private BillingMetrics mMetrics;
+    private ReceiptUploader mUploader;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/receipts", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    JSONObject request = new JSONObject();
+                    request.put("encoding", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                    request.put("authorization", exchange.getRequestHeaders().getFirst("Authorization"));
+                    request.put("body", new JSONObject(new String(read(new GZIPInputStream(exchange.getRequestBody())), "UTF-8")));
+                    mRequests.add(request);
+                } catch (Exception ex) {
+                    throw new IOException(ex);
+                }
+
+                Integer status = mStatuses.poll();
+                exchange.sendResponseHeaders(status == null ? 200 : status, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+
+        mDirectory = new File(mFolder.getRoot(), ReceiptUploader.DIRECTORY);
+        mMetrics = new BillingMetrics();
+        Map<String, String> headers = Collections.singletonMap("Authorization", "Bearer token");
+        mUploader = new ReceiptUploader(mDirectory,
+                "http://127.0.0.1:" + mServer.getAddress().getPort() + "/receipts", headers, 10, mMetrics);
+    }
+
+    @After
+    public void tearDown() {
+        mUploader.shutdown();
+        mServer.stop(0);
+    }
+
+    @Test
+    public void uploadsQueuedReceiptsAsOneGzippedBatch() throws Exception {
+        mUploader.enqueue(VerificationCacheTest.transaction("a", "token-a", "signature"));
+        mUploader.enqueue(VerificationCacheTest.transaction("b", "token-b", "signature"));
+        mUploader.flush();
+
+        JSONObject request = awaitRequest();
+        assertEquals("gzip", request.getString("encoding"));
+        assertEquals("Bearer token", request.getString("authorization"));
+        JSONArray receipts = request.getJSONObject("body").getJSONArray("receipts");
+        assertEquals(2, receipts.length());
+        assertEquals("a", receipts.getJSONObject(0).getString("productId"));
+        assertEquals("token-b", receipts.getJSONObject(1).getString("purchaseToken"));
+
+        awaitCounter("receipts.uploaded", 2);
+        assertEquals(0, mUploader.pendingCount());
+        assertEquals(2, list(".done").length);
+    }
+
+    @Test
+    public void uploadedReceiptIsNotQueuedAgain() throws Exception {
+        mUploader.enqueue(VerificationCacheTest.transaction("a", "token-a", "signature"));
+        mUploader.flush();
+        awaitRequest();
+        awaitCounter("receipts.uploaded", 1);
+
+        mUploader.enqueue(VerificationCacheTest.transaction("a", "token-a", "signature"));
+        mUploader.flush();
+
+        assertEquals(null, mRequests.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(1, mMetrics.counter("receipts.queued"));
+    }
+
+    @Test
+    public void serverErrorIsRetried() throws Exception {
+        mStatuses.add(503);
+        mUploader.enqueue(VerificationCacheTest.transaction("a", "token-a", "signature"));
+        mUploader.flush();
+
+        awaitRequest();
+        JSONObject retry = awaitRequest();
+
+        assertEquals(1, retry.getJSONObject("body").getJSONArray("receipts").length());
+        awaitCounter("receipts.uploaded", 1);
+    }
+
+    @Test
+    public void rejectedBatchIsDropped() throws Exception {
+        mStatuses.add(400);
+        mUploader.enqueue(VerificationCacheTest.transaction("a", "token-a", "signature"));
+        mUploader.flush();
+
+        awaitRequest();
+        awaitCounter("receipts.rejected", 1);
+
+        assertEquals(0, mUploader.pendingCount());
+        assertEquals(0, list(".json").length);
+        assertEquals(0, list(".done").length);
+    }
+
+    @Test
+    public void oldestMarkersArePrunedAfterAnAcceptedBatch() throws Exception {
+        assertTrue(mDirectory.mkdirs());
+        long old = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+        for (int i = 0; i < ReceiptUploader.MAX_DONE_MARKERS + 5; i++) {
+            File marker = new File(mDirectory, "old" + i + ".done");
+            assertTrue(marker.createNewFile());
+            assertTrue(marker.setLastModified(old + i * 1000));
+        }
+
+        mUploader.enqueue(VerificationCacheTest.transaction("a", "token-a", "signature"));
+        mUploader.flush();
+        awaitRequest();
+        awaitCounter("receipts.pruned", 6);
+
+        assertEquals(ReceiptUploader.MAX_DONE_MARKERS, list(".done").length);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(!new File(mDirectory, "old" + i + ".done").exists());
+        }
+    }
+
+    private JSONObject awaitRequest() throws Exception {
+        JSONObject request = mRequests.poll(10, TimeUnit.SECONDS);
+        assertNotNull("The server received no request", request);
+        return request;
+    }
+
+    /**
+     * Counters are updated after the server answered, so they may lag behind it.
+     */
+    private void awaitCounter(String name, long expected) throws Exception {
+        for (int i = 0; i < 500 && mMetrics.counter(name) != expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(name, expected, mMetrics.counter(name));
+    }
+
+    private File[] list(final String suffix) {
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private static byte[] read(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = stream.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
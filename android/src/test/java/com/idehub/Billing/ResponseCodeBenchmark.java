@@ -0,0 +1,71 @@
+package com.idehub.Billing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getResponseCode against the version it replaced, which built a HashMap on every call
+ * inside a synchronized method. Runs on 4 threads, since failures are mapped on every
+ * billing thread at once. See BENCHMARKS.md.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ResponseCodeBenchmark {
+    @State(Scope.Thread)
+    public static class Codes {
+        private int mCode;
+
+        // Cycles through the known codes and one unknown code.
+        int next() {
+            mCode = (mCode + 1) % 10;
+            return mCode;
+        }
+    }
+
+    @Benchmark
+    public String table(Codes codes) {
+        return InAppBillingBridge.getResponseCode(codes.next());
+    }
+
+    @Benchmark
+    public String hashMapUnderLock(Codes codes) {
+        return hashMapResponseCode(codes.next());
+    }
+
+    // Synchronized on the shared benchmark state, as the old one was on the bridge.
+    private synchronized String hashMapResponseCode(Integer code) {
+        final Map<Integer, String> constants = new HashMap<>();
+
+        constants.put(1, "E_USER_CANCELED");
+        constants.put(2, "E_SERVICE_UNAVAILABLE");
+        constants.put(3, "E_BILLING_UNAVAILABLE");
+        constants.put(4, "E_ITEM_UNAVAILABLE");
+        constants.put(5, "E_DEVELOPER_ERROR");
+        constants.put(6, "E_API_ERROR");
+        constants.put(7, "E_ITEM_ALREADY_OWNED");
+        constants.put(8, "E_ITEM_NOT_OWNED");
+
+        if (!constants.containsKey(code)) {
+            return "E_UNKNOWN";
+        }
+
+        return constants.get(code);
+    }
+}
@@ -0,0 +1,83 @@
+package com.idehub.Billing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+    private static BillingError error(int responseCode) {
+        return new BillingError(responseCode, "failed");
+    }
+
+    @Test
+    public void transientFailuresAreRetried() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+
+        assertTrue(policy.shouldRetry(error(RetryPolicy.RESPONSE_SERVICE_UNAVAILABLE), 0));
+        assertTrue(policy.shouldRetry(error(RetryPolicy.RESPONSE_API_ERROR), 0));
+    }
+
+    @Test
+    public void answeredFailuresAreNotRetried() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+
+        assertFalse(policy.shouldRetry(error(1), 0));
+        assertFalse(policy.shouldRetry(error(3), 0));
+        assertFalse(policy.shouldRetry(error(4), 0));
+        assertFalse(policy.shouldRetry(error(5), 0));
+        assertFalse(policy.shouldRetry(error(7), 0));
+        assertFalse(policy.shouldRetry(error(8), 0));
+    }
+
+    @Test
+    public void errorsFromOutsideGooglePlayAreNotRetried() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+
+        assertFalse(policy.shouldRetry(new BillingError("E_CONNECTION", "closed"), 0));
+        assertFalse(policy.shouldRetry(new IllegalStateException(), 0));
+        assertFalse(policy.shouldRetry(null, 0));
+    }
+
+    @Test
+    public void stopsAfterMaxAttempts() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+        BillingError error = error(RetryPolicy.RESPONSE_SERVICE_UNAVAILABLE);
+
+        assertTrue(policy.shouldRetry(error, 0));
+        assertTrue(policy.shouldRetry(error, 1));
+        assertFalse(policy.shouldRetry(error, 2));
+    }
+
+    @Test
+    public void atLeastOneAttemptIsMade() {
+        RetryPolicy policy = new RetryPolicy(0, 100, 1000);
+
+        assertFalse(policy.shouldRetry(error(RetryPolicy.RESPONSE_SERVICE_UNAVAILABLE), 0));
+    }
+
+    @Test
+    public void delayGrowsWithinTheUpperHalfOfTheWindow() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+
+        for (int i = 0; i < 50; i++) {
+            assertInRange(policy.delayMs(0), 50, 100);
+            assertInRange(policy.delayMs(1), 100, 200);
+            assertInRange(policy.delayMs(2), 200, 400);
+        }
+    }
+
+    @Test
+    public void delayIsCappedAtTheMaximum() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+
+        for (int i = 0; i < 50; i++) {
+            assertInRange(policy.delayMs(5), 500, 1000);
+            assertInRange(policy.delayMs(Integer.MAX_VALUE), 500, 1000);
+        }
+    }
+
+    private static void assertInRange(long value, long min, long max) {
+        assertTrue(value + " is not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+}
@@ -0,0 +1,217 @@
+package com.idehub.Billing;
+
+import com.anjlab.android.iab.v3.SkuDetails;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SkuDetailsBatcherTest {
+    private final BillingExecutor mExecutor = new BillingExecutor();
+    private final List<ArrayList<String>> mQueries = new CopyOnWriteArrayList<>();
+    private final List<String> mUnknownIds = new CopyOnWriteArrayList<>();
+    private volatile boolean mFail;
+
+    private final SkuDetailsBatcher.Fetcher mFetcher = new SkuDetailsBatcher.Fetcher() {
+        @Override
+        public void fetch(String type, ArrayList<String> productIds, SkuDetailsBatcher.FetchCallback callback) throws Exception {
+            mQueries.add(productIds);
+            if (mFail) {
+                callback.onFailure(null);
+                return;
+            }
+
+            List<SkuDetails> details = new ArrayList<>();
+            for (String productId : productIds) {
+                if (!mUnknownIds.contains(productId)) {
+                    details.add(ProductDetailsCacheTest.details(productId, "EUR"));
+                }
+            }
+            callback.onResult(details);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void coalescesRequestsWithinTheWindowIntoOneQuery() throws Exception {
+        SkuDetailsBatcher batcher = new SkuDetailsBatcher(mExecutor, mFetcher, 50);
+        Result first = new Result();
+        Result second = new Result();
+
+        batcher.request("inapp", Arrays.asList("a", "b"), first);
+        batcher.request("inapp", Arrays.asList("b", "c"), second);
+
+        first.await();
+        second.await();
+        assertEquals(1, mQueries.size());
+        assertEquals(Arrays.asList("a", "b", "c"), mQueries.get(0));
+        assertEquals(2, first.details.get().size());
+        assertTrue(second.details.get().containsKey("c"));
+    }
+
+    @Test
+    public void typesAreBatchedSeparately() throws Exception {
+        SkuDetailsBatcher batcher = new SkuDetailsBatcher(mExecutor, mFetcher, 20);
+        Result products = new Result();
+        Result subscriptions = new Result();
+
+        batcher.request("inapp", Collections.singletonList("a"), products);
+        batcher.request("subs", Collections.singletonList("a"), subscriptions);
+
+        products.await();
+        subscriptions.await();
+        assertEquals(2, mQueries.size());
+    }
+
+    @Test
+    public void splitsLargeBatchesIntoChunks() throws Exception {
+        SkuDetailsBatcher batcher = new SkuDetailsBatcher(mExecutor, mFetcher, 0);
+        List<String> productIds = new ArrayList<>();
+        for (int i = 0; i < SkuDetailsBatcher.MAX_SKUS_PER_QUERY * 2 + 1; i++) {
+            productIds.add("sku" + i);
+        }
+        Result result = new Result();
+
+        batcher.request("inapp", productIds, result);
+
+        result.await();
+        assertEquals(3, mQueries.size());
+        assertEquals(productIds.size(), result.details.get().size());
+    }
+
+    @Test
+    public void idsPlayDoesNotKnowAreLeftOut() throws Exception {
+        mUnknownIds.add("b");
+        SkuDetailsBatcher batcher = new SkuDetailsBatcher(mExecutor, mFetcher, 0);
+        Result result = new Result();
+
+        batcher.request("inapp", Arrays.asList("a", "b"), result);
+
+        result.await();
+        assertEquals(Collections.singleton("a"), result.details.get().keySet());
+    }
+
+    @Test
+    public void failedQueryFailsEveryWaiter() throws Exception {
+        mFail = true;
+        SkuDetailsBatcher batcher = new SkuDetailsBatcher(mExecutor, mFetcher, 20);
+        Result first = new Result();
+        Result second = new Result();
+
+        batcher.request("inapp", Collections.singletonList("a"), first);
+        batcher.request("inapp", Collections.singletonList("b"), second);
+
+        first.await();
+        second.await();
+        assertTrue(first.failed);
+        assertTrue(second.failed);
+        assertNull(first.error.get());
+    }
+
+    @Test
+    public void fetcherExceptionIsReported() throws Exception {
+        final IllegalStateException failure = new IllegalStateException("boom");
+        SkuDetailsBatcher batcher = new SkuDetailsBatcher(mExecutor, new SkuDetailsBatcher.Fetcher() {
+            @Override
+            public void fetch(String type, ArrayList<String> productIds, SkuDetailsBatcher.FetchCallback callback) throws Exception {
+                throw failure;
+            }
+        }, 0);
+        Result result = new Result();
+
+        batcher.request("inapp", Collections.singletonList("a"), result);
+
+        result.await();
+        assertEquals(failure, result.error.get());
+    }
+
+    @Test
+    public void answersFromAnotherThreadAreDeliveredOnce() throws Exception {
+        final BillingExecutor answering = new BillingExecutor();
+        SkuDetailsBatcher batcher = new SkuDetailsBatcher(mExecutor, new SkuDetailsBatcher.Fetcher() {
+            @Override
+            public void fetch(String type, final ArrayList<String> productIds, final SkuDetailsBatcher.FetchCallback callback) {
+                answering.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            callback.onResult(Collections.singletonList(ProductDetailsCacheTest.details(productIds.get(0), "EUR")));
+                        } catch (Exception ex) {
+                            callback.onFailure(ex);
+                        }
+                        callback.onFailure(null);
+                    }
+                });
+            }
+        }, 0);
+        Result result = new Result();
+
+        try {
+            batcher.request("inapp", Collections.singletonList("a"), result);
+
+            result.await();
+            Thread.sleep(50);
+            assertEquals(1, result.calls.get());
+            assertTrue(result.details.get().containsKey("a"));
+        } finally {
+            answering.shutdown();
+        }
+    }
+
+    @Test
+    public void runsInlineWhenTheExecutorIsShutDown() throws Exception {
+        mExecutor.shutdown();
+        SkuDetailsBatcher batcher = new SkuDetailsBatcher(mExecutor, mFetcher, 50);
+        Result result = new Result();
+
+        batcher.request("inapp", Collections.singletonList("a"), result);
+
+        result.await();
+        assertTrue(result.failed);
+    }
+
+    static final class Result implements SkuDetailsBatcher.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Map<String, SkuDetails>> details = new AtomicReference<>();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final AtomicInteger calls = new AtomicInteger();
+        volatile boolean failed;
+
+        @Override
+        public void onResult(Map<String, SkuDetails> result) {
+            calls.incrementAndGet();
+            details.set(result);
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(Exception ex) {
+            calls.incrementAndGet();
+            error.set(ex);
+            failed = true;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("Callback was not invoked", done.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
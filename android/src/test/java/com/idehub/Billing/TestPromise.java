@@ -0,0 +1,107 @@
+package com.idehub.Billing;
+
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records how a promise was settled. Counts every settlement, so tests can also check
+ * that a promise is never settled twice.
+ */
+class TestPromise implements Promise {
+    private final CountDownLatch mSettled = new CountDownLatch(1);
+    final AtomicInteger settlements = new AtomicInteger();
+    volatile boolean resolved;
+    volatile Object value;
+    volatile String code;
+    volatile String message;
+    // System.nanoTime() of the first settlement, 0 until then.
+    volatile long settledNanos;
+
+    boolean await(long timeoutMs) throws InterruptedException {
+        return mSettled.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isSettled() {
+        return mSettled.getCount() == 0;
+    }
+
+    /**
+     * Waits for the promise and asserts that it was resolved.
+     */
+    Object awaitResolved() throws InterruptedException {
+        assertTrue("Promise was not settled", await(5000));
+        assertTrue("Promise was rejected with " + code + ": " + message, resolved);
+        return value;
+    }
+
+    /**
+     * Waits for the promise and asserts that it was rejected with the given code.
+     */
+    void awaitRejected(String expectedCode) throws InterruptedException {
+        assertTrue("Promise was not settled", await(5000));
+        assertEquals(expectedCode, code);
+    }
+
+    public void resolve(Object value) {
+        this.value = value;
+        resolved = true;
+        settle();
+    }
+
+    public void reject(String code, String message) {
+        reject(code, message, (Throwable) null);
+    }
+
+    public void reject(String code, Throwable throwable) {
+        reject(code, throwable == null ? null : throwable.getMessage(), throwable);
+    }
+
+    public void reject(String code, String message, Throwable throwable) {
+        this.code = code;
+        this.message = message;
+        settle();
+    }
+
+    public void reject(Throwable throwable) {
+        reject(null, throwable);
+    }
+
+    public void reject(Throwable throwable, WritableMap userInfo) {
+        reject(null, throwable);
+    }
+
+    public void reject(String code, WritableMap userInfo) {
+        reject(code, (String) null);
+    }
+
+    public void reject(String code, Throwable throwable, WritableMap userInfo) {
+        reject(code, throwable);
+    }
+
+    public void reject(String code, String message, WritableMap userInfo) {
+        reject(code, message);
+    }
+
+    public void reject(String code, String message, Throwable throwable, WritableMap userInfo) {
+        reject(code, message, throwable);
+    }
+
+    @Deprecated
+    public void reject(String message) {
+        reject(null, message);
+    }
+
+    private void settle() {
+        if (settlements.incrementAndGet() == 1) {
+            settledNanos = System.nanoTime();
+        }
+        mSettled.countDown();
+    }
+}
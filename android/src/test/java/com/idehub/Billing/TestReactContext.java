@@ -0,0 +1,112 @@
+package com.idehub.Billing;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import com.facebook.react.bridge.ActivityEventListener;
+import com.facebook.react.bridge.JavaScriptModule;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A React context without an application behind it, so the bridge can be created on a
+ * plain JVM. Events are dropped unless {@link #recordEvents()} gives it a catalyst
+ * instance. Counts the listeners and receivers registered with it, so tests can check
+ * they are removed.
+ */
+class TestReactContext extends ReactApplicationContext {
+    final AtomicInteger activityEventListeners = new AtomicInteger();
+    final AtomicInteger receivers = new AtomicInteger();
+    final List<Event> events = new CopyOnWriteArrayList<>();
+    private final File mFilesDir;
+    private volatile boolean mRecordEvents;
+
+    static class Event {
+        final String name;
+        final Object payload;
+
+        Event(String name, Object payload) {
+            this.name = name;
+            this.payload = payload;
+        }
+    }
+
+    TestReactContext() {
+        this(null);
+    }
+
+    /**
+     * @param filesDir where the bridge keeps its files, e.g. the snapshot
+     */
+    TestReactContext(File filesDir) {
+        super(new ContextWrapper(null));
+        mFilesDir = filesDir;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return mFilesDir;
+    }
+
+    /**
+     * Records the events sent through RCTDeviceEventEmitter from now on.
+     */
+    void recordEvents() {
+        mRecordEvents = true;
+    }
+
+    @Override
+    public boolean hasActiveCatalystInstance() {
+        return mRecordEvents;
+    }
+
+    @Override
+    public <T extends JavaScriptModule> T getJSModule(Class<T> jsInterface) {
+        if (!mRecordEvents || jsInterface != DeviceEventManagerModule.RCTDeviceEventEmitter.class) {
+            return super.getJSModule(jsInterface);
+        }
+        return jsInterface.cast(new DeviceEventManagerModule.RCTDeviceEventEmitter() {
+            @Override
+            public void emit(String eventName, Object data) {
+                events.add(new Event(eventName, data));
+            }
+        });
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public void addActivityEventListener(ActivityEventListener listener) {
+        super.addActivityEventListener(listener);
+        activityEventListeners.incrementAndGet();
+    }
+
+    @Override
+    public void removeActivityEventListener(ActivityEventListener listener) {
+        super.removeActivityEventListener(listener);
+        activityEventListeners.decrementAndGet();
+    }
+
+    @Override
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        receivers.incrementAndGet();
+        return super.registerReceiver(receiver, filter);
+    }
+
+    @Override
+    public void unregisterReceiver(BroadcastReceiver receiver) {
+        super.unregisterReceiver(receiver);
+        receivers.decrementAndGet();
+    }
+}
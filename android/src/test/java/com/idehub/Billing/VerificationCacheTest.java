@@ -0,0 +1,82 @@
+package com.idehub.Billing;
+
+import com.anjlab.android.iab.v3.PurchaseInfo;
+import com.anjlab.android.iab.v3.TransactionDetails;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VerificationCacheTest {
+    static TransactionDetails transaction(String productId, String token, String signature) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("productId", productId);
+        json.put("orderId", "order-" + token);
+        json.put("purchaseToken", token);
+        json.put("purchaseTime", 1500000000000L);
+        json.put("purchaseState", 0);
+        return new TransactionDetails(new PurchaseInfo(json.toString(), signature));
+    }
+
+    @Test
+    public void memoizesResultsPerReceipt() throws Exception {
+        VerificationCache cache = new VerificationCache(10);
+        TransactionDetails details = transaction("a", "token", "signature");
+
+        assertNull(cache.get(details));
+        cache.put(details, true);
+
+        assertEquals(Boolean.TRUE, cache.get(transaction("a", "token", "signature")));
+    }
+
+    @Test
+    public void changedSignatureIsVerifiedAgain() throws Exception {
+        VerificationCache cache = new VerificationCache(10);
+        cache.put(transaction("a", "token", "signature"), true);
+
+        assertNull(cache.get(transaction("a", "token", "forged")));
+    }
+
+    @Test
+    public void changedDataIsVerifiedAgain() throws Exception {
+        VerificationCache cache = new VerificationCache(10);
+        cache.put(transaction("a", "token", "signature"), true);
+
+        assertNull(cache.get(transaction("b", "token", "signature")));
+    }
+
+    @Test
+    public void invalidateProductKeepsOtherProducts() throws Exception {
+        VerificationCache cache = new VerificationCache(10);
+        TransactionDetails a = transaction("a", "token-a", "signature");
+        TransactionDetails b = transaction("b", "token-b", "signature");
+        cache.put(a, true);
+        cache.put(b, false);
+
+        cache.invalidateProduct("a");
+
+        assertNull(cache.get(a));
+        assertEquals(Boolean.FALSE, cache.get(b));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws Exception {
+        VerificationCache cache = new VerificationCache(2);
+        TransactionDetails a = transaction("a", "token-a", "signature");
+        TransactionDetails b = transaction("b", "token-b", "signature");
+        cache.put(a, true);
+        cache.put(b, true);
+        cache.get(a);
+        cache.put(transaction("c", "token-c", "signature"), true);
+
+        assertEquals(Boolean.TRUE, cache.get(a));
+        assertNull(cache.get(b));
+    }
+
+    @Test
+    public void toHexEncodesEveryByte() {
+        assertEquals("00ff7f80", VerificationCache.toHex(new byte[]{0, (byte) 0xff, 0x7f, (byte) 0x80}));
+    }
+}
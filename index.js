@@ -2,6 +2,62 @@
 
 const InAppBillingBridge = require("react-native").NativeModules
   .InAppBillingBridge;
+const DeviceEventEmitter = require("react-native").DeviceEventEmitter;
+
+// Expands a columnar details payload into an array of lazy row objects.
+// A field is only looked up in its column when it is read.
+function expandColumns(payload) {
+  const columns = payload.columns;
+  const sparse = payload.sparse;
+  const fields = Object.keys(columns).concat(Object.keys(sparse));
+  const proto = {
+    toJSON() {
+      const obj = {};
+      fields.forEach(field => {
+        const value = this[field];
+        if (value !== undefined) {
+          obj[field] = value;
+        }
+      });
+      return obj;
+    }
+  };
+
+  Object.keys(columns).forEach(field => {
+    const column = columns[field];
+    Object.defineProperty(proto, field, {
+      enumerable: true,
+      get() {
+        return column[this._row];
+      }
+    });
+  });
+
+  Object.keys(sparse).forEach(field => {
+    const present = sparse[field].present;
+    const values = sparse[field].values;
+    let byRow = null;
+    Object.defineProperty(proto, field, {
+      enumerable: true,
+      get() {
+        if (byRow == null) {
+          byRow = new Array(payload.count);
+          let next = 0;
+          for (let row = 0; row < payload.count; row++) {
+            byRow[row] = (present[row >>> 5] >>> (row & 31)) & 1 ? values[next++] : "";
+          }
+        }
+        return byRow[this._row];
+      }
+    });
+  });
+
+  const rows = new Array(payload.count);
+  for (let row = 0; row < payload.count; row++) {
+    rows[row] = Object.create(proto, { _row: { value: row } });
+  }
+  return rows;
+}
 
 class InAppBilling {
   static open() {
@@ -16,6 +72,24 @@ class InAppBilling {
     return InAppBillingBridge.loadOwnedPurchasesFromGoogle();
   }
 
+  static onOwnedProductsChanged(listener) {
+    return DeviceEventEmitter.addListener(
+      InAppBillingBridge.OWNED_PRODUCTS_CHANGED,
+      listener
+    );
+  }
+
+  static onOwnedSubscriptionsChanged(listener) {
+    return DeviceEventEmitter.addListener(
+      InAppBillingBridge.OWNED_SUBSCRIPTIONS_CHANGED,
+      listener
+    );
+  }
+
+  static preparePurchase(productIds) {
+    return InAppBillingBridge.preparePurchase(productIds);
+  }
+
   static purchase(productId, developerPayload = null) {
     return InAppBillingBridge.purchase(productId, developerPayload);
   }
@@ -24,6 +98,10 @@ class InAppBilling {
     return InAppBillingBridge.consumePurchase(productId);
   }
 
+  static consumePurchases(productIds) {
+    return InAppBillingBridge.consumePurchases(productIds);
+  }
+
   static subscribe(productId, developerPayload = null) {
     return InAppBillingBridge.subscribe(productId, developerPayload);
   }
@@ -40,6 +118,34 @@ class InAppBilling {
     return InAppBillingBridge.isPurchased(productId);
   }
 
+  static isSubscribedMany(productIds) {
+    return InAppBillingBridge.isSubscribedMany(productIds);
+  }
+
+  static isPurchasedMany(productIds) {
+    return InAppBillingBridge.isPurchasedMany(productIds);
+  }
+
+  static checkEntitlements(productIds) {
+    return InAppBillingBridge.checkEntitlements(productIds);
+  }
+
+  static isPurchasedSync(productId) {
+    return InAppBillingBridge.isPurchasedSync(productId);
+  }
+
+  static isSubscribedSync(productId) {
+    return InAppBillingBridge.isSubscribedSync(productId);
+  }
+
+  static listOwnedProductsSync() {
+    return InAppBillingBridge.listOwnedProductsSync();
+  }
+
+  static listOwnedSubscriptionsSync() {
+    return InAppBillingBridge.listOwnedSubscriptionsSync();
+  }
+
   static isOneTimePurchaseSupported() {
     return InAppBillingBridge.isOneTimePurchaseSupported();
   }
@@ -48,6 +154,10 @@ class InAppBilling {
     return InAppBillingBridge.isValidTransactionDetails(productId);
   }
 
+  static areValidTransactionDetails(productIds) {
+    return InAppBillingBridge.areValidTransactionDetails(productIds);
+  }
+
   static listOwnedProducts() {
     return InAppBillingBridge.listOwnedProducts();
   }
@@ -56,6 +166,14 @@ class InAppBilling {
     return InAppBillingBridge.listOwnedSubscriptions();
   }
 
+  static listOwnedProductsPage(cursor = null, pageSize = 100) {
+    return InAppBillingBridge.listOwnedProductsPage(cursor, pageSize);
+  }
+
+  static listOwnedSubscriptionsPage(cursor = null, pageSize = 100) {
+    return InAppBillingBridge.listOwnedSubscriptionsPage(cursor, pageSize);
+  }
+
   static getProductDetails(productId) {
     return InAppBillingBridge.getProductDetails([productId])
       .then(arr => {
@@ -78,10 +196,34 @@ class InAppBilling {
     return InAppBillingBridge.getSubscriptionTransactionDetails(productId);
   }
 
-  static getProductDetailsArray(productIds) {
+  static getAllTransactionDetails(options = {}) {
+    return InAppBillingBridge.getAllTransactionDetails(options);
+  }
+
+  static getProductDetailsArray(productIds, options = {}) {
+    if (options.columnar) {
+      return InAppBillingBridge.getProductDetailsColumns(productIds).then(
+        expandColumns
+      );
+    }
     return InAppBillingBridge.getProductDetails(productIds);
   }
 
+  static watchProductDetails(productIds, intervalMs = 300000) {
+    return InAppBillingBridge.watchProductDetails(productIds, intervalMs);
+  }
+
+  static unwatchProductDetails(watchId) {
+    return InAppBillingBridge.unwatchProductDetails(watchId);
+  }
+
+  static onProductDetailsChanged(listener) {
+    return DeviceEventEmitter.addListener(
+      InAppBillingBridge.PRODUCT_DETAILS_CHANGED,
+      listener
+    );
+  }
+
   static getSubscriptionDetails(productId) {
     return InAppBillingBridge.getSubscriptionDetails([productId])
       .then(arr => {
@@ -96,10 +238,58 @@ class InAppBilling {
       });
   }
 
-  static getSubscriptionDetailsArray(productIds) {
+  static getSubscriptionDetailsArray(productIds, options = {}) {
+    if (options.columnar) {
+      return InAppBillingBridge.getSubscriptionDetailsColumns(productIds).then(
+        expandColumns
+      );
+    }
     return InAppBillingBridge.getSubscriptionDetails(productIds);
   }
 
+  static getSnapshot() {
+    return InAppBillingBridge.getSnapshot();
+  }
+
+  static onSnapshotRefreshed(listener) {
+    return DeviceEventEmitter.addListener(
+      InAppBillingBridge.SNAPSHOT_REFRESHED,
+      listener
+    );
+  }
+
+  static invalidateProductCache(productIds = null) {
+    return InAppBillingBridge.invalidateProductCache(productIds);
+  }
+
+  static getCircuitBreakerState() {
+    return InAppBillingBridge.getCircuitBreakerState();
+  }
+
+  static flushReceiptUploads() {
+    return InAppBillingBridge.flushReceiptUploads();
+  }
+
+  static getMetrics() {
+    return InAppBillingBridge.getMetrics();
+  }
+
+  static resetMetrics() {
+    return InAppBillingBridge.resetMetrics();
+  }
+
+  static startMetricsEvents(intervalMs = 60000) {
+    return InAppBillingBridge.startMetricsEvents(intervalMs);
+  }
+
+  static stopMetricsEvents() {
+    return InAppBillingBridge.stopMetricsEvents();
+  }
+
+  static onMetrics(listener) {
+    return DeviceEventEmitter.addListener(InAppBillingBridge.METRICS, listener);
+  }
+
   static shortCircuitPurchaseFlow(enable) {
     InAppBillingBridge.shortCircuitPurchaseFlow(enable);
   }
@@ -19,6 +19,10 @@ export interface ITransactionDetails {
   developerPayload: string;
 }
 
+export interface IDetailsOptions {
+  columnar?: boolean;
+}
+
 export interface IProductDetails {
   productId: string;
   title: string;
@@ -40,6 +44,95 @@ export interface ISubscriptionDetails extends IProductDetails {
   introductoryPriceCycles: number;
 }
 
+export interface IBillingSnapshot {
+  stale: boolean;
+  savedAt: number;
+  products: IProductDetails[];
+  subscriptions: ISubscriptionDetails[];
+  ownedProducts: string[];
+  ownedSubscriptions: string[];
+}
+
+export interface ITimerMetrics {
+  count: number;
+  errors: number;
+  meanMs: number;
+  maxMs: number;
+  p50Ms: number;
+  p90Ms: number;
+  p99Ms: number;
+  histogram: number[];
+}
+
+export interface ICacheMetrics {
+  hits: number;
+  misses: number;
+  hitRatio: number;
+}
+
+export interface IBillingMetrics {
+  uptimeMs: number;
+  timers: { [name: string]: ITimerMetrics };
+  counters: { [name: string]: number };
+  caches: { [name: string]: ICacheMetrics };
+  pendingPromises: number;
+  pendingPromiseDetails: IPendingPromise[];
+  circuitBreaker: CircuitBreakerState;
+  pendingReceipts?: number;
+}
+
+export interface IPendingPromise {
+  requestId: string;
+  kind: string;
+  productId: string | null;
+  ageMs: number;
+  remainingMs: number;
+}
+
+export type CircuitBreakerState = "CLOSED" | "OPEN" | "HALF_OPEN";
+
+export interface IConsumeResult {
+  success: boolean;
+  code?: string;
+  message?: string;
+}
+
+export interface IPreparedPurchases {
+  products: string[];
+  subscriptions: string[];
+  unavailable: string[];
+}
+
+export interface IOwnedPage {
+  items: string[];
+  nextCursor: string | null;
+}
+
+export interface IAllTransactionDetailsOptions {
+  type?: "inapp" | "subs";
+  since?: number;
+}
+
+export interface IAllTransactionDetails {
+  products: ITransactionDetails[];
+  subscriptions: ITransactionDetails[];
+}
+
+export interface IProductDetailsChange {
+  watchId: string;
+  changed: (IProductDetails | ISubscriptionDetails)[];
+  removed: string[];
+}
+
+export interface IOwnershipChange {
+  added: string[];
+  removed: string[];
+}
+
+export interface ISubscription {
+  remove(): void;
+}
+
 export default class InAppBilling {
   static open(): Promise<void>;
 
@@ -47,6 +140,16 @@ export default class InAppBilling {
 
   static loadOwnedPurchasesFromGoogle(): Promise<any>;
 
+  static onOwnedProductsChanged(
+    listener: (change: IOwnershipChange) => void
+  ): ISubscription;
+
+  static onOwnedSubscriptionsChanged(
+    listener: (change: IOwnershipChange) => void
+  ): ISubscription;
+
+  static preparePurchase(productIds: string[]): Promise<IPreparedPurchases>;
+
   static purchase(
     productId: string,
     developerPayload?: string
@@ -57,6 +160,10 @@ export default class InAppBilling {
     developerPayload?: string
   ): Promise<ITransactionDetails>;
 
+  static consumePurchases(
+    productIds: string[]
+  ): Promise<{ [productId: string]: IConsumeResult }>;
+
   static subscribe(
     productId: string,
     developerPayload?: string
@@ -72,14 +179,48 @@ export default class InAppBilling {
 
   static isPurchased(productId: string): Promise<boolean>;
 
+  static isSubscribedMany(
+    productIds: string[]
+  ): Promise<{ [productId: string]: boolean }>;
+
+  static isPurchasedMany(
+    productIds: string[]
+  ): Promise<{ [productId: string]: boolean }>;
+
+  static checkEntitlements(
+    productIds: string[]
+  ): Promise<{ [productId: string]: boolean }>;
+
+  static isPurchasedSync(productId: string): boolean;
+
+  static isSubscribedSync(productId: string): boolean;
+
+  static listOwnedProductsSync(): string[];
+
+  static listOwnedSubscriptionsSync(): string[];
+
   static isOneTimePurchaseSupported(): Promise<boolean>;
 
   static isValidTransactionDetails(productId: string): Promise<boolean>;
 
+  static areValidTransactionDetails(
+    productIds: string[]
+  ): Promise<{ [productId: string]: boolean }>;
+
   static listOwnedProducts(): Promise<string[]>;
 
   static listOwnedSubscriptions(): Promise<string[]>;
 
+  static listOwnedProductsPage(
+    cursor?: string | null,
+    pageSize?: number
+  ): Promise<IOwnedPage>;
+
+  static listOwnedSubscriptionsPage(
+    cursor?: string | null,
+    pageSize?: number
+  ): Promise<IOwnedPage>;
+
   static getProductDetails(productId: string): Promise<IProductDetails>;
 
   static getPurchaseTransactionDetails(
@@ -90,15 +231,54 @@ export default class InAppBilling {
     productId: string
   ): Promise<ITransactionDetails>;
 
+  static getAllTransactionDetails(
+    options?: IAllTransactionDetailsOptions
+  ): Promise<IAllTransactionDetails>;
+
   static getProductDetailsArray(
-    productIds: string[]
+    productIds: string[],
+    options?: IDetailsOptions
   ): Promise<IProductDetails[]>;
 
+  static watchProductDetails(
+    productIds: string[],
+    intervalMs?: number
+  ): Promise<string>;
+
+  static unwatchProductDetails(watchId: string): Promise<boolean>;
+
+  static onProductDetailsChanged(
+    listener: (change: IProductDetailsChange) => void
+  ): ISubscription;
+
   static getSubscriptionDetails(
     productId: string
   ): Promise<ISubscriptionDetails>;
 
   static getSubscriptionDetailsArray(
-    productIds: string[]
+    productIds: string[],
+    options?: IDetailsOptions
   ): Promise<ISubscriptionDetails[]>;
+
+  static getSnapshot(): Promise<IBillingSnapshot>;
+
+  static onSnapshotRefreshed(
+    listener: (snapshot: IBillingSnapshot) => void
+  ): ISubscription;
+
+  static invalidateProductCache(productIds?: string[]): Promise<boolean>;
+
+  static getCircuitBreakerState(): Promise<CircuitBreakerState>;
+
+  static flushReceiptUploads(): Promise<number>;
+
+  static getMetrics(): Promise<IBillingMetrics>;
+
+  static resetMetrics(): Promise<boolean>;
+
+  static startMetricsEvents(intervalMs?: number): Promise<boolean>;
+
+  static stopMetricsEvents(): Promise<boolean>;
+
+  static onMetrics(listener: (metrics: IBillingMetrics) => void): ISubscription;
 }
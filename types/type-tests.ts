@@ -37,3 +37,9 @@ InAppBilling.getSubscriptionDetails("productId").then(
     const price = details.priceValue;
   }
 );
+
+// $ExpectType boolean
+InAppBilling.isSubscribedSync("productId");
+
+// $ExpectType string[]
+InAppBilling.listOwnedProductsSync();